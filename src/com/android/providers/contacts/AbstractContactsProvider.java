@@ -46,7 +46,9 @@ public abstract class AbstractContactsProvider extends ContentProvider
     public static final boolean ENABLE_TRANSACTION_LOG = false; // Don't submit with true.
 
     /**
-     * Duration in ms to sleep after successfully yielding the lock during a batch operation.
+     * Maximum duration in ms to sleep after successfully yielding the lock during a batch
+     * operation.  The actual sleep depends on how long the lock was held, see
+     * {@link YieldPolicy}.
      */
     protected static final int SLEEP_AFTER_YIELD_DELAY = 4000;
 
@@ -56,15 +58,18 @@ public abstract class AbstractContactsProvider extends ContentProvider
     private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
 
     /**
-     * Number of inserts performed in bulk to allow before yielding the transaction.
+     * Maximum number of inserts performed in bulk before checking whether to yield the
+     * transaction.  Bulk inserts usually check earlier, see {@link YieldPolicy}.
      */
-    private static final int BULK_INSERTS_PER_YIELD_POINT = 50;
+    private static final int MAX_BULK_INSERTS_PER_YIELD_POINT = 500;
 
     /**
      * The contacts transaction that is active in this thread.
      */
     private ThreadLocal<ContactsTransaction> mTransactionHolder;
 
+    private final YieldPolicy mYieldPolicy = new YieldPolicy(SLEEP_AFTER_YIELD_DELAY);
+
     /**
      * The DB helper to use for this content provider.
      */
@@ -180,9 +185,21 @@ public abstract class AbstractContactsProvider extends ContentProvider
         int numValues = values.length;
         int opCount = 0;
         try {
+            // The rows between two yield points are inserted as a single group
+            boolean inGroup = false;
             for (int i = 0; i < numValues; i++) {
+                if (opCount == 0 && i < numValues - 1) {
+                    inGroup = true;
+                    onBeginOperationGroup();
+                }
                 insert(uri, values[i]);
-                if (++opCount >= BULK_INSERTS_PER_YIELD_POINT) {
+                final boolean yieldCheck = ++opCount >= MAX_BULK_INSERTS_PER_YIELD_POINT
+                        || mYieldPolicy.isYieldCheckDue(transaction);
+                if (inGroup && (yieldCheck || i == numValues - 1)) {
+                    inGroup = false;
+                    onEndOperationGroup();
+                }
+                if (yieldCheck) {
                     opCount = 0;
                     try {
                         yield(transaction);
@@ -207,6 +224,8 @@ public abstract class AbstractContactsProvider extends ContentProvider
         }
         int ypCount = 0;
         int opCount = 0;
+        int groupStart = -1;
+        int groupEnd = -1;
         ContactsTransaction transaction = startTransaction(true);
         try {
             final int numOperations = operations.size();
@@ -234,7 +253,19 @@ public abstract class AbstractContactsProvider extends ContentProvider
                     }
                 }
 
+                if (i > groupEnd) {
+                    groupStart = i;
+                    groupEnd = findOperationGroupEnd(operations, i);
+                    if (groupEnd > groupStart) {
+                        onBeginOperationGroup();
+                    }
+                }
+
                 results[i] = operation.apply(this, results, i);
+
+                if (i == groupEnd && groupEnd > groupStart) {
+                    onEndOperationGroup();
+                }
             }
             transaction.markSuccessful(true);
             return results;
@@ -243,6 +274,50 @@ public abstract class AbstractContactsProvider extends ContentProvider
         }
     }
 
+    /**
+     * Returns the index of the last operation of the group starting at the given index: the
+     * consecutive inserts into the same URI, up to the next yield point.  Returns the given
+     * index if the operation does not start a group.
+     */
+    private static int findOperationGroupEnd(ArrayList<ContentProviderOperation> operations,
+            int start) {
+        final ContentProviderOperation first = operations.get(start);
+        int end = start;
+        while (end + 1 < operations.size()) {
+            final ContentProviderOperation next = operations.get(end + 1);
+            if (next.isYieldAllowed() || !isSameGroup(first, next)) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean isSameGroup(ContentProviderOperation first,
+            ContentProviderOperation other) {
+        return first.getType() == ContentProviderOperation.TYPE_INSERT
+                && other.getType() == ContentProviderOperation.TYPE_INSERT
+                && first.getUri().equals(other.getUri());
+    }
+
+    /**
+     * Called by {@link #applyBatch} before applying a group of consecutive inserts into the
+     * same URI, and by {@link #bulkInsert} before inserting the rows up to the next yield
+     * point.  Side effects that only need to happen once per affected row, rather than once per
+     * operation, can be deferred until {@link #onEndOperationGroup}.  No yield happens within a
+     * group.
+     */
+    protected void onBeginOperationGroup() {
+    }
+
+    /**
+     * Called by {@link #applyBatch} and {@link #bulkInsert} after the last operation of a group
+     * was applied.  If an operation of the group fails, the transaction is rolled back and this
+     * is not called.
+     */
+    protected void onEndOperationGroup() {
+    }
+
     /**
      * If we are not yet already in a transaction, this starts one (on the DB to serialize on, if
      * present) and sets the thread-local transaction variable for tracking.  If we are already in
@@ -286,10 +361,17 @@ public abstract class AbstractContactsProvider extends ContentProvider
             } finally {
                 // No matter what, make sure we clear out the thread-local transaction reference.
                 mTransactionHolder.set(null);
+                onEndTransaction();
             }
         }
     }
 
+    /**
+     * Called after the transaction has ended, whether it was committed or rolled back.
+     */
+    protected void onEndTransaction() {
+    }
+
     /**
      * Gets the database helper for this contacts provider.  This is called once, during onCreate().
      */
@@ -309,6 +391,10 @@ public abstract class AbstractContactsProvider extends ContentProvider
     protected abstract int updateInTransaction(Uri uri, ContentValues values, String selection,
             String[] selectionArgs);
 
+    protected YieldPolicy getYieldPolicy() {
+        return mYieldPolicy;
+    }
+
     protected abstract boolean yield(ContactsTransaction transaction);
 
     protected abstract void notifyChange();
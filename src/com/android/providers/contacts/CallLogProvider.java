@@ -38,15 +38,20 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
+import android.provider.VoicemailContract.Voicemails;
+import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.Log;
 
+import com.android.providers.contacts.ContactsDatabaseHelper.CallsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.DbProperties;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.android.providers.contacts.util.SelectionBuilder;
 import com.android.providers.contacts.util.UserUtils;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -59,12 +64,48 @@ public class CallLogProvider extends ContentProvider {
 
     private static final int BACKGROUND_TASK_INITIALIZE = 0;
 
-    /** Selection clause for selecting all calls that were made after a certain time */
-    private static final String MORE_RECENT_THAN_SELECTION = Calls.DATE + "> ?";
+    private static final int BACKGROUND_TASK_WARM_UP_INSERTION_HELPER = 1;
+
+    /** Number of the most recent calls whose numbers the insertion helper is warmed up with. */
+    private static final int WARM_UP_CALL_COUNT = 200;
+
+    private static final int BACKGROUND_TASK_DELETE_EXPIRED_CALLS = 2;
+
+    /**
+     * Number of calls deleted at once by {@link #deleteExpiredCalls}, so that the database isn't
+     * locked for long.
+     */
+    private static final int EXPIRED_CALLS_BATCH_SIZE = 50;
+
+    /**
+     * Calls that can be deleted when they expire.  Voicemails whose files have not been deleted
+     * are kept; the file is deleted with the voicemail by the voicemail provider only.
+     */
+    private static final String DELETABLE_CALLS_SELECTION = Voicemails._DATA + " IS NULL";
+
+    /** Selection clause for selecting all calls that were made at or after a certain time */
+    private static final String NOT_OLDER_THAN_SELECTION = Calls.DATE + ">= ?";
     /** Selection clause to use to exclude voicemail records.  */
     private static final String EXCLUDE_VOICEMAIL_SELECTION = getInequalityClause(
             Calls.TYPE, Calls.VOICEMAIL_TYPE);
 
+    /**
+     * Query parameters for keyset pagination: only the calls that come after the call with the
+     * given {@link Calls#DATE} and {@link Calls#_ID} in {@link #KEYSET_SORT_ORDER} are returned.
+     * Passing the date and ID of the last call of a page returns the next page, combined with
+     * {@link Calls#LIMIT_PARAM_KEY}.  Unlike {@link Calls#OFFSET_PARAM_KEY}, the calls of the
+     * previous pages are not read at all, so every page costs the same.  The ID may be omitted
+     * to return the calls strictly before the date.
+     */
+    public static final String BEFORE_DATE_PARAM_KEY = "before_date";
+    public static final String BEFORE_ID_PARAM_KEY = "before_id";
+
+    /**
+     * The order of the calls of a keyset-paginated query, {@link Calls#DEFAULT_SORT_ORDER} with
+     * the ID as a tie breaker, which is served by the calls_date_index without sorting.
+     */
+    public static final String KEYSET_SORT_ORDER = Calls.DATE + " DESC," + Calls._ID + " DESC";
+
     @VisibleForTesting
     static final String[] CALL_LOG_SYNC_PROJECTION = new String[] {
         Calls.NUMBER,
@@ -79,6 +120,43 @@ public class CallLogProvider extends ContentProvider {
         Calls.PHONE_ACCOUNT_ID
     };
 
+    /**
+     * The columns read from the primary user's call log: {@link #CALL_LOG_SYNC_PROJECTION} and
+     * the ID, which is only used to read the next chunk.
+     */
+    private static final String[] CALL_LOG_SYNC_QUERY_PROJECTION;
+    static {
+        CALL_LOG_SYNC_QUERY_PROJECTION = Arrays.copyOf(CALL_LOG_SYNC_PROJECTION,
+                CALL_LOG_SYNC_PROJECTION.length + 1);
+        CALL_LOG_SYNC_QUERY_PROJECTION[CALL_LOG_SYNC_PROJECTION.length] = Calls._ID;
+    }
+
+    /** Number of call log entries read from the primary user at once. */
+    private static final int SYNC_CHUNK_SIZE = 500;
+
+    /**
+     * Copies the entries staged in {@link ContactsDatabaseHelper#TEMP_CALL_LOG_SYNC} that don't
+     * have the same start time and number as an entry of the call log, which is looked up through
+     * the calls_date_index.
+     */
+    private static final String COPY_SYNCED_ENTRIES_SQL;
+    static {
+        final StringBuilder columns = new StringBuilder();
+        for (String column : CALL_LOG_SYNC_PROJECTION) {
+            columns.append(column).append(',');
+        }
+        columns.append(CallsColumns.MIN_MATCH);
+        COPY_SYNCED_ENTRIES_SQL =
+                "INSERT INTO " + Tables.CALLS + "(" + columns + ")" +
+                " SELECT " + columns +
+                " FROM " + ContactsDatabaseHelper.TEMP_CALL_LOG_SYNC + " AS synced" +
+                " WHERE NOT EXISTS (" +
+                        "SELECT 1 FROM " + Tables.CALLS +
+                        " WHERE " + Tables.CALLS + "." + Calls.DATE + "=synced." + Calls.DATE +
+                        " AND " + Tables.CALLS + "." + Calls.NUMBER + "=synced." + Calls.NUMBER +
+                ")";
+    }
+
     private static final int CALLS = 1;
 
     private static final int CALLS_ID = 2;
@@ -134,6 +212,12 @@ public class CallLogProvider extends ContentProvider {
     private VoicemailPermissions mVoicemailPermissions;
     private CallLogInsertionHelper mCallLogInsertionHelper;
 
+    /** Number of the most recent calls kept, 0 for no limit. */
+    private volatile int mMaxCallCount;
+
+    /** Time calls are kept in milliseconds, 0 for no limit. */
+    private volatile long mMaxCallAgeMillis;
+
     @Override
     public boolean onCreate() {
         setAppOps(AppOpsManager.OP_READ_CALL_LOG, AppOpsManager.OP_WRITE_CALL_LOG);
@@ -147,6 +231,9 @@ public class CallLogProvider extends ContentProvider {
                     com.android.internal.R.bool.config_use_strict_phone_number_comparation);
         mVoicemailPermissions = new VoicemailPermissions(context);
         mCallLogInsertionHelper = createCallLogInsertionHelper(context);
+        mMaxCallCount = context.getResources().getInteger(R.integer.config_call_log_max_entries);
+        mMaxCallAgeMillis = context.getResources().getInteger(
+                R.integer.config_call_log_max_age_days) * DateUtils.DAY_IN_MILLIS;
 
         mBackgroundThread = new HandlerThread("CallLogProviderWorker",
                 Process.THREAD_PRIORITY_BACKGROUND);
@@ -161,6 +248,10 @@ public class CallLogProvider extends ContentProvider {
         mReadAccessLatch = new CountDownLatch(1);
 
         scheduleBackgroundTask(BACKGROUND_TASK_INITIALIZE);
+        scheduleBackgroundTask(BACKGROUND_TASK_WARM_UP_INSERTION_HELPER);
+        if (isCallLogRetentionLimited()) {
+            scheduleBackgroundTask(BACKGROUND_TASK_DELETE_EXPIRED_CALLS);
+        }
 
         if (Log.isLoggable(Constants.PERFORMANCE_TAG, Log.DEBUG)) {
             Log.d(Constants.PERFORMANCE_TAG, "CallLogProvider.onCreate finish");
@@ -205,7 +296,11 @@ public class CallLogProvider extends ContentProvider {
                 List<String> pathSegments = uri.getPathSegments();
                 String phoneNumber = pathSegments.size() >= 2 ? pathSegments.get(2) : null;
                 if (!TextUtils.isEmpty(phoneNumber)) {
-                    qb.appendWhere("PHONE_NUMBERS_EQUAL(number, ");
+                    // Narrow the calls down to the ones with the same min match with the index,
+                    // and only compare the numbers of those.
+                    qb.appendWhere(CallsColumns.MIN_MATCH + "=");
+                    qb.appendWhereEscapeString(PhoneNumberUtils.toCallerIDMinMatch(phoneNumber));
+                    qb.appendWhere(" AND PHONE_NUMBERS_EQUAL(number, ");
                     qb.appendWhereEscapeString(phoneNumber);
                     qb.appendWhere(mUseStrictPhoneNumberComparation ? ", 1)" : ", 0)");
                 } else {
@@ -219,6 +314,11 @@ public class CallLogProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URL " + uri);
         }
 
+        if (uri.getQueryParameter(BEFORE_DATE_PARAM_KEY) != null) {
+            sortOrder = getKeysetSortOrder(sortOrder);
+            selectionBuilder.addClause(getKeysetClause(uri));
+        }
+
         final int limit = getIntParam(uri, Calls.LIMIT_PARAM_KEY, 0);
         final int offset = getIntParam(uri, Calls.OFFSET_PARAM_KEY, 0);
         String limitClause = null;
@@ -260,6 +360,55 @@ public class CallLogProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Gets a long query parameter from a given uri, see {@link #getIntParam}.
+     */
+    private long getLongParam(Uri uri, String key, long defaultValue) {
+        String valueString = uri.getQueryParameter(key);
+        if (valueString == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(valueString);
+        } catch (NumberFormatException e) {
+            String msg = "Long required for " + key + " parameter but value '" + valueString +
+                    "' was found instead.";
+            throw new IllegalArgumentException(msg, e);
+        }
+    }
+
+    /**
+     * Returns the selection of the calls after the key given by {@link #BEFORE_DATE_PARAM_KEY}
+     * and {@link #BEFORE_ID_PARAM_KEY}.  The first term bounds the index range on the date, the
+     * second one only filters out the calls of the boundary date up to the given ID.
+     */
+    private String getKeysetClause(Uri uri) {
+        final long date = getLongParam(uri, BEFORE_DATE_PARAM_KEY, 0);
+        if (uri.getQueryParameter(BEFORE_ID_PARAM_KEY) == null) {
+            return Calls.DATE + "<" + date;
+        }
+        final long id = getLongParam(uri, BEFORE_ID_PARAM_KEY, 0);
+        return Calls.DATE + "<=" + date +
+                " AND (" + Calls.DATE + "<" + date + " OR " + Calls._ID + "<" + id + ")";
+    }
+
+    /**
+     * Returns {@link #KEYSET_SORT_ORDER} if the requested order is compatible with keyset
+     * pagination.
+     *
+     * @throws IllegalArgumentException if the calls are requested in another order.
+     */
+    private static String getKeysetSortOrder(String sortOrder) {
+        if (TextUtils.isEmpty(sortOrder)
+                || Calls.DEFAULT_SORT_ORDER.equalsIgnoreCase(sortOrder.trim())
+                || KEYSET_SORT_ORDER.equalsIgnoreCase(sortOrder.replace(", ", ",").trim())) {
+            return KEYSET_SORT_ORDER;
+        }
+        throw new IllegalArgumentException("Keyset pagination requires the calls in "
+                + KEYSET_SORT_ORDER + " order, but '" + sortOrder + "' was requested instead.");
+    }
+
     @Override
     public String getType(Uri uri) {
         int match = sURIMatcher.match(uri);
@@ -297,6 +446,10 @@ public class CallLogProvider extends ContentProvider {
 
         long rowId = getDatabaseModifier(mCallsInserter).insert(copiedValues);
         if (rowId > 0) {
+            if (isCallLogRetentionLimited()
+                    && !mBackgroundHandler.hasMessages(BACKGROUND_TASK_DELETE_EXPIRED_CALLS)) {
+                scheduleBackgroundTask(BACKGROUND_TASK_DELETE_EXPIRED_CALLS);
+            }
             return ContentUris.withAppendedId(uri, rowId);
         }
         return null;
@@ -329,6 +482,11 @@ public class CallLogProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot update URL: " + uri);
         }
 
+        if (values.containsKey(Calls.NUMBER)) {
+            values = new ContentValues(values);
+            DefaultCallLogInsertionHelper.putMinMatch(values);
+        }
+
         return getDatabaseModifier(db).update(Tables.CALLS, values, selectionBuilder.build(),
                 selectionArgs);
     }
@@ -438,7 +596,8 @@ public class CallLogProvider extends ContentProvider {
 
     /**
      * Syncs any unique call log entries that have been inserted into the primary user's call log
-     * since the last time the last sync occurred.
+     * since the last time the last sync occurred.  The entries are read and copied in chunks of
+     * {@link #SYNC_CHUNK_SIZE}, from the most recent one, using keyset pagination.
      */
     private void syncEntriesFromPrimaryUser(UserManager userManager) {
         final int userHandle = userManager.getUserHandle();
@@ -447,45 +606,83 @@ public class CallLogProvider extends ContentProvider {
             return;
         }
 
-        final long lastSyncTime = getLastSyncTime();
-        final Uri uri = ContentProvider.maybeAddUserId(CallLog.Calls.CONTENT_URI,
-                UserHandle.USER_OWNER);
-        final Cursor cursor = getContext().getContentResolver().query(
-                uri,
-                CALL_LOG_SYNC_PROJECTION,
-                EXCLUDE_VOICEMAIL_SELECTION + " AND " + MORE_RECENT_THAN_SELECTION,
-                new String[] {String.valueOf(lastSyncTime)},
-                Calls.DATE + " DESC");
-        if (cursor == null) {
-            return;
-        }
-        try {
-            final long lastSyncedEntryTime = copyEntriesFromCursor(cursor);
-            if (lastSyncedEntryTime > lastSyncTime) {
-                setLastTimeSynced(lastSyncedEntryTime);
+        // Each chunk starts after the date and ID of the last entry of the previous one, so the
+        // entries already read are not read again.  The last sync time only advances once all
+        // chunks were copied: the entries copied by an interrupted sync are recognized as
+        // duplicates when they are read again.
+        final long minDate = getLastSyncTime() + 1;
+        long lastSynced = 0;
+        long beforeDate = 0;
+        long beforeId = 0;
+        while (true) {
+            final Uri.Builder builder = CallLog.Calls.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(Calls.LIMIT_PARAM_KEY, String.valueOf(SYNC_CHUNK_SIZE));
+            if (beforeId != 0) {
+                builder.appendQueryParameter(BEFORE_DATE_PARAM_KEY, String.valueOf(beforeDate))
+                        .appendQueryParameter(BEFORE_ID_PARAM_KEY, String.valueOf(beforeId));
+            }
+            final Cursor cursor = getContext().getContentResolver().query(
+                    ContentProvider.maybeAddUserId(builder.build(), UserHandle.USER_OWNER),
+                    CALL_LOG_SYNC_QUERY_PROJECTION,
+                    EXCLUDE_VOICEMAIL_SELECTION + " AND " + NOT_OLDER_THAN_SELECTION,
+                    new String[] {String.valueOf(minDate)},
+                    KEYSET_SORT_ORDER);
+            if (cursor == null) {
+                return;
+            }
+            final int count = cursor.getCount();
+            try {
+                lastSynced = Math.max(lastSynced, copyEntriesFromCursor(cursor));
+                if (cursor.moveToLast()) {
+                    beforeDate = cursor.getLong(cursor.getColumnIndex(Calls.DATE));
+                    beforeId = cursor.getLong(cursor.getColumnIndex(Calls._ID));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (count < SYNC_CHUNK_SIZE) {
+                if (lastSynced >= minDate) {
+                    setLastTimeSynced(lastSynced);
+                }
+                return;
             }
-        } finally {
-            cursor.close();
         }
     }
 
     /**
+     * Copies the call log entries of the given cursor, with the columns of
+     * {@link #CALL_LOG_SYNC_PROJECTION} and possibly others, which are ignored, that are not
+     * already in the call log, as identified by their number and start time.  The entries are
+     * staged in {@link ContactsDatabaseHelper#TEMP_CALL_LOG_SYNC}, and the new ones are inserted
+     * with a single statement.
+     *
      * @param cursor to copy call log entries from
      *
-     * @return the timestamp of the last synced entry.
+     * @return the timestamp of the most recent synced entry.
      */
     @VisibleForTesting
     long copyEntriesFromCursor(Cursor cursor) {
         long lastSynced = 0;
+        final int[] columnIndexes = new int[CALL_LOG_SYNC_PROJECTION.length];
+        for (int i = 0; i < columnIndexes.length; i++) {
+            columnIndexes[i] = cursor.getColumnIndex(CALL_LOG_SYNC_PROJECTION[i]);
+        }
         final ContentValues values = new ContentValues();
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
         db.beginTransaction();
         try {
-            final String[] args = new String[2];
+            db.delete(ContactsDatabaseHelper.TEMP_CALL_LOG_SYNC, null, null);
             cursor.moveToPosition(-1);
             while (cursor.moveToNext()) {
+                // Leave out nulls, so that the defaults of the calls table apply
                 values.clear();
-                DatabaseUtils.cursorRowToContentValues(cursor, values);
+                for (int i = 0; i < columnIndexes.length; i++) {
+                    final int index = columnIndexes[i];
+                    if (index != -1 && !cursor.isNull(index)) {
+                        values.put(CALL_LOG_SYNC_PROJECTION[i], cursor.getString(index));
+                    }
+                }
                 final String startTime = values.getAsString(Calls.DATE);
                 final String number = values.getAsString(Calls.NUMBER);
 
@@ -493,26 +690,20 @@ public class CallLogProvider extends ContentProvider {
                     continue;
                 }
 
-                if (cursor.isLast()) {
-                    try {
-                        lastSynced = Long.valueOf(startTime);
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Call log entry does not contain valid start time: "
-                                + startTime);
-                    }
-                }
-
-                // Avoid duplicating an already existing entry (which is uniquely identified by
-                // the number, and the start time)
-                args[0] = startTime;
-                args[1] = number;
-                if (DatabaseUtils.queryNumEntries(db, Tables.CALLS,
-                        Calls.DATE + " = ? AND " + Calls.NUMBER + " = ?", args) > 0) {
-                    continue;
+                try {
+                    lastSynced = Math.max(lastSynced, Long.valueOf(startTime));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Call log entry does not contain valid start time: "
+                            + startTime);
                 }
 
-                db.insert(Tables.CALLS, null, values);
+                DefaultCallLogInsertionHelper.putMinMatch(values);
+                db.insertWithOnConflict(ContactsDatabaseHelper.TEMP_CALL_LOG_SYNC, null, values,
+                        SQLiteDatabase.CONFLICT_IGNORE);
             }
+
+            db.execSQL(COPY_SYNCED_ENTRIES_SQL);
+            db.delete(ContactsDatabaseHelper.TEMP_CALL_LOG_SYNC, null, null);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
@@ -566,7 +757,100 @@ public class CallLogProvider extends ContentProvider {
                 mReadAccessLatch.countDown();
                 mReadAccessLatch = null;
             }
+        } else if (task == BACKGROUND_TASK_WARM_UP_INSERTION_HELPER) {
+            warmUpInsertionHelper();
+        } else if (task == BACKGROUND_TASK_DELETE_EXPIRED_CALLS) {
+            // Continue with the next batch after the tasks that were scheduled in the meantime
+            if (deleteExpiredCalls() == EXPIRED_CALLS_BATCH_SIZE
+                    && !mBackgroundHandler.hasMessages(BACKGROUND_TASK_DELETE_EXPIRED_CALLS)) {
+                scheduleBackgroundTask(BACKGROUND_TASK_DELETE_EXPIRED_CALLS);
+            }
+        }
+    }
+
+    /**
+     * Waits until the background tasks scheduled so far have run.
+     */
+    @VisibleForTesting
+    void waitForBackgroundTasksForTest() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        waitForAccess(latch);
+    }
+
+    /**
+     * Returns true if calls are deleted once there are too many or they are too old, see
+     * {@link #deleteExpiredCalls}.
+     */
+    private boolean isCallLogRetentionLimited() {
+        return mMaxCallCount > 0 || mMaxCallAgeMillis > 0;
+    }
+
+    @VisibleForTesting
+    void setCallLogRetentionForTest(int maxCallCount, long maxCallAgeMillis) {
+        mMaxCallCount = maxCallCount;
+        mMaxCallAgeMillis = maxCallAgeMillis;
+    }
+
+    /**
+     * Deletes up to {@link #EXPIRED_CALLS_BATCH_SIZE} of the oldest calls that are older than the
+     * maximum age, or older than the most recent calls that are kept, through the same
+     * {@link DatabaseModifier} as deletes requested by clients, so the same notifications are
+     * sent.
+     *
+     * @return the number of deleted calls.
+     */
+    @VisibleForTesting
+    int deleteExpiredCalls() {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final int maxCallCount = mMaxCallCount;
+        final long maxCallAgeMillis = mMaxCallAgeMillis;
+        long expiryDate = 0;
+        if (maxCallAgeMillis > 0) {
+            expiryDate = System.currentTimeMillis() - maxCallAgeMillis;
         }
+        if (maxCallCount > 0) {
+            // The date of the oldest call that is kept, found through the calls_date_index
+            final Cursor c = db.query(Tables.CALLS, new String[] {Calls.DATE}, null, null, null,
+                    null, Calls.DATE + " DESC", (maxCallCount - 1) + ",1");
+            try {
+                if (c.moveToFirst()) {
+                    expiryDate = Math.max(expiryDate, c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        if (expiryDate <= 0) {
+            return 0;
+        }
+
+        return getDatabaseModifier(db).delete(Tables.CALLS,
+                Calls._ID + " IN (SELECT " + Calls._ID + " FROM " + Tables.CALLS +
+                " WHERE " + Calls.DATE + "<? AND " + DELETABLE_CALLS_SELECTION +
+                " ORDER BY " + Calls.DATE + " LIMIT " + EXPIRED_CALLS_BATCH_SIZE + ")",
+                new String[] {String.valueOf(expiryDate)});
+    }
 
+    /**
+     * Computes the geocoded locations of the numbers of the most recent calls, which are the
+     * numbers most likely to call again, so that the insertion helper has them cached.
+     */
+    private void warmUpInsertionHelper() {
+        final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        final Cursor c = db.query(Tables.CALLS, new String[] {Calls.NUMBER, Calls.COUNTRY_ISO},
+                null, null, null, null, Calls.DATE + " DESC", String.valueOf(WARM_UP_CALL_COUNT));
+        try {
+            while (c.moveToNext()) {
+                mCallLogInsertionHelper.getGeocodedLocationFor(c.getString(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
     }
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.PhoneLookup;
+
+import com.android.internal.util.ArrayUtils;
+import com.android.providers.contacts.util.LongSet;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of the results of {@link PhoneLookup} queries, i.e. of caller IDs.
+ *
+ * Entries are keyed by the normalized number, the current country and the phone number
+ * comparison mode (see {@link #buildKey}), and hold the matching rows for the columns in
+ * {@link #COLUMNS}.  Queries asking for other columns, or for a specific order, go to the
+ * database.
+ *
+ * An entry only depends on the matched contacts and raw contacts, and on the phone numbers
+ * sharing its min match.  When a transaction is committed, the provider passes what changed to
+ * {@link #invalidate}; operations that change contacts wholesale, such as account removals,
+ * {@link #clear} the cache instead.
+ *
+ * A query that reads the database while a transaction is being committed could see the data
+ * as it was before the commit, so entries are only added if no commit started or ended since
+ * the query read {@link #getGeneration}.
+ *
+ * The number of entries is bounded by {@link #MAX_ENTRIES}; the least recently used one is
+ * evicted first.
+ *
+ * This class is thread-safe.
+ */
+public class CallerIdCache {
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 64;
+
+    /**
+     * Maximum number of raw contacts changed by a transaction for which entries are
+     * invalidated one by one.  The cache is cleared after larger transactions, e.g. a sync.
+     */
+    public static final int MAX_INVALIDATED_RAW_CONTACTS = 500;
+
+    /** The columns held for each matching phone number. */
+    public static final String[] COLUMNS = new String[] {
+        PhoneLookup._ID,
+        PhoneLookup.LOOKUP_KEY,
+        PhoneLookup.DISPLAY_NAME,
+        PhoneLookup.PHOTO_ID,
+        PhoneLookup.PHOTO_URI,
+        PhoneLookup.PHOTO_THUMBNAIL_URI,
+        PhoneLookup.NUMBER,
+        PhoneLookup.TYPE,
+        PhoneLookup.LABEL,
+        PhoneLookup.NORMALIZED_NUMBER,
+    };
+
+    /**
+     * The columns a lookup reads to create an entry: {@link #COLUMNS} and the ID of the raw
+     * contact of each matching phone number, which is not returned to callers.
+     */
+    public static final String[] QUERY_COLUMNS =
+            ArrayUtils.appendElement(String.class, COLUMNS, Data.RAW_CONTACT_ID);
+
+    private static final int COLUMN_ID = 0;
+
+    private static final HashMap<String, Integer> sColumnIndexes = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sColumnIndexes.put(COLUMNS[i], i);
+        }
+    }
+
+    /**
+     * Separator used for in-memory structure.
+     */
+    private static final String SEPARATOR = "\u0001";
+
+    /**
+     * The matches of a phone number.
+     */
+    public static final class Entry {
+        private final Object[][] mRows;
+        private final long[] mContactIds;
+        private final Set<String> mMinMatches;
+        private final LongSet mRawContactIds = new LongSet();
+
+        /**
+         * Reads all rows of a cursor with the columns in {@link #QUERY_COLUMNS}.
+         *
+         * @param minMatches the min matches of the phone_lookup rows the query could match
+         */
+        public Entry(Cursor cursor, Set<String> minMatches) {
+            final int[] indexes = new int[COLUMNS.length];
+            for (int i = 0; i < COLUMNS.length; i++) {
+                indexes[i] = cursor.getColumnIndexOrThrow(COLUMNS[i]);
+            }
+            final int rawContactIdIndex = cursor.getColumnIndexOrThrow(Data.RAW_CONTACT_ID);
+
+            mRows = new Object[cursor.getCount()][];
+            mContactIds = new long[mRows.length];
+            cursor.moveToPosition(-1);
+            for (int row = 0; cursor.moveToNext(); row++) {
+                final Object[] values = new Object[COLUMNS.length];
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    switch (cursor.getType(indexes[i])) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[i] = cursor.getLong(indexes[i]);
+                            break;
+                        default:
+                            values[i] = cursor.getString(indexes[i]);
+                            break;
+                    }
+                }
+                mRows[row] = values;
+                mContactIds[row] = cursor.getLong(indexes[COLUMN_ID]);
+                mRawContactIds.add(cursor.getLong(rawContactIdIndex));
+            }
+            mMinMatches = minMatches;
+        }
+
+        /**
+         * Returns a cursor over the rows of the entry, with the given columns, all of which
+         * must be in {@link #COLUMNS}.
+         */
+        public MatrixCursor newCursor(String[] projection) {
+            final MatrixCursor cursor = new MatrixCursor(projection, mRows.length);
+            for (Object[] values : mRows) {
+                final MatrixCursor.RowBuilder builder = cursor.newRow();
+                for (String column : projection) {
+                    builder.add(values[sColumnIndexes.get(column)]);
+                }
+            }
+            return cursor;
+        }
+
+        private boolean isAffectedBy(LongSet rawContactIds, LongSet contactIds,
+                Set<String> minMatches) {
+            for (String minMatch : mMinMatches) {
+                if (minMatches.contains(minMatch)) {
+                    return true;
+                }
+            }
+            for (long contactId : mContactIds) {
+                if (contactIds.contains(contactId)) {
+                    return true;
+                }
+            }
+            // Other raw contacts of the matched contacts only matter through their contacts
+            for (int i = 0; i < mRawContactIds.size(); i++) {
+                if (rawContactIds.contains(mRawContactIds.get(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mCache =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        mEvictionCount++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private long mGeneration;
+    private boolean mCommitPending;
+
+    // Stats
+    private int mRequestCount;
+    private int mHitCount;
+    private int mInvalidatedCount;
+    private int mClearCount;
+    private int mEvictionCount;
+
+    /**
+     * Returns the key of the entry for a lookup.
+     *
+     * @param number the number as normalized by
+     *     {@link PhoneLookupWithStarPrefix#normalizeNumberWithStar}
+     */
+    public static String buildKey(String number, String countryIso,
+            String useStrictPhoneNumberComparison) {
+        return number + SEPARATOR + countryIso + SEPARATOR + useStrictPhoneNumberComparison;
+    }
+
+    /**
+     * Returns true if a query with the given projection can be answered from the cache.
+     */
+    public static boolean canServe(String[] projection) {
+        if (projection == null || projection.length == 0) {
+            return false;
+        }
+        for (String column : projection) {
+            if (!sColumnIndexes.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a cursor over the cached matches of a phone number, or null if they are not
+     * cached.
+     */
+    public synchronized Cursor get(String key, String[] projection) {
+        mRequestCount++;
+        final Entry entry = mCache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        mHitCount++;
+        return entry.newCursor(projection);
+    }
+
+    /**
+     * Returns the value to pass to {@link #put} for the results of a query started now.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Adds the matches of a phone number, unless the database may have changed since
+     * {@code generation} was read.
+     */
+    public synchronized void put(String key, long generation, Entry entry) {
+        if (mCommitPending || generation != mGeneration) {
+            return;
+        }
+        mCache.put(key, entry);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mCache.isEmpty();
+    }
+
+    /**
+     * Called when a transaction is about to be committed.  No entries are added until
+     * {@link #endCommit} is called.
+     */
+    public synchronized void beginCommit() {
+        mCommitPending = true;
+        mGeneration++;
+    }
+
+    /**
+     * Called once a transaction has been committed or rolled back.
+     */
+    public synchronized void endCommit() {
+        if (mCommitPending) {
+            mCommitPending = false;
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Removes the entries that may have changed.
+     *
+     * @param rawContactIds the changed raw contacts
+     * @param contactIds the contacts of the changed raw contacts, and other changed contacts
+     * @param minMatches the min matches of the phone numbers of the changed raw contacts
+     */
+    public synchronized void invalidate(LongSet rawContactIds, LongSet contactIds,
+            Set<String> minMatches) {
+        mGeneration++;
+        final Iterator<Entry> iterator = mCache.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isAffectedBy(rawContactIds, contactIds, minMatches)) {
+                iterator.remove();
+                mInvalidatedCount++;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mGeneration++;
+        if (!mCache.isEmpty()) {
+            mCache.clear();
+            mClearCount++;
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int getSize() {
+        return mCache.size();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.print("CallerIdCache stats:\n");
+        pw.printf("request=%d  hit=%d (%d%%)  entries=%d  invalidated=%d  cleared=%d"
+                + "  evicted=%d\n",
+                mRequestCount,
+                mHitCount,
+                mRequestCount == 0 ? 0 : mHitCount * 100 / mRequestCount,
+                mCache.size(),
+                mInvalidatedCount,
+                mClearCount,
+                mEvictionCount);
+    }
+}
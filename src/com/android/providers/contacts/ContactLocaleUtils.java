@@ -20,10 +20,12 @@ import android.provider.ContactsContract.FullNameStyle;
 import android.provider.ContactsContract.PhoneticNameStyle;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.providers.contacts.HanziToPinyin.Token;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.lang.Character.UnicodeBlock;
 import java.util.Arrays;
 import java.util.ArrayList;
@@ -336,9 +338,7 @@ public class ContactLocaleUtils {
                     TextUtils.equals(name, romajiName)) {
                 return null;
             }
-            final HashSet<String> keys = new HashSet<String>();
-            keys.add(romajiName);
-            return keys.iterator();
+            return Collections.singleton(romajiName).iterator();
         }
     }
 
@@ -369,50 +369,119 @@ public class ContactLocaleUtils {
         }
 
         public static Iterator<String> getPinyinNameLookupKeys(String name) {
-            // TODO : Reduce the object allocation.
-            HashSet<String> keys = new HashSet<String>();
-            ArrayList<Token> tokens = HanziToPinyin.getInstance().getTokens(name);
+            final HashSet<String> keys = new HashSet<String>();
+            sPinyinKeyBuilder.get().appendKeys(name, keys);
+            return keys.iterator();
+        }
+
+        private static final ThreadLocal<PinyinKeyBuilder> sPinyinKeyBuilder =
+                new ThreadLocal<PinyinKeyBuilder>() {
+                    @Override
+                    protected PinyinKeyBuilder initialValue() {
+                        return new PinyinKeyBuilder();
+                    }
+                };
+    }
+
+    /**
+     * Builds the pinyin name lookup keys of a name: for each suffix of its tokens, the original
+     * text, its pinyin and the initials of the pinyin.  There is no space among the Chinese
+     * characters, so the variant name lookup keys wouldn't work for Chinese; the original text
+     * is used to build the lookup keys for itself.
+     *
+     * The three keys of all suffixes are built at once, as one string each, from which the key
+     * of each suffix is a substring.  The buffers are reused from one name to the next.
+     */
+    private static class PinyinKeyBuilder {
+        private final HanziToPinyin.TokenBuffer mTokens = new HanziToPinyin.TokenBuffer();
+        private final StringBuilder mKeyOriginal = new StringBuilder();
+        private final StringBuilder mKeyPinyin = new StringBuilder();
+        private final StringBuilder mKeyInitial = new StringBuilder();
+        private int[] mOffsets = new int[24];
+
+        public void appendKeys(String name, Set<String> keys) {
+            final HanziToPinyin.TokenBuffer tokens = mTokens;
+            HanziToPinyin.getInstance().getTokens(name, tokens);
             final int tokenCount = tokens.size();
-            final StringBuilder keyPinyin = new StringBuilder();
-            final StringBuilder keyInitial = new StringBuilder();
-            // There is no space among the Chinese Characters, the variant name
-            // lookup key wouldn't work for Chinese. The keyOriginal is used to
-            // build the lookup keys for itself.
-            final StringBuilder keyOriginal = new StringBuilder();
-            for (int i = tokenCount - 1; i >= 0; i--) {
-                final Token token = tokens.get(i);
-                if (Token.UNKNOWN == token.type) {
+            if (mOffsets.length < tokenCount * 3) {
+                mOffsets = new int[tokenCount * 3];
+            }
+
+            int last = tokenCount - 1;
+            while (last >= 0 && tokens.getType(last) == Token.UNKNOWN) {
+                last--;
+            }
+
+            final CharSequence text = tokens.getText();
+            mKeyOriginal.setLength(0);
+            mKeyPinyin.setLength(0);
+            mKeyInitial.setLength(0);
+            for (int i = 0; i <= last; i++) {
+                final int type = tokens.getType(i);
+                if (type == Token.UNKNOWN) {
                     continue;
                 }
-                if (Token.PINYIN == token.type) {
-                    keyPinyin.insert(0, token.target);
-                    keyInitial.insert(0, token.target.charAt(0));
-                } else if (Token.LATIN == token.type) {
-                    // Avoid adding space at the end of String.
-                    if (keyPinyin.length() > 0) {
-                        keyPinyin.insert(0, ' ');
-                    }
-                    if (keyOriginal.length() > 0) {
-                        keyOriginal.insert(0, ' ');
+                mOffsets[i * 3] = mKeyOriginal.length();
+                mOffsets[i * 3 + 1] = mKeyPinyin.length();
+                mOffsets[i * 3 + 2] = mKeyInitial.length();
+
+                final int start = tokens.getStart(i);
+                final int end = tokens.getEnd(i);
+                mKeyOriginal.append(text, start, end);
+                if (type == Token.PINYIN) {
+                    final String pinyin = tokens.getPinyin(i);
+                    mKeyPinyin.append(pinyin);
+                    mKeyInitial.append(pinyin.charAt(0));
+                } else {
+                    mKeyPinyin.append(text, start, end);
+                    mKeyInitial.append(text.charAt(start));
+                    // Separate latin words from what follows, but avoid adding space at the end
+                    if (i != last) {
+                        mKeyOriginal.append(' ');
+                        mKeyPinyin.append(' ');
                     }
-                    keyPinyin.insert(0, token.source);
-                    keyInitial.insert(0, token.source.charAt(0));
                 }
-                keyOriginal.insert(0, token.source);
-                keys.add(keyOriginal.toString());
-                keys.add(keyPinyin.toString());
-                keys.add(keyInitial.toString());
             }
-            return keys.iterator();
+
+            for (int i = 0; i <= last; i++) {
+                if (tokens.getType(i) == Token.UNKNOWN) {
+                    continue;
+                }
+                keys.add(mKeyOriginal.substring(mOffsets[i * 3]));
+                keys.add(mKeyPinyin.substring(mOffsets[i * 3 + 1]));
+                keys.add(mKeyInitial.substring(mOffsets[i * 3 + 2]));
+            }
         }
     }
 
     private static final String JAPANESE_LANGUAGE = Locale.JAPANESE.getLanguage().toLowerCase();
 
+    /** Number of distinct leading name tokens whose bucket index is remembered. */
+    @VisibleForTesting
+    static final int BUCKET_CACHE_SIZE = 2000;
+
+    /** Number of distinct names whose name lookup keys are remembered. */
+    @VisibleForTesting
+    static final int NAME_LOOKUP_KEY_CACHE_SIZE = 500;
+
+    private static final String[] NO_NAME_LOOKUP_KEYS = new String[0];
+
     private static ContactLocaleUtils sSingleton;
 
     private final LocaleSet mLocales;
     private final ContactLocaleUtilsBase mUtils;
+    private final String[] mBucketLabels;
+
+    /*
+     * Names recur a lot in an address book, so the results of AlphabeticIndex and of the
+     * transliterators are memoized.  A new instance is created when the locales change, and the
+     * ICU version cannot change while the process is running, so the caches never need to be
+     * invalidated.
+     */
+    private final LruCache<String, Integer> mBucketIndexCache =
+            new LruCache<String, Integer>(BUCKET_CACHE_SIZE);
+    private final LruCache<String, String[]> mNameLookupKeyCache =
+            new LruCache<String, String[]>(NAME_LOOKUP_KEY_CACHE_SIZE);
 
     private ContactLocaleUtils(LocaleSet locales) {
         if (locales == null) {
@@ -427,8 +496,10 @@ public class ContactLocaleUtils {
         } else {
             mUtils = new ContactLocaleUtilsBase(mLocales);
         }
+        final ArrayList<String> labels = mUtils.getLabels();
+        mBucketLabels = labels.toArray(new String[labels.size()]);
         Log.i(TAG, "AddressBook Labels [" + mLocales.toString() + "]: "
-                + getLabels().toString());
+                + labels.toString());
     }
 
     public boolean isLocale(LocaleSet locales) {
@@ -457,8 +528,30 @@ public class ContactLocaleUtils {
         return mUtils.getSortKey(name);
     }
 
+    /**
+     * Returns the bucket index for the specified string.
+     *
+     * The result is memoized by the first word of the name when it starts with a letter: a
+     * name sorts in the same bucket as its first word, because no bucket boundary falls between
+     * a word and the same word followed by a space.
+     */
     public int getBucketIndex(String name) {
-        return mUtils.getBucketIndex(name);
+        final String key = getBucketCacheKey(name);
+        final Integer cached = mBucketIndexCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final int bucketIndex = mUtils.getBucketIndex(key);
+        mBucketIndexCache.put(key, bucketIndex);
+        return bucketIndex;
+    }
+
+    private static String getBucketCacheKey(String name) {
+        final int space = name.indexOf(' ');
+        if (space > 0 && Character.isLetter(name.codePointAt(0))) {
+            return name.substring(0, space);
+        }
+        return name;
     }
 
     public int getBucketCount() {
@@ -466,7 +559,10 @@ public class ContactLocaleUtils {
     }
 
     public String getBucketLabel(int bucketIndex) {
-        return mUtils.getBucketLabel(bucketIndex);
+        if (bucketIndex < 0 || bucketIndex >= mBucketLabels.length) {
+            return "";
+        }
+        return mBucketLabels[bucketIndex];
     }
 
     public String getLabel(String name) {
@@ -474,7 +570,7 @@ public class ContactLocaleUtils {
     }
 
     public ArrayList<String> getLabels() {
-        return mUtils.getLabels();
+        return new ArrayList<String>(Arrays.asList(mBucketLabels));
     }
 
     /**
@@ -490,6 +586,27 @@ public class ContactLocaleUtils {
      *  b. For Simplified Chinese locale, generate Pinyin lookup keys.
      */
     public Iterator<String> getNameLookupKeys(String name, int nameStyle) {
+        final String key = nameStyle + ":" + name;
+        String[] keys = mNameLookupKeyCache.get(key);
+        if (keys == null) {
+            keys = toArray(computeNameLookupKeys(name, nameStyle));
+            mNameLookupKeyCache.put(key, keys);
+        }
+        return keys == NO_NAME_LOOKUP_KEYS ? null : Arrays.asList(keys).iterator();
+    }
+
+    private static String[] toArray(Iterator<String> it) {
+        if (it == null || !it.hasNext()) {
+            return NO_NAME_LOOKUP_KEYS;
+        }
+        final ArrayList<String> keys = new ArrayList<String>();
+        while (it.hasNext()) {
+            keys.add(it.next());
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    private Iterator<String> computeNameLookupKeys(String name, int nameStyle) {
         if (!mLocales.isPrimaryLocaleCJK()) {
             if (mLocales.isSecondaryLocaleSimplifiedChinese()) {
                 if (nameStyle == FullNameStyle.CHINESE ||
@@ -505,4 +622,29 @@ public class ContactLocaleUtils {
         return mUtils.getNameLookupKeys(name, nameStyle);
     }
 
+    public void dump(PrintWriter pw) {
+        pw.print("ContactLocaleUtils stats [" + mLocales + "]:\n");
+        pw.print(getCacheStats());
+        pw.print("\n");
+    }
+
+    /**
+     * Returns the request and hit counts of the memoized bucket indexes and name lookup keys.
+     */
+    public String getCacheStats() {
+        return formatCacheStats("bucket", mBucketIndexCache) + "  "
+                + formatCacheStats("nameLookupKeys", mNameLookupKeyCache);
+    }
+
+    private static String formatCacheStats(String name, LruCache<?, ?> cache) {
+        final int hits = cache.hitCount();
+        final int requests = hits + cache.missCount();
+        return String.format("%s: request=%d hit=%d (%d%%) entries=%d evicted=%d",
+                name,
+                requests,
+                hits,
+                requests == 0 ? 0 : (int) ((long) hits * 100 / requests),
+                cache.size(),
+                cache.evictionCount());
+    }
 }
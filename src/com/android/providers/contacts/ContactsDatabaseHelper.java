@@ -80,9 +80,11 @@ import android.util.Log;
 
 import com.android.common.content.SyncStateContentProviderHelper;
 import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
+import com.android.providers.contacts.aggregation.util.NameLookupIndex;
 import com.android.providers.contacts.database.ContactsTableUtil;
 import com.android.providers.contacts.database.DeletedContactsTableUtil;
 import com.android.providers.contacts.database.MoreDatabaseUtils;
+import com.android.providers.contacts.util.LongSet;
 import com.android.providers.contacts.util.NeededForTesting;
 
 import com.google.android.collect.Sets;
@@ -119,7 +121,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      *   900-999 L
      * </pre>
      */
-    static final int DATABASE_VERSION = 910;
+    static final int DATABASE_VERSION = 914;
 
     public interface Tables {
         public static final String CONTACTS = "contacts";
@@ -147,6 +149,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String DIRECTORIES = "directories";
         public static final String DEFAULT_DIRECTORY = "default_directory";
         public static final String SEARCH_INDEX = "search_index";
+        public static final String SEARCH_INDEX_FRAGMENTS = "search_index_fragments";
         public static final String VOICEMAIL_STATUS = "voicemail_status";
 
         // This list of tables contains auto-incremented sequences.
@@ -315,6 +318,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     public interface DbProperties {
         String DIRECTORY_SCAN_COMPLETE = "directoryScanComplete";
         String AGGREGATION_ALGORITHM = "aggregation_v2";
+        String AGGREGATION_UPGRADE_PROGRESS = "aggregation_upgrade_progress";
+        String AGGREGATION_UPGRADE_FAILURES = "aggregation_upgrade_failures";
         String KNOWN_ACCOUNTS = "known_accounts";
         String ICU_VERSION = "icu_version";
         String LOCALE = "locale";
@@ -530,6 +535,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String RAW_CONTACT_ID = "raw_contact_id";
         public static final String NORMALIZED_NUMBER = "normalized_number";
         public static final String MIN_MATCH = "min_match";
+        /** The normalized number written backwards, used for suffix matching. */
+        public static final String REVERSED_NUMBER = "reversed_number";
     }
 
     public interface NameLookupColumns {
@@ -675,6 +682,36 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String TOKENS = "tokens";
     }
 
+    /**
+     * Searchable content of a single data row, from which the search index row of its
+     * contact can be rebuilt without reading the contact's other data rows.
+     */
+    public interface SearchIndexFragmentsColumns {
+        public static final String DATA_ID = "data_id";
+        public static final String CONCRETE_DATA_ID = Tables.SEARCH_INDEX_FRAGMENTS + "." + DATA_ID;
+
+        public static final String CONTENT = "content";
+        public static final String CONCRETE_CONTENT = Tables.SEARCH_INDEX_FRAGMENTS + "." + CONTENT;
+
+        public static final String NAME = "name";
+        public static final String CONCRETE_NAME = Tables.SEARCH_INDEX_FRAGMENTS + "." + NAME;
+
+        public static final String TOKENS = "tokens";
+        public static final String CONCRETE_TOKENS = Tables.SEARCH_INDEX_FRAGMENTS + "." + TOKENS;
+    }
+
+    /**
+     * Private columns of the call log, which are not exposed by {@link CallLogProvider}.
+     */
+    public interface CallsColumns {
+        /**
+         * The min match of {@link Calls#NUMBER}, see
+         * {@link PhoneNumberUtils#toCallerIDMinMatch}.  Numbers that are equal by
+         * PHONE_NUMBERS_EQUAL() have the same min match.
+         */
+        public static final String MIN_MATCH = "min_match";
+    }
+
     /**
      * Private table for calculating per-contact-method ranking.
      */
@@ -854,6 +891,80 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final int PHONETIC_NAME_STYLE = 12;               // data11
     }
 
+    /**
+     * The columns of {@link RawContactNameQuery} for a batch of raw contacts, followed by the
+     * raw contact ID.  Raw contacts without any name-bearing data rows are returned once, with
+     * null data columns.
+     */
+    private interface RawContactNameBatchQuery {
+        public static final String SELECT =
+                "SELECT "
+                        + DataColumns.MIMETYPE_ID + ","
+                        + Data.IS_PRIMARY + ","
+                        + Data.DATA1 + ","
+                        + Data.DATA2 + ","
+                        + Data.DATA3 + ","
+                        + Data.DATA4 + ","
+                        + Data.DATA5 + ","
+                        + Data.DATA6 + ","
+                        + Data.DATA7 + ","
+                        + Data.DATA8 + ","
+                        + Data.DATA9 + ","
+                        + Data.DATA10 + ","
+                        + Data.DATA11 + ","
+                        + "rc." + RawContacts._ID +
+                " FROM (";
+
+        public static final String JOIN =
+                ") AS rc" +
+                " LEFT OUTER JOIN " + Tables.DATA +
+                        " ON (" + Data.RAW_CONTACT_ID + "=rc." + RawContacts._ID +
+                        " AND (" + Data.DATA1 + " NOT NULL OR " +
+                                Data.DATA8 + " NOT NULL OR " +
+                                Data.DATA9 + " NOT NULL OR " +
+                                Data.DATA10 + " NOT NULL OR " +  // Phonetic name not empty
+                                Organization.TITLE + " NOT NULL))" +
+                " ORDER BY rc." + RawContacts._ID + "," + DataColumns.CONCRETE_ID;
+
+        /** The raw contacts following the given ID. */
+        public static final String RAW_SQL =
+                SELECT +
+                "SELECT " + RawContacts._ID + " FROM " + Tables.RAW_CONTACTS +
+                " WHERE " + RawContacts._ID + ">?" +
+                " ORDER BY " + RawContacts._ID +
+                " LIMIT " + SORT_KEY_REBUILD_BATCH_SIZE +
+                JOIN;
+
+        /** The raw contacts in an ID set, see {@link #getIdSetSql}. */
+        public static final String ID_SET_SELECT =
+                SELECT +
+                "SELECT " + RawContacts._ID + " FROM " + Tables.RAW_CONTACTS +
+                " WHERE " + RawContacts._ID + " IN (";
+
+        public static final String ID_SET_JOIN = ")" + JOIN;
+
+        public static final int RAW_CONTACT_ID = 13;
+    }
+
+    /**
+     * The best display name found so far among the data rows of a raw contact.
+     */
+    private static final class DisplayNameCandidate {
+        int source;
+        NameSplitter.Name name;
+        String displayName;
+        String phoneticName;
+        int phoneticNameStyle;
+
+        void clear() {
+            source = DisplayNameSources.UNDEFINED;
+            name = null;
+            displayName = null;
+            phoneticName = null;
+            phoneticNameStyle = PhoneticNameStyle.UNDEFINED;
+        }
+    }
+
     private interface Organization205Query {
         String TABLE = Tables.DATA_JOIN_RAW_CONTACTS;
         String COLUMNS[] = {
@@ -920,6 +1031,31 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "contacts2.db";
     private static final String DATABASE_PRESENCE = "presence_db";
 
+    /** Number of raw contacts whose names are read at once by {@link #rebuildSortKeys}. */
+    private static final int SORT_KEY_REBUILD_BATCH_SIZE = 500;
+
+    /**
+     * Temporary table of IDs, with a single {@link BaseColumns#_ID} column, that statements
+     * applying to a large set of rows can join with instead of listing the IDs, see
+     * {@link #getIdSetSql}.  It only exists on the writable connection.
+     */
+    public static final String TEMP_ID_SET = "temp.id_set";
+
+    /**
+     * Number of IDs above which {@link #getIdSetSql} loads them into {@link #TEMP_ID_SET}.
+     * Listing a few IDs in a statement is cheaper than inserting them into the table one by one
+     * and deleting them again, which is the common case of a commit touching a few raw contacts.
+     */
+    @VisibleForTesting
+    static final int MAX_INLINE_ID_SET_SIZE = 100;
+
+    /**
+     * Temporary table that call log entries copied from the primary user are staged in, with the
+     * synced columns of {@link Tables#CALLS}, before the new ones are inserted into it at once.
+     * It only exists on the writable connection.
+     */
+    public static final String TEMP_CALL_LOG_SYNC = "temp.call_log_sync";
+
     private static ContactsDatabaseHelper sSingleton = null;
 
     /** In-memory cache of previously found MIME-type mappings */
@@ -960,12 +1096,14 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
     private SQLiteStatement mNameLookupInsert;
     private SQLiteStatement mNameLookupDelete;
+    private SQLiteStatement mPhoneLookupInsert;
     private SQLiteStatement mStatusUpdateAutoTimestamp;
     private SQLiteStatement mStatusUpdateInsert;
     private SQLiteStatement mStatusUpdateReplace;
     private SQLiteStatement mStatusAttributionUpdate;
     private SQLiteStatement mStatusUpdateDelete;
     private SQLiteStatement mResetNameVerifiedForOtherRawContacts;
+    private SQLiteStatement mTempIdSetInsert;
     private SQLiteStatement mContactInDefaultDirectoryQuery;
 
     private StringBuilder mSb = new StringBuilder();
@@ -974,9 +1112,13 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
     private String[] mSelectionArgs1 = new String[1];
     private NameSplitter.Name mName = new NameSplitter.Name();
+    private final DisplayNameCandidate mDisplayNameCandidate = new DisplayNameCandidate();
     private CharArrayBuffer mCharArrayBuffer = new CharArrayBuffer(128);
     private NameSplitter mNameSplitter;
 
+    /** In-memory copy of {@link Tables#NAME_LOOKUP}, loaded by the aggregator when needed. */
+    private final NameLookupIndex mNameLookupIndex = new NameLookupIndex();
+
     public static synchronized ContactsDatabaseHelper getInstance(Context context) {
         if (sSingleton == null) {
             sSingleton = new ContactsDatabaseHelper(context, DATABASE_NAME, true);
@@ -1027,6 +1169,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         mSetSuperPrimaryStatement = null;
         mNameLookupInsert = null;
         mNameLookupDelete = null;
+        mPhoneLookupInsert = null;
         mDataMimetypeQuery = null;
         mContactIdQuery = null;
         mAggregationModeQuery = null;
@@ -1143,6 +1286,30 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 + " BEGIN "
                 + replaceAggregatePresenceSql
                 + " END");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TEMP_ID_SET + " (" +
+                BaseColumns._ID + " INTEGER PRIMARY KEY" +
+        ");");
+        mTempIdSetInsert = null;
+
+        // The primary key drops duplicates within the staged entries, and the defaults are the
+        // same as in the calls table
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TEMP_CALL_LOG_SYNC + " (" +
+                Calls.NUMBER + " TEXT NOT NULL," +
+                Calls.NUMBER_PRESENTATION + " INTEGER NOT NULL DEFAULT " +
+                        Calls.PRESENTATION_ALLOWED + "," +
+                Calls.TYPE + " INTEGER," +
+                Calls.FEATURES + " INTEGER NOT NULL DEFAULT 0," +
+                Calls.DATE + " INTEGER NOT NULL," +
+                Calls.DURATION + " INTEGER," +
+                Calls.DURATION_TYPE + " INTEGER NOT NULL DEFAULT " +
+                        Calls.DURATION_TYPE_ACTIVE + "," +
+                Calls.DATA_USAGE + " INTEGER," +
+                Calls.PHONE_ACCOUNT_COMPONENT_NAME + " TEXT," +
+                Calls.PHONE_ACCOUNT_ID + " TEXT," +
+                CallsColumns.MIN_MATCH + " TEXT," +
+                "PRIMARY KEY (" + Calls.DATE + ", " + Calls.NUMBER + ")" +
+        ");");
     }
 
     @Override
@@ -1350,7 +1517,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 PhoneLookupColumns.RAW_CONTACT_ID
                         + " INTEGER REFERENCES raw_contacts(_id) NOT NULL," +
                 PhoneLookupColumns.NORMALIZED_NUMBER + " TEXT NOT NULL," +
-                PhoneLookupColumns.MIN_MATCH + " TEXT NOT NULL" +
+                PhoneLookupColumns.MIN_MATCH + " TEXT NOT NULL," +
+                PhoneLookupColumns.REVERSED_NUMBER + " TEXT" +
         ");");
 
         db.execSQL("CREATE INDEX phone_lookup_index ON " + Tables.PHONE_LOOKUP + " (" +
@@ -1368,6 +1536,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE INDEX phone_lookup_data_id_min_match_index ON " + Tables.PHONE_LOOKUP +
                 " (" + PhoneLookupColumns.DATA_ID + ", " + PhoneLookupColumns.MIN_MATCH + ");");
 
+        createPhoneLookupReversedNumberIndex(db);
+
         // Private name/nickname table used for lookup.
         db.execSQL("CREATE TABLE " + Tables.NAME_LOOKUP + " (" +
                 NameLookupColumns.DATA_ID
@@ -1502,9 +1672,13 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 Voicemails.SOURCE_DATA + " TEXT," +
                 Voicemails.SOURCE_PACKAGE + " TEXT," +
                 Voicemails.TRANSCRIPTION + " TEXT," +
-                Voicemails.STATE + " INTEGER" +
+                Voicemails.STATE + " INTEGER," +
+                CallsColumns.MIN_MATCH + " TEXT" +
         ");");
 
+        createCallsIndexes(db);
+        createCallsMinMatchIndex(db);
+
         // Voicemail source status table.
         db.execSQL("CREATE TABLE " + Tables.VOICEMAIL_STATUS + " (" +
                 VoicemailContract.Status._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -1611,11 +1785,23 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     + SearchIndexColumns.NAME + " TEXT, "
                     + SearchIndexColumns.TOKENS + " TEXT"
                 + ")");
+        createSearchIndexFragmentsTable(db);
         if (rebuildSqliteStats) {
             updateSqliteStats(db);
         }
     }
 
+    private void createSearchIndexFragmentsTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.SEARCH_INDEX_FRAGMENTS);
+        db.execSQL("CREATE TABLE " + Tables.SEARCH_INDEX_FRAGMENTS + " ("
+                + SearchIndexFragmentsColumns.DATA_ID + " INTEGER PRIMARY KEY"
+                        + " REFERENCES data(_id) NOT NULL,"
+                + SearchIndexFragmentsColumns.CONTENT + " TEXT, "
+                + SearchIndexFragmentsColumns.NAME + " TEXT, "
+                + SearchIndexFragmentsColumns.TOKENS + " TEXT"
+                + ");");
+    }
+
     private void createContactsTriggers(SQLiteDatabase db) {
 
         // Automatically delete Data rows when a raw contact is deleted.
@@ -1688,6 +1874,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 + "     WHERE " + StatusUpdatesColumns.DATA_ID + "=OLD." + Data._ID + ";"
                 + "   DELETE FROM " + Tables.NAME_LOOKUP
                 + "     WHERE " + NameLookupColumns.DATA_ID + "=OLD." + Data._ID + ";"
+                + "   DELETE FROM " + Tables.SEARCH_INDEX_FRAGMENTS
+                + "     WHERE " + SearchIndexFragmentsColumns.DATA_ID + "=OLD." + Data._ID + ";"
                 + " END");
 
 
@@ -2814,6 +3002,31 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             oldVersion = 910;
         }
 
+        if (oldVersion < 911) {
+            // Search index fragments are populated by the search index rebuild.
+            upgradeViewsAndTriggers = true;
+            upgradeSearchIndex = true;
+            oldVersion = 911;
+        }
+
+        if (oldVersion < 912) {
+            upgradeToVersion912(db);
+            rebuildSqliteStats = true;
+            oldVersion = 912;
+        }
+
+        if (oldVersion < 913) {
+            createCallsIndexes(db);
+            rebuildSqliteStats = true;
+            oldVersion = 913;
+        }
+
+        if (oldVersion < 914) {
+            upgradeToVersion914(db);
+            rebuildSqliteStats = true;
+            oldVersion = 914;
+        }
+
         if (upgradeViewsAndTriggers) {
             createContactsViews(db);
             createGroupsView(db);
@@ -3339,6 +3552,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     private void rebuildSearchIndex(SQLiteDatabase db, boolean rebuildSqliteStats) {
         createSearchIndexTable(db, rebuildSqliteStats);
         setProperty(db, SearchIndexManager.PROPERTY_SEARCH_INDEX_VERSION, "0");
+        setProperty(db, SearchIndexManager.PROPERTY_SEARCH_INDEX_REBUILD_PROGRESS, "");
     }
 
     /**
@@ -3369,6 +3583,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         initializeCache(db);
         rebuildLocaleData(db, locales, rebuildSqliteStats);
         Log.i(TAG, "Locale update completed in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        Log.i(TAG, ContactLocaleUtils.getInstance().getCacheStats());
     }
 
     private void rebuildLocaleData(SQLiteDatabase db, LocaleSet locales, boolean rebuildSqliteStats) {
@@ -3412,25 +3627,67 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         }
 
         Log.i(TAG, "Locale change completed in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        Log.i(TAG, ContactLocaleUtils.getInstance().getCacheStats());
     }
 
     /**
-     * Regenerates sort keys for all contacts.
+     * Regenerates display names and sort keys for all contacts.  Raw contacts are read with
+     * their name-bearing data rows in batches of {@link #SORT_KEY_REBUILD_BATCH_SIZE}, rather
+     * than with one query per raw contact.
      */
     private void rebuildSortKeys(SQLiteDatabase db) {
-        Cursor cursor = db.query(Tables.RAW_CONTACTS, new String[] {RawContacts._ID},
-                null, null, null, null, null);
+        if (mNameSplitter == null) {
+            createNameSplitter();
+        }
+
+        final DisplayNameCandidate best = new DisplayNameCandidate();
+        final String[] args = new String[1];
+        long lastRawContactId = 0;
+        while (true) {
+            args[0] = String.valueOf(lastRawContactId);
+            final long rawContactId = updateRawContactDisplayNames(db,
+                    db.rawQuery(RawContactNameBatchQuery.RAW_SQL, args), best);
+            if (rawContactId == -1) {
+                break;
+            }
+            lastRawContactId = rawContactId;
+        }
+    }
+
+    /**
+     * Updates the display names of the raw contacts read by a {@link RawContactNameBatchQuery},
+     * and closes the cursor.
+     *
+     * @return the ID of the last raw contact, or -1 if the cursor was empty
+     */
+    private long updateRawContactDisplayNames(SQLiteDatabase db, Cursor c,
+            DisplayNameCandidate best) {
+        long rawContactId = -1;
         try {
-            while (cursor.moveToNext()) {
-                long rawContactId = cursor.getLong(0);
-                updateRawContactDisplayName(db, rawContactId);
+            while (c.moveToNext()) {
+                final long id = c.getLong(RawContactNameBatchQuery.RAW_CONTACT_ID);
+                if (id != rawContactId) {
+                    if (rawContactId != -1) {
+                        updateRawContactDisplayName(db, rawContactId, best);
+                    }
+                    rawContactId = id;
+                    best.clear();
+                }
+                if (!c.isNull(RawContactNameQuery.MIMETYPE)) {
+                    addDisplayNameCandidate(best, c);
+                }
             }
         } finally {
-            cursor.close();
+            c.close();
         }
+        if (rawContactId != -1) {
+            updateRawContactDisplayName(db, rawContactId, best);
+        }
+        return rawContactId;
     }
 
     private void insertNameLookup(SQLiteDatabase db) {
+        mNameLookupIndex.invalidate();
         db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP);
 
         SQLiteStatement nameLookupInsert = db.compileStatement(
@@ -4237,6 +4494,110 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Adds the reversed normalized number to phone_lookup, so that suffix matches of phone
+     * numbers can be found with an index range instead of substr() comparisons.
+     */
+    private void upgradeToVersion912(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + Tables.PHONE_LOOKUP +
+                " ADD " + PhoneLookupColumns.REVERSED_NUMBER + " TEXT;");
+        createPhoneLookupReversedNumberIndex(db);
+
+        SQLiteStatement update = db.compileStatement(
+                "UPDATE " + Tables.PHONE_LOOKUP +
+                " SET " + PhoneLookupColumns.REVERSED_NUMBER + "=?" +
+                " WHERE _rowid_=?");
+
+        // SQLite has no reverse(), so populate the new column here
+        Cursor c = db.query(Tables.PHONE_LOOKUP,
+                new String[] {"_rowid_", PhoneLookupColumns.NORMALIZED_NUMBER},
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                update.bindString(1, reverseNumber(c.getString(1)));
+                update.bindLong(2, c.getLong(0));
+                update.execute();
+            }
+        } finally {
+            c.close();
+            update.close();
+        }
+    }
+
+    private void createPhoneLookupReversedNumberIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX phone_lookup_reversed_number_index ON " + Tables.PHONE_LOOKUP +
+                " (" + PhoneLookupColumns.MIN_MATCH + ", " + PhoneLookupColumns.REVERSED_NUMBER +
+                ");");
+    }
+
+    /**
+     * Returns the given normalized phone number written backwards, as stored in
+     * {@link PhoneLookupColumns#REVERSED_NUMBER}.  A number matches the suffix of another one
+     * if its reversed form is a prefix of the other's reversed form.
+     */
+    public static String reverseNumber(String normalizedNumber) {
+        return new StringBuilder(normalizedNumber).reverse().toString();
+    }
+
+    /**
+     * Creates the indexes of the call log.  Each one also holds the row ID, i.e.
+     * {@link Calls#_ID}, after its columns.
+     *
+     * - calls_date_index serves the call log in {@link Calls#DEFAULT_SORT_ORDER} and its pages
+     *   after a given (date, _id) key without sorting, see {@link CallLogProvider#query}.
+     * - calls_type_date_index does the same for the call log filtered by call type, and covers
+     *   the number of the last call of a type, e.g. {@link Calls#getLastOutgoingCall}.
+     */
+    private void createCallsIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS calls_date_index ON " + Tables.CALLS + " (" +
+                Calls.DATE +
+        ");");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS calls_type_date_index ON " + Tables.CALLS + " (" +
+                Calls.TYPE + "," +
+                Calls.DATE + "," +
+                Calls.NUMBER +
+        ");");
+    }
+
+    /**
+     * Adds the min match of the number to the call log, so that the calls with a given number
+     * can be found with an index instead of evaluating PHONE_NUMBERS_EQUAL() on every call.
+     */
+    private void upgradeToVersion914(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + Tables.CALLS +
+                " ADD " + CallsColumns.MIN_MATCH + " TEXT;");
+        createCallsMinMatchIndex(db);
+
+        SQLiteStatement update = db.compileStatement(
+                "UPDATE " + Tables.CALLS +
+                " SET " + CallsColumns.MIN_MATCH + "=?" +
+                " WHERE " + Calls._ID + "=?");
+
+        // Populate the new column
+        Cursor c = db.query(Tables.CALLS, new String[] {Calls._ID, Calls.NUMBER},
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                String number = c.getString(1);
+                if (!TextUtils.isEmpty(number)) {
+                    update.bindString(1, PhoneNumberUtils.toCallerIDMinMatch(number));
+                    update.bindLong(2, c.getLong(0));
+                    update.execute();
+                }
+            }
+        } finally {
+            c.close();
+            update.close();
+        }
+    }
+
+    private void createCallsMinMatchIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX calls_min_match_index ON " + Tables.CALLS + " (" +
+                CallsColumns.MIN_MATCH +
+        ");");
+    }
+
     /**
      * Delete any remaining rows in the calls table if the user is a profile of another user.
      * b/17096027
@@ -4392,6 +4753,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     "phone_lookup_min_match_index", "3500 3 2 2");
             updateIndexStats(db, Tables.PHONE_LOOKUP,
                     "phone_lookup_data_id_min_match_index", "3500 2 2");
+            updateIndexStats(db, Tables.PHONE_LOOKUP,
+                    "phone_lookup_reversed_number_index", "3500 3 1");
 
             updateIndexStats(db, Tables.DATA,
                     "data_mimetype_data1_index", "60000 5000 2");
@@ -4406,6 +4769,12 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
             updateIndexStats(db, Tables.CALLS,
                     null, "250");
+            updateIndexStats(db, Tables.CALLS,
+                    "calls_date_index", "250 1");
+            updateIndexStats(db, Tables.CALLS,
+                    "calls_type_date_index", "250 60 1 1");
+            updateIndexStats(db, Tables.CALLS,
+                    "calls_min_match_index", "250 3");
 
             updateIndexStats(db, Tables.STATUS_UPDATES,
                     null, "100");
@@ -4499,6 +4868,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      */
     public void wipeData() {
         SQLiteDatabase db = getWritableDatabase();
+        mNameLookupIndex.invalidate();
 
         db.execSQL("DELETE FROM " + Tables.ACCOUNTS + ";");
         db.execSQL("DELETE FROM " + Tables.CONTACTS + ";");
@@ -4515,6 +4885,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DELETE FROM " + Tables.CALLS + ";");
         db.execSQL("DELETE FROM " + Tables.DIRECTORIES + ";");
         db.execSQL("DELETE FROM " + Tables.SEARCH_INDEX + ";");
+        db.execSQL("DELETE FROM " + Tables.SEARCH_INDEX_FRAGMENTS + ";");
         db.execSQL("DELETE FROM " + Tables.DELETED_CONTACTS + ";");
         db.execSQL("DELETE FROM " + Tables.MIMETYPES + ";");
         db.execSQL("DELETE FROM " + Tables.PACKAGES + ";");
@@ -4734,6 +5105,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
         mMimetypeCache.clear();
         mPackageCache.clear();
+        mNameLookupIndex.invalidate();
     }
 
     /**
@@ -4896,8 +5268,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             db.execSQL("DELETE FROM " + Tables.DEFAULT_DIRECTORY +
                         " WHERE " + Contacts._ID + "=?",
                     new String[] {contactIdAsString});
-            db.execSQL("DELETE FROM " + Tables.SEARCH_INDEX +
-                        " WHERE " + SearchIndexColumns.CONTACT_ID + "=CAST(? AS int)",
+            // The docid of a search index row is its contact ID.
+            db.execSQL("DELETE FROM " + Tables.SEARCH_INDEX + " WHERE docid=CAST(? AS int)",
                     new String[] {contactIdAsString});
         }
         return true;
@@ -4985,13 +5357,12 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     public void buildPhoneLookupAndContactQuery(
             SQLiteQueryBuilder qb, String normalizedNumber, String numberE164) {
 
-        String minMatch = PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber);
         StringBuilder sb = new StringBuilder();
-        appendPhoneLookupTables(sb, minMatch, true);
+        appendPhoneLookupTables(sb, normalizedNumber, numberE164, true);
         qb.setTables(sb.toString());
 
         sb = new StringBuilder();
-        appendPhoneLookupSelection(sb, normalizedNumber, numberE164);
+        appendPhoneLookupSelection(sb);
         qb.appendWhere(sb.toString());
     }
 
@@ -5047,17 +5418,16 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
     public String buildPhoneLookupAsNestedQuery(String number) {
         StringBuilder sb = new StringBuilder();
-        final String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
         sb.append("(SELECT DISTINCT raw_contact_id" + " FROM ");
-        appendPhoneLookupTables(sb, minMatch, false);
+        appendPhoneLookupTables(sb, number, null, false);
         sb.append(" WHERE ");
-        appendPhoneLookupSelection(sb, number, null);
+        appendPhoneLookupSelection(sb);
         sb.append(")");
         return sb.toString();
     }
 
-    private void appendPhoneLookupTables(
-            StringBuilder sb, final String minMatch, boolean joinContacts) {
+    private void appendPhoneLookupTables(StringBuilder sb, String number, String numberE164,
+            boolean joinContacts) {
 
         sb.append(Tables.RAW_CONTACTS);
         if (joinContacts) {
@@ -5065,20 +5435,37 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     + " ON (contacts_view._id = raw_contacts.contact_id)");
         }
         sb.append(", (SELECT data_id, normalized_number, length(normalized_number) as len "
-                + " FROM phone_lookup " + " WHERE (" + Tables.PHONE_LOOKUP + "."
-                + PhoneLookupColumns.MIN_MATCH + " = '");
-        sb.append(minMatch);
-        sb.append("')) AS lookup, " + Tables.DATA);
+                + " FROM phone_lookup " + " WHERE ");
+        appendPhoneLookupNumberSelection(sb, number, numberE164);
+        sb.append(") AS lookup, " + Tables.DATA);
     }
 
-    private void appendPhoneLookupSelection(StringBuilder sb, String number, String numberE164) {
+    private void appendPhoneLookupSelection(StringBuilder sb) {
         sb.append("lookup.data_id=data._id AND data.raw_contact_id=raw_contacts._id");
+    }
+
+    /**
+     * Appends the selection of phone_lookup rows matching the given number.  A row matches if
+     * it has the same min match and either its number is the given E164 number, or one of the
+     * numbers is a suffix of the other.
+     *
+     * Suffix matches are expressed on the reversed number, where they become prefix matches
+     * that can be resolved with the (min_match, reversed_number) index: rows whose number is a
+     * suffix of the given one have one of the prefixes of its reversed form, and rows whose
+     * number ends with the given one sort right after its reversed form.
+     */
+    private void appendPhoneLookupNumberSelection(StringBuilder sb, String number,
+            String numberE164) {
+        sb.append(PhoneLookupColumns.MIN_MATCH + " = '");
+        sb.append(PhoneNumberUtils.toCallerIDMinMatch(number));
+        sb.append('\'');
+
         boolean hasNumberE164 = !TextUtils.isEmpty(numberE164);
         boolean hasNumber = !TextUtils.isEmpty(number);
         if (hasNumberE164 || hasNumber) {
-            sb.append(" AND ( ");
+            sb.append(" AND (");
             if (hasNumberE164) {
-                sb.append(" lookup.normalized_number = ");
+                sb.append(PhoneLookupColumns.NORMALIZED_NUMBER + " = ");
                 DatabaseUtils.appendEscapedSQLString(sb, numberE164);
             }
             if (hasNumberE164 && hasNumber) {
@@ -5087,28 +5474,30 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             if (hasNumber) {
                 // Skip the suffix match entirely if we are using strict number comparison.
                 if (!mUseStrictPhoneNumberComparison) {
-                    int numberLen = number.length();
-                    sb.append(" lookup.len <= ");
-                    sb.append(numberLen);
-                    sb.append(" AND substr(");
-                    DatabaseUtils.appendEscapedSQLString(sb, number);
-                    sb.append(',');
-                    sb.append(numberLen);
-                    sb.append(" - lookup.len + 1) = lookup.normalized_number");
+                    final String reversed = reverseNumber(number);
+                    final int numberLen = reversed.length();
+
+                    // The stored number is a suffix of the given number
+                    sb.append(PhoneLookupColumns.REVERSED_NUMBER + " IN (");
+                    for (int i = 1; i <= numberLen; i++) {
+                        if (i > 1) {
+                            sb.append(',');
+                        }
+                        DatabaseUtils.appendEscapedSQLString(sb, reversed.substring(0, i));
+                    }
+                    sb.append(')');
 
                     // Some countries (e.g. Brazil) can have incoming calls which contain only
-                    // the local number (no country calling code and no area code).  This case
-                    // is handled below, see b/5197612.
+                    // the local number (no country calling code and no area code), i.e. the
+                    // given number is a suffix of the stored number, see b/5197612.
                     // This also handles a Gingerbread -> ICS upgrade issue; see b/5638376.
-                    sb.append(" OR (");
-                    sb.append(" lookup.len > ");
-                    sb.append(numberLen);
-                    sb.append(" AND substr(lookup.normalized_number,");
-                    sb.append("lookup.len + 1 - ");
-                    sb.append(numberLen);
-                    sb.append(") = ");
-                    DatabaseUtils.appendEscapedSQLString(sb, number);
-                    sb.append(")");
+                    final String upperBound = reversed.substring(0, numberLen - 1)
+                            + (char) (reversed.charAt(numberLen - 1) + 1);
+                    sb.append(" OR (" + PhoneLookupColumns.REVERSED_NUMBER + " > ");
+                    DatabaseUtils.appendEscapedSQLString(sb, reversed);
+                    sb.append(" AND " + PhoneLookupColumns.REVERSED_NUMBER + " < ");
+                    DatabaseUtils.appendEscapedSQLString(sb, upperBound);
+                    sb.append(')');
                 } else {
                     sb.append("0");
                 }
@@ -5419,95 +5808,159 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             createNameSplitter();
         }
 
-        int bestDisplayNameSource = DisplayNameSources.UNDEFINED;
-        NameSplitter.Name bestName = null;
-        String bestDisplayName = null;
-        String bestPhoneticName = null;
-        int bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
+        final DisplayNameCandidate best = mDisplayNameCandidate;
+        best.clear();
 
         mSelectionArgs1[0] = String.valueOf(rawContactId);
         Cursor c = db.rawQuery(RawContactNameQuery.RAW_SQL, mSelectionArgs1);
         try {
             while (c.moveToNext()) {
-                int mimeType = c.getInt(RawContactNameQuery.MIMETYPE);
-                int source = getDisplayNameSourceForMimeTypeId(mimeType);
-                if (source < bestDisplayNameSource || source == DisplayNameSources.UNDEFINED) {
-                    continue;
-                }
+                addDisplayNameCandidate(best, c);
+            }
+        } finally {
+            c.close();
+        }
 
-                if (source == bestDisplayNameSource
-                        && c.getInt(RawContactNameQuery.IS_PRIMARY) == 0) {
-                    continue;
-                }
+        updateRawContactDisplayName(db, rawContactId, best);
+    }
 
-                if (mimeType == getMimeTypeIdForStructuredName()) {
-                    NameSplitter.Name name;
-                    if (bestName != null) {
-                        name = new NameSplitter.Name();
-                    } else {
-                        name = mName;
-                        name.clear();
-                    }
-                    name.prefix = c.getString(RawContactNameQuery.PREFIX);
-                    name.givenNames = c.getString(RawContactNameQuery.GIVEN_NAME);
-                    name.middleName = c.getString(RawContactNameQuery.MIDDLE_NAME);
-                    name.familyName = c.getString(RawContactNameQuery.FAMILY_NAME);
-                    name.suffix = c.getString(RawContactNameQuery.SUFFIX);
-                    name.fullNameStyle = c.isNull(RawContactNameQuery.FULL_NAME_STYLE)
-                            ? FullNameStyle.UNDEFINED
-                            : c.getInt(RawContactNameQuery.FULL_NAME_STYLE);
-                    name.phoneticFamilyName = c.getString(RawContactNameQuery.PHONETIC_FAMILY_NAME);
-                    name.phoneticMiddleName = c.getString(RawContactNameQuery.PHONETIC_MIDDLE_NAME);
-                    name.phoneticGivenName = c.getString(RawContactNameQuery.PHONETIC_GIVEN_NAME);
-                    name.phoneticNameStyle = c.isNull(RawContactNameQuery.PHONETIC_NAME_STYLE)
-                            ? PhoneticNameStyle.UNDEFINED
-                            : c.getInt(RawContactNameQuery.PHONETIC_NAME_STYLE);
-                    if (!name.isEmpty()) {
-                        bestDisplayNameSource = source;
-                        bestName = name;
-                    }
-                } else if (mimeType == getMimeTypeIdForOrganization()) {
-                    mCharArrayBuffer.sizeCopied = 0;
-                    c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
-                    if (mCharArrayBuffer.sizeCopied != 0) {
-                        bestDisplayNameSource = source;
-                        bestDisplayName = new String(mCharArrayBuffer.data, 0,
-                                mCharArrayBuffer.sizeCopied);
-                        bestPhoneticName = c.getString(
-                                RawContactNameQuery.ORGANIZATION_PHONETIC_NAME);
-                        bestPhoneticNameStyle =
-                                c.isNull(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE)
-                                   ? PhoneticNameStyle.UNDEFINED
-                                   : c.getInt(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE);
-                    } else {
-                        c.copyStringToBuffer(RawContactNameQuery.TITLE, mCharArrayBuffer);
-                        if (mCharArrayBuffer.sizeCopied != 0) {
-                            bestDisplayNameSource = source;
-                            bestDisplayName = new String(mCharArrayBuffer.data, 0,
-                                    mCharArrayBuffer.sizeCopied);
-                            bestPhoneticName = null;
-                            bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
-                        }
-                    }
-                } else {
-                    // Display name is at DATA1 in all other types.
-                    // This is ensured in the constructor.
-
-                    mCharArrayBuffer.sizeCopied = 0;
-                    c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
-                    if (mCharArrayBuffer.sizeCopied != 0) {
-                        bestDisplayNameSource = source;
-                        bestDisplayName = new String(mCharArrayBuffer.data, 0,
-                                mCharArrayBuffer.sizeCopied);
-                        bestPhoneticName = null;
-                        bestPhoneticNameStyle = PhoneticNameStyle.UNDEFINED;
-                    }
+    /**
+     * Updates the display names of a set of raw contacts with a single query.  May replace the
+     * content of {@link #TEMP_ID_SET}.
+     */
+    public void updateRawContactDisplayNames(SQLiteDatabase db, LongSet rawContactIds) {
+        if (mNameSplitter == null) {
+            createNameSplitter();
+        }
+
+        updateRawContactDisplayNames(db,
+                db.rawQuery(RawContactNameBatchQuery.ID_SET_SELECT
+                        + getIdSetSql(db, rawContactIds)
+                        + RawContactNameBatchQuery.ID_SET_JOIN, null),
+                mDisplayNameCandidate);
+    }
+
+    /**
+     * Returns the given IDs for use in an IN (...) clause: listed literally if there are at most
+     * {@link #MAX_INLINE_ID_SET_SIZE} of them, otherwise as a query of {@link #TEMP_ID_SET},
+     * whose content is replaced by them.  The SQL for a large set is always the same, so that
+     * statements using it are prepared once.
+     */
+    public String getIdSetSql(SQLiteDatabase db, LongSet ids) {
+        if (ids.size() <= MAX_INLINE_ID_SET_SIZE) {
+            return ids.join(",");
+        }
+        loadTempIdSet(db, ids);
+        return "SELECT " + BaseColumns._ID + " FROM " + TEMP_ID_SET;
+    }
+
+    /**
+     * Replaces the content of {@link #TEMP_ID_SET} by the given IDs.
+     */
+    private void loadTempIdSet(SQLiteDatabase db, LongSet ids) {
+        db.execSQL("DELETE FROM " + TEMP_ID_SET);
+        if (mTempIdSetInsert == null) {
+            mTempIdSetInsert = db.compileStatement(
+                    "INSERT OR IGNORE INTO " + TEMP_ID_SET + " VALUES (?)");
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            mTempIdSetInsert.bindLong(1, ids.get(i));
+            mTempIdSetInsert.execute();
+        }
+    }
+
+    /**
+     * Considers a data row with the columns of {@link RawContactNameQuery} as the source of the
+     * display name of its raw contact.
+     */
+    private void addDisplayNameCandidate(DisplayNameCandidate best, Cursor c) {
+        int mimeType = c.getInt(RawContactNameQuery.MIMETYPE);
+        int source = getDisplayNameSourceForMimeTypeId(mimeType);
+        if (source < best.source || source == DisplayNameSources.UNDEFINED) {
+            return;
+        }
+
+        if (source == best.source
+                && c.getInt(RawContactNameQuery.IS_PRIMARY) == 0) {
+            return;
+        }
+
+        if (mimeType == getMimeTypeIdForStructuredName()) {
+            NameSplitter.Name name;
+            if (best.name != null) {
+                name = new NameSplitter.Name();
+            } else {
+                name = mName;
+                name.clear();
+            }
+            name.prefix = c.getString(RawContactNameQuery.PREFIX);
+            name.givenNames = c.getString(RawContactNameQuery.GIVEN_NAME);
+            name.middleName = c.getString(RawContactNameQuery.MIDDLE_NAME);
+            name.familyName = c.getString(RawContactNameQuery.FAMILY_NAME);
+            name.suffix = c.getString(RawContactNameQuery.SUFFIX);
+            name.fullNameStyle = c.isNull(RawContactNameQuery.FULL_NAME_STYLE)
+                    ? FullNameStyle.UNDEFINED
+                    : c.getInt(RawContactNameQuery.FULL_NAME_STYLE);
+            name.phoneticFamilyName = c.getString(RawContactNameQuery.PHONETIC_FAMILY_NAME);
+            name.phoneticMiddleName = c.getString(RawContactNameQuery.PHONETIC_MIDDLE_NAME);
+            name.phoneticGivenName = c.getString(RawContactNameQuery.PHONETIC_GIVEN_NAME);
+            name.phoneticNameStyle = c.isNull(RawContactNameQuery.PHONETIC_NAME_STYLE)
+                    ? PhoneticNameStyle.UNDEFINED
+                    : c.getInt(RawContactNameQuery.PHONETIC_NAME_STYLE);
+            if (!name.isEmpty()) {
+                best.source = source;
+                best.name = name;
+            }
+        } else if (mimeType == getMimeTypeIdForOrganization()) {
+            mCharArrayBuffer.sizeCopied = 0;
+            c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
+            if (mCharArrayBuffer.sizeCopied != 0) {
+                best.source = source;
+                best.displayName = new String(mCharArrayBuffer.data, 0,
+                        mCharArrayBuffer.sizeCopied);
+                best.phoneticName = c.getString(
+                        RawContactNameQuery.ORGANIZATION_PHONETIC_NAME);
+                best.phoneticNameStyle =
+                        c.isNull(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE)
+                           ? PhoneticNameStyle.UNDEFINED
+                           : c.getInt(RawContactNameQuery.ORGANIZATION_PHONETIC_NAME_STYLE);
+            } else {
+                c.copyStringToBuffer(RawContactNameQuery.TITLE, mCharArrayBuffer);
+                if (mCharArrayBuffer.sizeCopied != 0) {
+                    best.source = source;
+                    best.displayName = new String(mCharArrayBuffer.data, 0,
+                            mCharArrayBuffer.sizeCopied);
+                    best.phoneticName = null;
+                    best.phoneticNameStyle = PhoneticNameStyle.UNDEFINED;
                 }
             }
-
-        } finally {
-            c.close();
+        } else {
+            // Display name is at DATA1 in all other types.
+            // This is ensured in the constructor.
+
+            mCharArrayBuffer.sizeCopied = 0;
+            c.copyStringToBuffer(RawContactNameQuery.DATA1, mCharArrayBuffer);
+            if (mCharArrayBuffer.sizeCopied != 0) {
+                best.source = source;
+                best.displayName = new String(mCharArrayBuffer.data, 0,
+                        mCharArrayBuffer.sizeCopied);
+                best.phoneticName = null;
+                best.phoneticNameStyle = PhoneticNameStyle.UNDEFINED;
+            }
         }
+    }
+
+    /**
+     * Computes the display name, sort keys and phonebook buckets of a raw contact from the best
+     * display name candidate among its data rows, and writes them.
+     */
+    private void updateRawContactDisplayName(SQLiteDatabase db, long rawContactId,
+            DisplayNameCandidate best) {
+        final int bestDisplayNameSource = best.source;
+        final NameSplitter.Name bestName = best.name;
+        final String bestDisplayName = best.displayName;
+        String bestPhoneticName = best.phoneticName;
+        int bestPhoneticNameStyle = best.phoneticNameStyle;
 
         String displayNamePrimary;
         String displayNameAlternative;
@@ -5712,6 +6165,29 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         mNameLookupInsert.bindLong(3, lookupType);
         bindString(mNameLookupInsert, 4, name);
         mNameLookupInsert.executeInsert();
+        mNameLookupIndex.add(rawContactId, dataId, lookupType, name);
+    }
+
+    /**
+     * Inserts a record in the {@link Tables#PHONE_LOOKUP} table.
+     */
+    public void insertPhoneLookup(long rawContactId, long dataId, String normalizedNumber) {
+        if (mPhoneLookupInsert == null) {
+            mPhoneLookupInsert = getWritableDatabase().compileStatement(
+                    "INSERT INTO " + Tables.PHONE_LOOKUP + "("
+                            + PhoneLookupColumns.RAW_CONTACT_ID + ","
+                            + PhoneLookupColumns.DATA_ID + ","
+                            + PhoneLookupColumns.NORMALIZED_NUMBER + ","
+                            + PhoneLookupColumns.MIN_MATCH + ","
+                            + PhoneLookupColumns.REVERSED_NUMBER
+                    + ") VALUES (?,?,?,?,?)");
+        }
+        mPhoneLookupInsert.bindLong(1, rawContactId);
+        mPhoneLookupInsert.bindLong(2, dataId);
+        mPhoneLookupInsert.bindString(3, normalizedNumber);
+        mPhoneLookupInsert.bindString(4, PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
+        mPhoneLookupInsert.bindString(5, reverseNumber(normalizedNumber));
+        mPhoneLookupInsert.executeInsert();
     }
 
     /**
@@ -5725,6 +6201,16 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         }
         mNameLookupDelete.bindLong(1, dataId);
         mNameLookupDelete.execute();
+        mNameLookupIndex.removeData(dataId);
+    }
+
+    /**
+     * Returns the in-memory copy of the {@link Tables#NAME_LOOKUP} table.  It's kept up to date
+     * by {@link #insertNameLookup(long, long, int, String)} and {@link #deleteNameLookup}; any
+     * other change to the table must invalidate it.
+     */
+    public NameLookupIndex getNameLookupIndex() {
+        return mNameLookupIndex;
     }
 
     public String insertNameLookupForEmail(long rawContactId, long dataId, String email) {
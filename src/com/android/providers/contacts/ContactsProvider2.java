@@ -145,11 +145,13 @@ import com.android.providers.contacts.aggregation.ContactAggregator;
 import com.android.providers.contacts.aggregation.ContactAggregator.AggregationSuggestionParameter;
 import com.android.providers.contacts.aggregation.ProfileAggregator;
 import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
+import com.android.providers.contacts.aggregation.util.RawContactMatchBatch;
 import com.android.providers.contacts.database.ContactsTableUtil;
 import com.android.providers.contacts.database.DeletedContactsTableUtil;
 import com.android.providers.contacts.database.MoreDatabaseUtils;
 import com.android.providers.contacts.util.Clock;
 import com.android.providers.contacts.util.DbQueryUtils;
+import com.android.providers.contacts.util.LongSet;
 import com.android.providers.contacts.util.NeededForTesting;
 import com.android.providers.contacts.util.UserUtils;
 import com.android.vcard.VCardComposer;
@@ -175,8 +177,10 @@ import java.io.PrintWriter;
 import java.io.Writer;
 import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -185,7 +189,14 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Contacts content provider. The contract between this provider and applications
@@ -262,6 +273,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private static final int PROPERTY_AGGREGATION_ALGORITHM_VERSION = 4;
 
+    /** Number of raw contacts re-aggregated in each transaction of an aggregation upgrade. */
+    private static final int AGGREGATION_UPGRADE_CHUNK_SIZE = 500;
+    private static final int MAX_AGGREGATION_UPGRADE_WORKERS = 4;
+
+    /**
+     * Number of aggregation upgrades that may fail, each resuming after the last committed chunk
+     * on the next start, before the rest of the raw contacts are left as they are.
+     */
+    private static final int MAX_AGGREGATION_UPGRADE_FAILURES = 3;
+
     private static final String AGGREGATE_CONTACTS = "sync.contacts.aggregate";
 
     private static final String CONTACT_MEMORY_FILE_NAME = "contactAssetFile";
@@ -933,6 +954,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
             .add(PhoneLookup.NORMALIZED_NUMBER, Phone.NORMALIZED_NUMBER)
             .build();
 
+    /** Contains {@link #sPhoneLookupProjectionMap} and the raw contact IDs of the matches. */
+    private static final ProjectionMap sCallerIdProjectionMap = ProjectionMap.builder()
+            .addAll(sPhoneLookupProjectionMap)
+            .add(Data.RAW_CONTACT_ID, Tables.RAW_CONTACTS + "." + RawContacts._ID)
+            .build();
+
     /** Contains the just the {@link Groups} columns */
     private static final ProjectionMap sGroupsProjectionMap = ProjectionMap.builder()
             .add(Groups._ID)
@@ -1438,6 +1465,32 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private int mFastScrollingIndexCacheRequestCount;
     private int mFastScrollingIndexCacheMissCount;
     private long mTotalTimeFastScrollingIndexGenerate;
+    private int mFastScrollingIndexCacheRecountCount;
+    private long mTotalTimeFastScrollingIndexRecount;
+
+    // Stats about flushTransactionalChanges, per stage.
+    private static final int FLUSH_STAGE_INSERTED = 0;
+    private static final int FLUSH_STAGE_DIRTY = 1;
+    private static final int FLUSH_STAGE_VERSION = 2;
+    private static final int FLUSH_STAGE_LAST_UPDATED = 3;
+    private static final int FLUSH_STAGE_SYNC_STATES = 4;
+    private static final String[] FLUSH_STAGE_NAMES = {
+        "inserted", "dirty", "version", "last updated", "sync states",
+    };
+    private int mFlushCount;
+    private final long[] mFlushStageTimes = new long[FLUSH_STAGE_NAMES.length];
+
+    private final CallerIdCache mCallerIdCache = new CallerIdCache();
+
+    /**
+     * Incremented when a transaction of the provider is about to be committed, including when it
+     * yields, i.e. before any change to data rows becomes visible.  See
+     * {@link #upgradeAggregationAlgorithmInBackground}.
+     */
+    private final AtomicLong mCommitGeneration = new AtomicLong();
+
+    private int mAggregationUpgradeChunkSize = AGGREGATION_UPGRADE_CHUNK_SIZE;
+    private long mFailAggregationUpgradeAtForTest;
 
     @Override
     public boolean onCreate() {
@@ -1690,7 +1743,6 @@ public class ContactsProvider2 extends AbstractContactsProvider
             case BACKGROUND_TASK_UPGRADE_AGGREGATION_ALGORITHM: {
                 if (isAggregationUpgradeNeeded()) {
                     upgradeAggregationAlgorithmInBackground();
-                    invalidateFastScrollingIndexCache();
                 }
                 break;
             }
@@ -1790,6 +1842,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
         setProviderStatus(ProviderStatus.STATUS_CHANGING_LOCALE);
         mContactsHelper.setLocale(currentLocales);
         mProfileHelper.setLocale(currentLocales);
+        // Display names were regenerated outside of a ContactsTransaction
+        mCallerIdCache.clear();
         mSearchIndexManager.updateIndex(true);
         prefs.edit().putString(PREF_LOCALE, currentLocales.toString()).commit();
         setProviderStatus(providerStatus);
@@ -1835,6 +1889,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
             db.endTransaction();
             profileDb.endTransaction();
         }
+        // The current country, which is part of caller ID cache keys, may have changed
+        mCallerIdCache.clear();
 
         updateLocaleInBackground();
     }
@@ -2016,6 +2072,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
     @NeededForTesting
     void wipeData() {
         invalidateFastScrollingIndexCache();
+        mCallerIdCache.clear();
         mContactsHelper.wipeData();
         mProfileHelper.wipeData();
         mContactsPhotoStore.clear();
@@ -2280,7 +2337,14 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         // Now proceed with the Contacts DB yield.
         SQLiteDatabase contactsDb = transaction.getDbForTag(CONTACTS_DB_TAG);
-        return contactsDb != null && contactsDb.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY);
+        if (contactsDb == null) {
+            return false;
+        }
+        final YieldPolicy yieldPolicy = getYieldPolicy();
+        final long sleepMillis = yieldPolicy.getSleepAfterYieldMillis(transaction);
+        final boolean yielded = contactsDb.yieldIfContendedSafely(sleepMillis);
+        yieldPolicy.onYieldChecked(transaction, yielded, yielded ? sleepMillis : 0);
+        return yielded;
     }
 
     @Override
@@ -2315,6 +2379,54 @@ public class ContactsProvider2 extends AbstractContactsProvider
             mContactAggregator.clearPendingAggregations();
             mContactTransactionContext.clearExceptSearchIndexUpdates();
         }
+
+        // A yield commits the previous transaction before beginning a new one
+        mCallerIdCache.endCommit();
+    }
+
+    @Override
+    protected void onBeginOperationGroup() {
+        mContactTransactionContext.beginDeferringRowSideEffects();
+        mProfileTransactionContext.beginDeferringRowSideEffects();
+    }
+
+    @Override
+    protected void onEndOperationGroup() {
+        applyDeferredRowSideEffects(mContactTransactionContext, mContactsHelper,
+                mContactAggregator);
+        applyDeferredRowSideEffects(mProfileTransactionContext, mProfileHelper,
+                mProfileAggregator);
+    }
+
+    /**
+     * Fixes the display names, updates {@link Contacts#HAS_PHONE_NUMBER} and triggers the
+     * aggregation of the raw contacts whose data rows were inserted by a group of operations.
+     * Raw contact display names and {@link Contacts#HAS_PHONE_NUMBER} are updated by statements
+     * over the whole set of raw contacts; contact display names and aggregation triggers are
+     * still handled once per contact and raw contact.
+     */
+    private void applyDeferredRowSideEffects(TransactionContext txContext,
+            ContactsDatabaseHelper dbHelper, ContactAggregator aggregator) {
+        if (!txContext.isDeferringRowSideEffects()) {
+            return;
+        }
+        final LongSet displayNameRawContactIds = txContext.getDeferredDisplayNameRawContactIds();
+        final LongSet aggregationRawContactIds = txContext.getDeferredAggregationRawContactIds();
+        final LongSet hasPhoneNumberRawContactIds =
+                txContext.getDeferredHasPhoneNumberRawContactIds();
+        if (!displayNameRawContactIds.isEmpty()) {
+            final SQLiteDatabase db = dbHelper.getWritableDatabase();
+            dbHelper.updateRawContactDisplayNames(db, displayNameRawContactIds);
+            aggregator.updateDisplayNamesForRawContacts(db, displayNameRawContactIds);
+        }
+        if (!hasPhoneNumberRawContactIds.isEmpty()) {
+            aggregator.updateHasPhoneNumber(dbHelper.getWritableDatabase(),
+                    hasPhoneNumberRawContactIds);
+        }
+        for (int i = 0; i < aggregationRawContactIds.size(); i++) {
+            aggregator.triggerAggregation(txContext, aggregationRawContactIds.get(i));
+        }
+        txContext.endDeferringRowSideEffects();
     }
 
     @Override
@@ -2327,12 +2439,20 @@ public class ContactsProvider2 extends AbstractContactsProvider
             Log.i(TAG, "onCommitTransactionInternal: " + (forProfile ? "profile" : "contacts"),
                     new RuntimeException("onCommitTransactionInternal"));
         }
+        // Bumped while the transaction still holds the database, so that matches loaded before
+        // this commit are discarded by the aggregation upgrade, like the caller ID cache entries.
+        mCommitGeneration.incrementAndGet();
+
         if (forProfile) {
             switchToProfileMode();
         } else {
             switchToContactMode();
         }
 
+        // Collect the raw contacts whose caller IDs may change before the transaction context
+        // is flushed.
+        final LongSet callerIdRawContactIds = forProfile ? null : beginCallerIdCacheCommit();
+
         flushTransactionalChanges();
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
         mAggregator.get().aggregateInTransaction(mTransactionContext.get(), db);
@@ -2344,6 +2464,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
             invalidateFastScrollingIndexCache();
         }
 
+        if (callerIdRawContactIds != null) {
+            invalidateCallerIdCache(db, callerIdRawContactIds,
+                    mTransactionContext.get().getStaleSearchIndexContactIds());
+        }
+
         updateSearchIndexInTransaction();
 
         if (mProviderStatusUpdateNeeded) {
@@ -2357,6 +2482,84 @@ public class ContactsProvider2 extends AbstractContactsProvider
         onRollbackTransactionInternal(false);
     }
 
+    @Override
+    protected void onEndTransaction() {
+        mCallerIdCache.endCommit();
+    }
+
+    /**
+     * Blocks additions to the caller ID cache until the transaction is committed, and returns
+     * the raw contacts changed by the transaction, or null if there is nothing to invalidate.
+     */
+    private LongSet beginCallerIdCacheCommit() {
+        mCallerIdCache.beginCommit();
+        if (mCallerIdCache.isEmpty()) {
+            return null;
+        }
+
+        final TransactionContext txContext = mTransactionContext.get();
+        final LongSet rawContactIds = new LongSet();
+        rawContactIds.addAll(txContext.getChangedRawContactIds());
+        rawContactIds.addAll(txContext.getUpdatedRawContactIds());
+        rawContactIds.addAll(txContext.getStaleSearchIndexRawContactIds());
+        rawContactIds.addAll(txContext.getStaleSearchIndexFragmentRawContactIds());
+        for (long rawContactId : mAggregator.get().getRawContactsMarkedForAggregation()) {
+            rawContactIds.add(rawContactId);
+        }
+        return rawContactIds;
+    }
+
+    /**
+     * Removes the caller IDs that may have been changed by the transaction.  Called once the
+     * changed raw contacts have been aggregated, so that their current contacts are known.
+     */
+    private void invalidateCallerIdCache(SQLiteDatabase db, LongSet rawContactIds,
+            LongSet changedContactIds) {
+        if (rawContactIds.isEmpty() && changedContactIds.isEmpty()) {
+            return;
+        }
+        if (rawContactIds.size() > CallerIdCache.MAX_INVALIDATED_RAW_CONTACTS) {
+            mCallerIdCache.clear();
+            return;
+        }
+
+        final LongSet contactIds = new LongSet();
+        contactIds.addAll(changedContactIds);
+        final Set<String> minMatches = Sets.newHashSet();
+        if (!rawContactIds.isEmpty()) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("SELECT " + RawContacts.CONTACT_ID + " FROM " + Tables.RAW_CONTACTS
+                    + " WHERE " + RawContacts._ID + " IN (");
+            sb.append(rawContactIds.join(","));
+            sb.append(')');
+            Cursor c = db.rawQuery(sb.toString(), null);
+            try {
+                while (c.moveToNext()) {
+                    if (!c.isNull(0)) {
+                        contactIds.add(c.getLong(0));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+
+            sb.setLength(0);
+            sb.append("SELECT " + PhoneLookupColumns.MIN_MATCH + " FROM " + Tables.PHONE_LOOKUP
+                    + " WHERE " + PhoneLookupColumns.RAW_CONTACT_ID + " IN (");
+            sb.append(rawContactIds.join(","));
+            sb.append(')');
+            c = db.rawQuery(sb.toString(), null);
+            try {
+                while (c.moveToNext()) {
+                    minMatches.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        mCallerIdCache.invalidate(rawContactIds, contactIds, minMatches);
+    }
+
     protected void onRollbackTransactionInternal(boolean forProfile) {
         if (ENABLE_TRANSACTION_LOG) {
             Log.i(TAG, "onRollbackTransactionInternal: " + (forProfile ? "profile" : "contacts"),
@@ -2372,12 +2575,20 @@ public class ContactsProvider2 extends AbstractContactsProvider
     }
 
     private void updateSearchIndexInTransaction() {
-        Set<Long> staleContacts = mTransactionContext.get().getStaleSearchIndexContactIds();
-        Set<Long> staleRawContacts = mTransactionContext.get().getStaleSearchIndexRawContactIds();
+        final TransactionContext txContext = mTransactionContext.get();
+        LongSet staleContacts = txContext.getStaleSearchIndexContactIds();
+        LongSet staleRawContacts = txContext.getStaleSearchIndexRawContactIds();
+        LongSet staleData = txContext.getStaleSearchIndexDataIds();
+        LongSet staleFragmentRawContacts = txContext.getStaleSearchIndexFragmentRawContactIds();
         if (!staleContacts.isEmpty() || !staleRawContacts.isEmpty()) {
             mSearchIndexManager.updateIndexForRawContacts(staleContacts, staleRawContacts);
-            mTransactionContext.get().clearSearchIndexUpdates();
+            // Those raw contacts have been fully reindexed already.
+            staleFragmentRawContacts.removeAll(staleRawContacts);
+        }
+        if (!staleData.isEmpty() || !staleFragmentRawContacts.isEmpty()) {
+            mSearchIndexManager.updateIndexForDataRows(staleData, staleFragmentRawContacts);
         }
+        txContext.clearSearchIndexUpdates();
     }
 
     private void flushTransactionalChanges() {
@@ -2386,54 +2597,68 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
 
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
-        for (long rawContactId : mTransactionContext.get().getInsertedRawContactIds()) {
-            mDbHelper.get().updateRawContactDisplayName(db, rawContactId);
-            mAggregator.get().onRawContactInsert(mTransactionContext.get(), db, rawContactId);
+        final ContactsDatabaseHelper dbHelper = mDbHelper.get();
+        final TransactionContext txContext = mTransactionContext.get();
+        long time = SystemClock.elapsedRealtime();
+
+        // Each stage applies to a set of raw contacts, which are listed in its statement, or
+        // loaded into a temporary table that the statement joins with if there are many.
+        final LongSet insertedRawContacts = txContext.getInsertedRawContactIds();
+        if (!insertedRawContacts.isEmpty()) {
+            dbHelper.updateRawContactDisplayNames(db, insertedRawContacts);
+            for (int i = 0; i < insertedRawContacts.size(); i++) {
+                mAggregator.get().onRawContactInsert(txContext, db, insertedRawContacts.get(i));
+            }
         }
+        time = endFlushStage(FLUSH_STAGE_INSERTED, time);
 
-        Set<Long> dirtyRawContacts = mTransactionContext.get().getDirtyRawContactIds();
+        final LongSet dirtyRawContacts = txContext.getDirtyRawContactIds();
         if (!dirtyRawContacts.isEmpty()) {
-            mSb.setLength(0);
-            mSb.append(UPDATE_RAW_CONTACT_SET_DIRTY_SQL);
-            appendIds(mSb, dirtyRawContacts);
-            mSb.append(")");
-            db.execSQL(mSb.toString());
+            db.execSQL(UPDATE_RAW_CONTACT_SET_DIRTY_SQL
+                    + dbHelper.getIdSetSql(db, dirtyRawContacts) + ")");
         }
+        time = endFlushStage(FLUSH_STAGE_DIRTY, time);
 
-        Set<Long> updatedRawContacts = mTransactionContext.get().getUpdatedRawContactIds();
+        final LongSet updatedRawContacts = txContext.getUpdatedRawContactIds();
         if (!updatedRawContacts.isEmpty()) {
-            mSb.setLength(0);
-            mSb.append(UPDATE_RAW_CONTACT_SET_VERSION_SQL);
-            appendIds(mSb, updatedRawContacts);
-            mSb.append(")");
-            db.execSQL(mSb.toString());
+            db.execSQL(UPDATE_RAW_CONTACT_SET_VERSION_SQL
+                    + dbHelper.getIdSetSql(db, updatedRawContacts) + ")");
         }
+        time = endFlushStage(FLUSH_STAGE_VERSION, time);
 
-        final Set<Long> changedRawContacts = mTransactionContext.get().getChangedRawContactIds();
-        ContactsTableUtil.updateContactLastUpdateByRawContactId(db, changedRawContacts);
+        final LongSet changedRawContacts = txContext.getChangedRawContactIds();
+        if (!changedRawContacts.isEmpty()) {
+            ContactsTableUtil.updateContactLastUpdateByRawContactIdSql(db,
+                    dbHelper.getIdSetSql(db, changedRawContacts));
+        }
+        time = endFlushStage(FLUSH_STAGE_LAST_UPDATED, time);
 
         // Update sync states.
-        for (Map.Entry<Long, Object> entry : mTransactionContext.get().getUpdatedSyncStates()) {
+        for (Map.Entry<Long, Object> entry : txContext.getUpdatedSyncStates()) {
             long id = entry.getKey();
-            if (mDbHelper.get().getSyncState().update(db, id, entry.getValue()) <= 0) {
+            if (dbHelper.getSyncState().update(db, id, entry.getValue()) <= 0) {
                 throw new IllegalStateException(
                         "unable to update sync state, does it still exist?");
             }
         }
+        endFlushStage(FLUSH_STAGE_SYNC_STATES, time);
+        mFlushCount++;
 
         mTransactionContext.get().clearExceptSearchIndexUpdates();
     }
 
     /**
-     * Appends comma separated IDs.
-     * @param ids Should not be empty
+     * Adds the time since {@code startTime} to the stats of a stage of
+     * {@link #flushTransactionalChanges}, and returns the current time.
      */
-    private void appendIds(StringBuilder sb, Set<Long> ids) {
-        for (long id : ids) {
-            sb.append(id).append(',');
+    private long endFlushStage(int stage, long startTime) {
+        final long now = SystemClock.elapsedRealtime();
+        mFlushStageTimes[stage] += now - startTime;
+        if (VERBOSE_LOGGING) {
+            Log.v(TAG, "flushTransactionalChanges: " + FLUSH_STAGE_NAMES[stage] + " took "
+                    + (now - startTime) + "ms");
         }
-
-        sb.setLength(sb.length() - 1); // Yank the last comma
+        return now;
     }
 
     @Override
@@ -3737,6 +3962,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             db.delete(Tables.PRESENCE, PresenceColumns.RAW_CONTACT_ID + "=" + rawContactId, null);
             int count = db.delete(Tables.RAW_CONTACTS, RawContacts._ID + "=" + rawContactId, null);
+            mDbHelper.get().getNameLookupIndex().removeRawContact(rawContactId);
 
             mAggregator.get().updateAggregateData(mTransactionContext.get(), contactId);
             mTransactionContext.get().markRawContactChangedOrDeletedOrInserted(rawContactId);
@@ -3889,13 +4115,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case CONTACTS:
             case PROFILE: {
-                invalidateFastScrollingIndexCache();
                 count = updateContactOptions(values, selection, selectionArgs, callerIsSyncAdapter);
                 break;
             }
 
             case CONTACTS_ID: {
-                invalidateFastScrollingIndexCache();
                 count = updateContactOptions(db, ContentUris.parseId(uri), values,
                         callerIsSyncAdapter);
                 break;
@@ -3903,7 +4127,6 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case CONTACTS_LOOKUP:
             case CONTACTS_LOOKUP_ID: {
-                invalidateFastScrollingIndexCache();
                 final List<String> pathSegments = uri.getPathSegments();
                 final int segmentCount = pathSegments.size();
                 if (segmentCount < 3) {
@@ -4556,6 +4779,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
             return 0;  // Nothing to update, bail out.
         }
 
+        // Contact options don't affect the contact's buckets, so only the counts of its
+        // buckets may change.
+        invalidateFastScrollingIndexCacheForContact(db, contactId);
+
         boolean hasStarredValue = flagExists(values, RawContacts.STARRED);
         if (hasStarredValue) {
             // Mark dirty when changing starred to trigger sync.
@@ -4774,6 +5001,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
             }
 
             if (!accountsWithDataSetsToDelete.isEmpty()) {
+                // Name lookup rows are deleted in bulk along with the raw contacts.
+                dbHelper.getNameLookupIndex().invalidate();
                 for (AccountWithDataSet accountWithDataSet : accountsWithDataSetsToDelete) {
                     Log.d(TAG, "removing data for removed account " + accountWithDataSet);
                     final Long accountIdOrNull = dbHelper.getAccountIdOrNull(accountWithDataSet);
@@ -4942,6 +5171,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
         mAccountWritability.clear();
 
+        // Stale rows were deleted outside of a ContactsTransaction
+        mCallerIdCache.clear();
+
         updateContactsAccountCount(systemAccounts);
         updateProviderStatus();
         return true;
@@ -6193,6 +6425,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     selectionArgs = mDbHelper.get().buildSipContactQuery(sb, sipAddress);
                     selection = sb.toString();
                 } else {
+                    // Only lookups in the default order can be answered from the caller ID
+                    // cache.
+                    final boolean cacheable = TextUtils.isEmpty(sortOrder) && groupBy == null
+                            && having == null && limit == null && !inProfileMode()
+                            && CallerIdCache.canServe(projection);
                     if (TextUtils.isEmpty(sortOrder)) {
                         // Default the sort order to something reasonable so we get consistent
                         // results when callers don't request an ordering
@@ -6201,18 +6438,38 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
                     String number =
                             uri.getPathSegments().size() > 1 ? uri.getLastPathSegment() : "";
+
+                    String callerIdCacheKey = null;
+                    long callerIdCacheGeneration = 0;
+                    if (cacheable) {
+                        callerIdCacheKey = CallerIdCache.buildKey(
+                                PhoneLookupWithStarPrefix.normalizeNumberWithStar(number),
+                                mDbHelper.get().getCurrentCountryIso(),
+                                mDbHelper.get().getUseStrictPhoneNumberComparisonParameter());
+                        final Cursor cached = mCallerIdCache.get(callerIdCacheKey, projection);
+                        if (cached != null) {
+                            cached.setNotificationUri(getContext().getContentResolver(),
+                                    ContactsContract.AUTHORITY_URI);
+                            return cached;
+                        }
+                        callerIdCacheGeneration = mCallerIdCache.getGeneration();
+                    }
+
                     String numberE164 = PhoneNumberUtils.formatNumberToE164(
                             number, mDbHelper.get().getCurrentCountryIso());
                     String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
                     mDbHelper.get().buildPhoneLookupAndContactQuery(
                             qb, normalizedNumber, numberE164);
-                    qb.setProjectionMap(sPhoneLookupProjectionMap);
+                    qb.setProjectionMap(callerIdCacheKey == null ? sPhoneLookupProjectionMap
+                            : sCallerIdProjectionMap);
 
                     // removeNonStarMatchesFromCursor() requires the cursor to contain
                     // PhoneLookup.NUMBER. Therefore, if the projection explicitly omits it, extend
                     // the projection.
                     String[] projectionWithNumber = projection;
-                    if (projection != null
+                    if (callerIdCacheKey != null) {
+                        projectionWithNumber = CallerIdCache.QUERY_COLUMNS;
+                    } else if (projection != null
                             && !ArrayUtils.contains(projection,PhoneLookup.NUMBER)) {
                         projectionWithNumber = ArrayUtils.appendElement(
                                 String.class, projection, PhoneLookup.NUMBER);
@@ -6229,13 +6486,17 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     try {
                         if (cursor.getCount() > 0) {
                             foundResult = true;
-                            return PhoneLookupWithStarPrefix
+                            final Cursor result = PhoneLookupWithStarPrefix
                                     .removeNonStarMatchesFromCursor(number, cursor);
+                            return callerIdCacheKey == null ? result : putCallerIds(
+                                    callerIdCacheKey, callerIdCacheGeneration, number,
+                                    normalizedNumber, projection, result);
                         }
 
                         // Use the fall-back lookup method.
                         qb = new SQLiteQueryBuilder();
-                        qb.setProjectionMap(sPhoneLookupProjectionMap);
+                        qb.setProjectionMap(callerIdCacheKey == null ? sPhoneLookupProjectionMap
+                                : sCallerIdProjectionMap);
                         qb.setStrict(true);
 
                         // use the raw number instead of the normalized number because
@@ -6246,8 +6507,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
                         final Cursor fallbackCursor = query(db, qb, projectionWithNumber,
                                 selection, selectionArgs, sortOrder, groupBy, having, limit,
                                 cancellationSignal);
-                        return PhoneLookupWithStarPrefix.removeNonStarMatchesFromCursor(
-                                number, fallbackCursor);
+                        final Cursor result = PhoneLookupWithStarPrefix
+                                .removeNonStarMatchesFromCursor(number, fallbackCursor);
+                        return callerIdCacheKey == null ? result : putCallerIds(
+                                callerIdCacheKey, callerIdCacheGeneration, number,
+                                normalizedNumber, projection, result);
                     } finally {
                         if (!foundResult) {
                             // We'll be returning a different cursor, so close this one.
@@ -6502,6 +6766,33 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return c;
     }
 
+    /**
+     * Adds the results of a phone lookup to the caller ID cache, and returns them with the
+     * requested projection.
+     *
+     * @param cursor the results with the columns of {@link CallerIdCache#QUERY_COLUMNS}; this
+     *     method takes ownership of the cursor
+     */
+    private Cursor putCallerIds(String key, long generation, String number,
+            String normalizedNumber, String[] projection, Cursor cursor) {
+        final CallerIdCache.Entry entry;
+        try {
+            // The lookup and its fallback only match phone_lookup rows with these min matches
+            final Set<String> minMatches = Sets.newHashSet(
+                    PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber),
+                    PhoneNumberUtils.toCallerIDMinMatch(number));
+            entry = new CallerIdCache.Entry(cursor, minMatches);
+        } finally {
+            cursor.close();
+        }
+        mCallerIdCache.put(key, generation, entry);
+
+        final Cursor result = entry.newCursor(projection);
+        result.setNotificationUri(getContext().getContentResolver(),
+                ContactsContract.AUTHORITY_URI);
+        return result;
+    }
+
     /**
      * Handles {@link PhoneLookup#ENTERPRISE_CONTENT_FILTER_URI}.
      */
@@ -6696,6 +6987,43 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mFastScrollingIndexCache.invalidate();
     }
 
+    private static final class ContactBucketQuery {
+        public static final String[] COLUMNS = new String[] {
+            ContactsColumns.PHONEBOOK_BUCKET_PRIMARY,
+            ContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE,
+        };
+
+        public static final int PHONEBOOK_BUCKET_PRIMARY = 0;
+        public static final int PHONEBOOK_BUCKET_ALTERNATIVE = 1;
+    }
+
+    /**
+     * Invalidates only the buckets of the given contact in the fast scrolling index cache.
+     * Must only be used for changes that can't move the contact to another bucket.
+     */
+    private void invalidateFastScrollingIndexCacheForContact(SQLiteDatabase db, long contactId) {
+        if (inProfileMode()) {
+            // The profile DB has its own contact IDs.
+            invalidateFastScrollingIndexCache();
+            return;
+        }
+        final BitSet primaryBuckets = new BitSet();
+        final BitSet alternativeBuckets = new BitSet();
+        Cursor cursor = db.query(Views.CONTACTS, ContactBucketQuery.COLUMNS,
+                Contacts._ID + "=?", new String[] {String.valueOf(contactId)},
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                primaryBuckets.set(cursor.getInt(ContactBucketQuery.PHONEBOOK_BUCKET_PRIMARY));
+                alternativeBuckets.set(
+                        cursor.getInt(ContactBucketQuery.PHONEBOOK_BUCKET_ALTERNATIVE));
+            }
+        } finally {
+            cursor.close();
+        }
+        mFastScrollingIndexCache.invalidateBuckets(primaryBuckets, alternativeBuckets);
+    }
+
     /**
      * Add the "fast scrolling index" bundle, generated by {@link #getFastScrollingIndexExtras},
      * to a cursor as extras.  It first checks {@link FastScrollingIndexCache} to see if we
@@ -6732,13 +7060,40 @@ public class ContactsProvider2 extends AbstractContactsProvider
             b = mFastScrollingIndexCache.get(
                     queryUri, selection, selectionArgs, sortOrder, countExpression);
 
+            // Then, if only some buckets are stale, recount just those.
+            final int[] staleBuckets = (b != null) ? null : mFastScrollingIndexCache
+                    .getStaleBuckets(queryUri, selection, selectionArgs, sortOrder,
+                            countExpression);
+            if (staleBuckets != null) {
+                final long start = System.currentTimeMillis();
+
+                final FastScrollingIndexCache.Index index = getFastScrollingIndexExtras(db, qb,
+                        selection, selectionArgs, sortOrder, countExpression, staleBuckets,
+                        cancellationSignal);
+                if (index != null) {
+                    b = mFastScrollingIndexCache.putBuckets(queryUri, selection, selectionArgs,
+                            sortOrder, countExpression, staleBuckets, index);
+                }
+                if (b != null) {
+                    mFastScrollingIndexCacheRecountCount++;
+                }
+
+                final int time = (int) (System.currentTimeMillis() - start);
+                mTotalTimeFastScrollingIndexRecount += time;
+                if (VERBOSE_LOGGING) {
+                    Log.v(TAG, "Recounting " + staleBuckets.length + " buckets took "
+                            + time + "ms");
+                }
+            }
+
             if (b == null) {
                 mFastScrollingIndexCacheMissCount++;
                 // Not in the cache.  Generate and put.
                 final long start = System.currentTimeMillis();
 
-                b = getFastScrollingIndexExtras(db, qb, selection, selectionArgs,
-                        sortOrder, countExpression, cancellationSignal);
+                final FastScrollingIndexCache.Index index = getFastScrollingIndexExtras(db, qb,
+                        selection, selectionArgs, sortOrder, countExpression, null,
+                        cancellationSignal);
 
                 final long end = System.currentTimeMillis();
                 final int time = (int) (end - start);
@@ -6746,8 +7101,10 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 if (VERBOSE_LOGGING) {
                     Log.v(TAG, "getLetterCountExtraBundle took " + time + "ms");
                 }
-                mFastScrollingIndexCache.put(queryUri, selection, selectionArgs, sortOrder,
-                        countExpression, b);
+                if (index != null) {
+                    b = mFastScrollingIndexCache.put(queryUri, selection, selectionArgs,
+                            sortOrder, countExpression, index);
+                }
             }
         }
         ((AbstractCursor) cursor).setExtras(b);
@@ -6774,13 +7131,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
     }
 
     /**
-     * Computes counts by the address book index labels and returns it as {@link Bundle} which
-     * will be appended to a {@link Cursor} as extras.
+     * Computes counts by the address book index labels, which will be appended to a
+     * {@link Cursor} as extras.
+     *
+     * @param buckets the buckets to count, or null to count all of them
+     * @return the counts, or null if the sort order doesn't support the address book index
      */
-    private static Bundle getFastScrollingIndexExtras(final SQLiteDatabase db,
-            final SQLiteQueryBuilder qb, final String selection, final String[] selectionArgs,
-            final String sortOrder, String countExpression,
-            final CancellationSignal cancellationSignal) {
+    private static FastScrollingIndexCache.Index getFastScrollingIndexExtras(
+            final SQLiteDatabase db, final SQLiteQueryBuilder qb, String selection,
+            final String[] selectionArgs, final String sortOrder, String countExpression,
+            final int[] buckets, final CancellationSignal cancellationSignal) {
         String sortKey;
 
         // The sort order suffix could be something like "DESC".
@@ -6827,6 +7187,19 @@ public class ContactsProvider2 extends AbstractContactsProvider
         projectionMap.put(AddressBookIndexQuery.COUNT,
                 "COUNT(" + countExpression + ") AS " + AddressBookIndexQuery.COUNT);
         qb.setProjectionMap(projectionMap);
+
+        if (buckets != null) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(bucketKey).append(" IN (");
+            for (int i = 0; i < buckets.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(buckets[i]);
+            }
+            sb.append(')');
+            selection = DatabaseUtils.concatenateWhere(selection, sb.toString());
+        }
         String orderBy = AddressBookIndexQuery.BUCKET + sortOrderSuffix
             + ", " + AddressBookIndexQuery.NAME + " COLLATE "
             + PHONEBOOK_COLLATOR_NAME + sortOrderSuffix;
@@ -6839,14 +7212,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
             int numLabels = indexCursor.getCount();
             String labels[] = new String[numLabels];
             int counts[] = new int[numLabels];
+            int bucketIndexes[] = new int[numLabels];
 
             for (int i = 0; i < numLabels; i++) {
                 indexCursor.moveToNext();
                 labels[i] = indexCursor.getString(AddressBookIndexQuery.COLUMN_LABEL);
                 counts[i] = indexCursor.getInt(AddressBookIndexQuery.COLUMN_COUNT);
+                bucketIndexes[i] = indexCursor.getInt(AddressBookIndexQuery.COLUMN_BUCKET);
             }
 
-            return FastScrollingIndexCache.buildExtraBundle(labels, counts);
+            return new FastScrollingIndexCache.Index(labels, counts, bucketIndexes);
         } finally {
             indexCursor.close();
         }
@@ -8829,74 +9204,256 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return version < PROPERTY_AGGREGATION_ALGORITHM_VERSION;
     }
 
-    private void upgradeAggregationAlgorithmInBackground() {
-        Log.i(TAG, "Upgrading aggregation algorithm");
+    /**
+     * A chunk of raw contacts to re-aggregate, and their data matches being loaded by a worker.
+     */
+    private final class AggregationUpgradeChunk {
+        /** The last raw contact ID of the previous chunk, or where the upgrade resumed. */
+        final long afterRawContactId;
+        final long[] rawContactIds;
 
-        final long start = SystemClock.elapsedRealtime();
-        setProviderStatus(ProviderStatus.STATUS_UPGRADING);
+        /** The value of {@link #mCommitGeneration} before the matches were loaded. */
+        final long commitGeneration;
 
-        // Re-aggregate all visible raw contacts.
-        try {
-            int count = 0;
-            SQLiteDatabase db = null;
-            boolean success = false;
-            boolean transactionStarted = false;
-            try {
-                // Re-aggregation is only for the contacts DB.
-                switchToContactMode();
-                db = mContactsHelper.getWritableDatabase();
+        final Future<RawContactMatchBatch> matchBatch;
 
-                // Start the actual process.
-                db.beginTransaction();
-                transactionStarted = true;
+        AggregationUpgradeChunk(final SQLiteDatabase db, long afterRawContactId,
+                final long[] rawContactIds, ExecutorService executor) {
+            this.afterRawContactId = afterRawContactId;
+            this.rawContactIds = rawContactIds;
+            this.commitGeneration = mCommitGeneration.get();
+            matchBatch = executor.submit(new Callable<RawContactMatchBatch>() {
+                @Override
+                public RawContactMatchBatch call() {
+                    return mContactAggregator.loadMatchBatch(db, rawContactIds);
+                }
+            });
+        }
 
-                count = mContactAggregator.markAllVisibleForAggregation(db);
-                mContactAggregator.aggregateInTransaction(mTransactionContext.get(), db);
+        long getLastRawContactId() {
+            return rawContactIds[rawContactIds.length - 1];
+        }
 
-                updateSearchIndexInTransaction();
+        /**
+         * Waits for the data matches, and returns them or null if they couldn't be loaded.
+         */
+        RawContactMatchBatch getMatchBatch() {
+            try {
+                return matchBatch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Failed to load matches of raw contacts after " + afterRawContactId,
+                        e.getCause());
+                return null;
+            }
+        }
+    }
 
-                updateAggregationAlgorithmVersion();
+    /**
+     * Re-aggregates all visible raw contacts in chunks of raw contact IDs.  Each chunk is
+     * re-aggregated in its own transaction, so the provider keeps serving requests during the
+     * upgrade, and the last re-aggregated raw contact is stored in
+     * {@link DbProperties#AGGREGATION_UPGRADE_PROGRESS}, so an upgrade interrupted by a process
+     * kill resumes after the last committed chunk.
+     *
+     * The data matches of the upcoming chunks are loaded by a pool of workers outside of any
+     * transaction.  Scoring the matches against the current contacts and writing the results
+     * stay on this thread, as each raw contact is aggregated with the contacts formed by the
+     * ones before it.  Matches loaded before another transaction was committed are dropped,
+     * as the data they were loaded from may have changed.
+     */
+    @VisibleForTesting
+    void upgradeAggregationAlgorithmInBackground() {
+        Log.i(TAG, "Upgrading aggregation algorithm");
 
-                db.setTransactionSuccessful();
+        final long start = SystemClock.elapsedRealtime();
+        int count = 0;
+        int chunkCount = 0;
+        boolean success = false;
 
-                success = true;
-            } finally {
-                mTransactionContext.get().clearAll();
-                if (transactionStarted) {
-                    db.endTransaction();
-                }
-                final long end = SystemClock.elapsedRealtime();
-                Log.i(TAG, "Aggregation algorithm upgraded for " + count + " raw contacts"
-                        + (success ? (" in " + (end - start) + "ms") : " failed"));
+        final int workerCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                MAX_AGGREGATION_UPGRADE_WORKERS));
+        final ExecutorService executor = Executors.newFixedThreadPool(workerCount,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "AggregationUpgrade");
+                    }
+                });
+        try {
+            // Re-aggregation is only for the contacts DB.
+            switchToContactMode();
+            final SQLiteDatabase db = mContactsHelper.getWritableDatabase();
+
+            final long lastRawContactId = getAggregationUpgradeProgress();
+            if (lastRawContactId != 0) {
+                Log.i(TAG, "Resuming aggregation upgrade after raw contact " + lastRawContactId);
+            }
+            final long[] rawContactIds =
+                    mContactAggregator.getVisibleRawContactIdsForAggregation(db, lastRawContactId);
+
+            // Keep a bounded number of chunks loaded ahead of the writer.  Matches are only
+            // awaited outside of a transaction, so a worker waiting for a database connection
+            // can never block on us.
+            final ArrayDeque<AggregationUpgradeChunk> pending =
+                    new ArrayDeque<AggregationUpgradeChunk>();
+            int next = 0;
+            while (next < rawContactIds.length || !pending.isEmpty()) {
+                while (next < rawContactIds.length && pending.size() < workerCount * 2) {
+                    final int end = Math.min(next + mAggregationUpgradeChunkSize,
+                            rawContactIds.length);
+                    pending.add(new AggregationUpgradeChunk(db,
+                            next == 0 ? lastRawContactId : rawContactIds[next - 1],
+                            Arrays.copyOfRange(rawContactIds, next, end), executor));
+                    next = end;
+                }
+                count += upgradeAggregationChunk(db, pending.poll());
+                chunkCount++;
             }
+            success = true;
         } catch (RuntimeException e) {
             Log.e(TAG, "Failed to upgrade aggregation algorithm; continuing anyway.", e);
+        } finally {
+            mContactAggregator.releaseNameLookupIndex();
+            executor.shutdownNow();
+
+            final long end = SystemClock.elapsedRealtime();
+            Log.i(TAG, "Aggregation algorithm upgraded for " + count + " raw contacts in "
+                    + chunkCount + " chunks" + (success ? (" in " + (end - start) + "ms")
+                            : " before failing"));
+        }
 
-            // Got some exception during re-aggregation.  Re-aggregation isn't that important, so
-            // just bump the aggregation algorithm version and let the provider start normally.
+        try {
+            final SQLiteDatabase db = mContactsHelper.getWritableDatabase();
+            db.beginTransaction();
             try {
-                final SQLiteDatabase db =  mContactsHelper.getWritableDatabase();
-                db.beginTransaction();
-                try {
+                if (success) {
                     updateAggregationAlgorithmVersion();
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                } else {
+                    // Leave the progress after the last committed chunk, so that the failed
+                    // chunk is re-aggregated on the next start.  Re-aggregation isn't that
+                    // important though, so give up if it keeps failing.
+                    final int failures = Integer.parseInt(mContactsHelper.getProperty(
+                            DbProperties.AGGREGATION_UPGRADE_FAILURES, "0")) + 1;
+                    if (failures >= MAX_AGGREGATION_UPGRADE_FAILURES) {
+                        Log.w(TAG, "Giving up aggregation upgrade after " + failures
+                                + " failures");
+                        updateAggregationAlgorithmVersion();
+                    } else {
+                        mContactsHelper.setProperty(DbProperties.AGGREGATION_UPGRADE_FAILURES,
+                                String.valueOf(failures));
+                    }
                 }
-            } catch (RuntimeException e2) {
-                // Couldn't even update the algorithm version...  There's really nothing we can do
-                // here, so just go ahead and start the provider.  Next time the provider starts
-                // it'll try re-aggregation again, which may or may not succeed.
-                Log.e(TAG, "Failed to bump aggregation algorithm version; continuing anyway.", e2);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
-        } finally { // Need one more finally because endTransaction() may fail.
-            setProviderStatus(ProviderStatus.STATUS_NORMAL);
+        } catch (RuntimeException e) {
+            // Couldn't even update the algorithm version...  There's really nothing we can do
+            // here, so just go ahead.  Next time the provider starts it'll resume re-aggregation
+            // after the last committed chunk.
+            Log.e(TAG, "Failed to bump aggregation algorithm version; continuing anyway.", e);
         }
+
+        // Let the UI reload the contacts formed by the new algorithm.
+        notifyChange(false);
+    }
+
+    /**
+     * Re-aggregates a chunk of raw contacts in a transaction, which also records the chunk as
+     * done.  Returns the number of re-aggregated raw contacts.
+     *
+     * @throws RuntimeException if the chunk fails, in which case it is not recorded as done.
+     */
+    private int upgradeAggregationChunk(SQLiteDatabase db, AggregationUpgradeChunk chunk) {
+        final long afterRawContactId = chunk.afterRawContactId;
+        final long lastRawContactId = chunk.getLastRawContactId();
+        RawContactMatchBatch matchBatch = chunk.getMatchBatch();
+
+        final TransactionContext txContext = mTransactionContext.get();
+        final int count;
+        db.beginTransaction();
+        try {
+            if (mFailAggregationUpgradeAtForTest > afterRawContactId
+                    && mFailAggregationUpgradeAtForTest <= lastRawContactId) {
+                throw new IllegalStateException("Failing chunk for test");
+            }
+            if (chunk.commitGeneration != mCommitGeneration.get()) {
+                // Data rows may have changed since the matches were loaded.
+                matchBatch = null;
+            }
+            count = mContactAggregator.markVisibleForAggregation(db, afterRawContactId,
+                    lastRawContactId);
+            mContactAggregator.aggregateInTransaction(txContext, db, matchBatch);
+            updateSearchIndexInTransaction();
+            setAggregationUpgradeProgress(lastRawContactId);
+            db.setTransactionSuccessful();
+        } finally {
+            txContext.clearAll();
+            mContactAggregator.clearPendingAggregations();
+            db.endTransaction();
+        }
+
+        invalidateFastScrollingIndexCache();
+        mCallerIdCache.clear();
+        return count;
+    }
+
+    /**
+     * Returns the last raw contact re-aggregated by the current aggregation upgrade, or 0 if
+     * none was.
+     */
+    private long getAggregationUpgradeProgress() {
+        final String progress =
+                mContactsHelper.getProperty(DbProperties.AGGREGATION_UPGRADE_PROGRESS, "");
+        final String prefix = PROPERTY_AGGREGATION_ALGORITHM_VERSION + ":";
+        if (!progress.startsWith(prefix)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(progress.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Stores the last raw contact re-aggregated by the upgrade to the current aggregation
+     * algorithm version, so that progress made towards an older version is ignored.
+     */
+    @VisibleForTesting
+    void setAggregationUpgradeProgress(long rawContactId) {
+        mContactsHelper.setProperty(DbProperties.AGGREGATION_UPGRADE_PROGRESS,
+                PROPERTY_AGGREGATION_ALGORITHM_VERSION + ":" + rawContactId);
+    }
+
+    @VisibleForTesting
+    void setAggregationUpgradeChunkSizeForTest(int chunkSize) {
+        mAggregationUpgradeChunkSize = chunkSize;
+    }
+
+    /**
+     * Makes the aggregation upgrade fail on the chunk containing the given raw contact, or on no
+     * chunk if 0.
+     */
+    @VisibleForTesting
+    void setAggregationUpgradeFailureForTest(long rawContactId) {
+        mFailAggregationUpgradeAtForTest = rawContactId;
     }
 
     private void updateAggregationAlgorithmVersion() {
         mContactsHelper.setProperty(DbProperties.AGGREGATION_ALGORITHM,
                 String.valueOf(PROPERTY_AGGREGATION_ALGORITHM_VERSION));
+        mContactsHelper.setProperty(DbProperties.AGGREGATION_UPGRADE_PROGRESS, "");
+        mContactsHelper.setProperty(DbProperties.AGGREGATION_UPGRADE_FAILURES, "0");
     }
 
     @VisibleForTesting
@@ -9131,7 +9688,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
      */
     private long replaceAccountInfoByAccountId(Uri uri, ContentValues values) {
         final AccountWithDataSet account = resolveAccountWithDataSet(uri, values);
-        final long id = mDbHelper.get().getOrCreateAccountIdInTransaction(account);
+        final TransactionContext txContext = mTransactionContext.get();
+        Long id = txContext.getGroupAccountIdOrNull(account);
+        if (id == null) {
+            id = mDbHelper.get().getOrCreateAccountIdInTransaction(account);
+            txContext.groupAccountIdResolved(account, id);
+        }
         values.put(RawContactsColumns.ACCOUNT_ID, id);
 
         // Only remove the account information once the account ID is extracted (since these
@@ -9187,12 +9749,30 @@ public class ContactsProvider2 extends AbstractContactsProvider
     @Override
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.print("FastScrollingIndex stats:\n");
-        pw.printf("request=%d  miss=%d (%d%%)  avg time=%dms\n",
+        final int hitCount = mFastScrollingIndexCacheRequestCount
+                - mFastScrollingIndexCacheMissCount - mFastScrollingIndexCacheRecountCount;
+        pw.printf("request=%d  hit=%d (%d%%)  miss=%d (%d%%)  avg time=%dms\n",
                 mFastScrollingIndexCacheRequestCount,
+                hitCount,
+                safeDiv(hitCount * 100, mFastScrollingIndexCacheRequestCount),
                 mFastScrollingIndexCacheMissCount,
                 safeDiv(mFastScrollingIndexCacheMissCount * 100,
                         mFastScrollingIndexCacheRequestCount),
                 safeDiv(mTotalTimeFastScrollingIndexGenerate, mFastScrollingIndexCacheMissCount));
+        pw.printf("bucket recount=%d  avg time=%dms  entries=%d  evicted=%d\n",
+                mFastScrollingIndexCacheRecountCount,
+                safeDiv(mTotalTimeFastScrollingIndexRecount, mFastScrollingIndexCacheRecountCount),
+                mFastScrollingIndexCache.getSize(),
+                mFastScrollingIndexCache.getEvictionCount());
+        pw.print("flushTransactionalChanges stats:\n");
+        pw.printf("flushes=%d", mFlushCount);
+        for (int i = 0; i < FLUSH_STAGE_NAMES.length; i++) {
+            pw.printf("  %s=%dms", FLUSH_STAGE_NAMES[i], mFlushStageTimes[i]);
+        }
+        pw.print("\n");
+        mCallerIdCache.dump(pw);
+        ContactLocaleUtils.getInstance().dump(pw);
+        getYieldPolicy().dump(pw);
     }
 
     private static final long safeDiv(long dividend, long divisor) {
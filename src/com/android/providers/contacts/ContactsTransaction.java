@@ -20,6 +20,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteTransactionListener;
 import android.util.Log;
 
+import com.android.providers.contacts.util.Clock;
 import com.google.android.collect.Lists;
 import com.google.android.collect.Maps;
 
@@ -64,6 +65,13 @@ public class ContactsTransaction {
      */
     private boolean mYieldFailed;
 
+    /**
+     * When the database lock was last acquired, i.e. when the transaction started or was last
+     * yielded, and when it was last checked whether to yield.  See {@link YieldPolicy}.
+     */
+    private long mHeldSinceMillis;
+    private long mLastYieldCheckMillis;
+
     /**
      * Creates a new transaction object, optionally marked as a batch transaction.
      * @param batch Whether the transaction is in batch mode.
@@ -73,6 +81,8 @@ public class ContactsTransaction {
         mDatabasesForTransaction = Lists.newArrayList();
         mDatabaseTagMap = Maps.newHashMap();
         mIsDirty = false;
+        mHeldSinceMillis = Clock.getInstance().elapsedRealtime();
+        mLastYieldCheckMillis = mHeldSinceMillis;
     }
 
     public boolean isBatch() {
@@ -91,6 +101,22 @@ public class ContactsTransaction {
         mYieldFailed = true;
     }
 
+    public long getHeldSinceMillis() {
+        return mHeldSinceMillis;
+    }
+
+    public void setHeldSinceMillis(long heldSinceMillis) {
+        mHeldSinceMillis = heldSinceMillis;
+    }
+
+    public long getLastYieldCheckMillis() {
+        return mLastYieldCheckMillis;
+    }
+
+    public void setLastYieldCheckMillis(long lastYieldCheckMillis) {
+        mLastYieldCheckMillis = lastYieldCheckMillis;
+    }
+
     /**
      * If the given database has not already been enlisted in this transaction, adds it to our
      * list of affected databases and starts a transaction on it.  If we already have the given
@@ -134,7 +134,7 @@ public abstract class DataRowHandler {
         }
 
         if (containsSearchableColumns(values)) {
-            txContext.invalidateSearchIndexForRawContact(rawContactId);
+            txContext.invalidateSearchIndexForData(rawContactId, dataId);
         }
 
         return dataId;
@@ -159,7 +159,7 @@ public abstract class DataRowHandler {
         }
 
         if (containsSearchableColumns(values)) {
-            txContext.invalidateSearchIndexForRawContact(rawContactId);
+            txContext.invalidateSearchIndexForData(rawContactId, dataId);
         }
 
         txContext.markRawContactDirtyAndChanged(rawContactId, callerIsSyncAdapter);
@@ -258,7 +258,7 @@ public abstract class DataRowHandler {
         }
 
         if (hasSearchableData()) {
-            txContext.invalidateSearchIndexForRawContact(rawContactId);
+            txContext.invalidateSearchIndexForDeletedData(rawContactId);
         }
 
         return count;
@@ -302,6 +302,10 @@ public abstract class DataRowHandler {
     protected void fixRawContactDisplayName(SQLiteDatabase db, TransactionContext txContext,
             long rawContactId) {
         if (!isNewRawContact(txContext, rawContactId)) {
+            if (txContext.isDeferringRowSideEffects()) {
+                txContext.deferDisplayNameUpdate(rawContactId);
+                return;
+            }
             mDbHelper.updateRawContactDisplayName(db, rawContactId);
             mContactAggregator.updateDisplayNameForRawContact(db, rawContactId);
         }
@@ -348,6 +352,10 @@ public abstract class DataRowHandler {
     }
 
     public void triggerAggregation(TransactionContext txContext, long rawContactId) {
+        if (txContext.isDeferringRowSideEffects()) {
+            txContext.deferAggregation(rawContactId);
+            return;
+        }
         mContactAggregator.triggerAggregation(txContext, rawContactId);
     }
 
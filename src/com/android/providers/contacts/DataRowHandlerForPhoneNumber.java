@@ -47,8 +47,13 @@ public class DataRowHandlerForPhoneNumber extends DataRowHandlerForCommonDataKin
         if (values.containsKey(Phone.NUMBER)) {
             final String number = values.getAsString(Phone.NUMBER);
             final String normalizedNumber = values.getAsString(Phone.NORMALIZED_NUMBER);
-            updatePhoneLookup(db, rawContactId, dataId, number, normalizedNumber);
-            mContactAggregator.updateHasPhoneNumber(db, rawContactId);
+            // A new data row has no phone lookup rows to delete
+            insertPhoneLookup(rawContactId, dataId, number, normalizedNumber);
+            if (txContext.isDeferringRowSideEffects()) {
+                txContext.deferHasPhoneNumberUpdate(rawContactId);
+            } else {
+                mContactAggregator.updateHasPhoneNumber(db, rawContactId);
+            }
             fixRawContactDisplayName(db, txContext, rawContactId);
 
             triggerAggregation(txContext, rawContactId);
@@ -115,22 +120,17 @@ public class DataRowHandlerForPhoneNumber extends DataRowHandlerForCommonDataKin
             String number, String numberE164) {
         mSelectionArgs1[0] = String.valueOf(dataId);
         db.delete(Tables.PHONE_LOOKUP, PhoneLookupColumns.DATA_ID + "=?", mSelectionArgs1);
+        insertPhoneLookup(rawContactId, dataId, number, numberE164);
+    }
+
+    private void insertPhoneLookup(long rawContactId, long dataId, String number,
+            String numberE164) {
         if (number != null) {
             String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
             if (!TextUtils.isEmpty(normalizedNumber)) {
-                ContentValues phoneValues = new ContentValues();
-                phoneValues.put(PhoneLookupColumns.RAW_CONTACT_ID, rawContactId);
-                phoneValues.put(PhoneLookupColumns.DATA_ID, dataId);
-                phoneValues.put(PhoneLookupColumns.NORMALIZED_NUMBER, normalizedNumber);
-                phoneValues.put(PhoneLookupColumns.MIN_MATCH,
-                        PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
-                db.insert(Tables.PHONE_LOOKUP, null, phoneValues);
-
+                mDbHelper.insertPhoneLookup(rawContactId, dataId, normalizedNumber);
                 if (numberE164 != null && !numberE164.equals(normalizedNumber)) {
-                    phoneValues.put(PhoneLookupColumns.NORMALIZED_NUMBER, numberE164);
-                    phoneValues.put(PhoneLookupColumns.MIN_MATCH,
-                            PhoneNumberUtils.toCallerIDMinMatch(numberE164));
-                    db.insert(Tables.PHONE_LOOKUP, null, phoneValues);
+                    mDbHelper.insertPhoneLookup(rawContactId, dataId, numberE164);
                 }
             }
         }
@@ -33,7 +33,6 @@ import com.android.providers.contacts.aggregation.ContactAggregator;
 public class DataRowHandlerForStructuredName extends DataRowHandler {
     private final NameSplitter mSplitter;
     private final NameLookupBuilder mNameLookupBuilder;
-    private final StringBuilder mSb = new StringBuilder();
 
     public DataRowHandlerForStructuredName(Context context, ContactsDatabaseHelper dbHelper,
             ContactAggregator aggregator, NameSplitter splitter,
@@ -194,20 +193,20 @@ public class DataRowHandlerForStructuredName extends DataRowHandler {
         // Phonetic name is often spelled without spaces
         if (!TextUtils.isEmpty(phoneticFamily) || !TextUtils.isEmpty(phoneticMiddle)
                 || !TextUtils.isEmpty(phoneticGiven)) {
-            mSb.setLength(0);
+            final StringBuilder sb = new StringBuilder();
             if (!TextUtils.isEmpty(phoneticFamily)) {
                 builder.appendName(phoneticFamily);
-                mSb.append(phoneticFamily);
+                sb.append(phoneticFamily);
             }
             if (!TextUtils.isEmpty(phoneticMiddle)) {
                 builder.appendName(phoneticMiddle);
-                mSb.append(phoneticMiddle);
+                sb.append(phoneticMiddle);
             }
             if (!TextUtils.isEmpty(phoneticGiven)) {
                 builder.appendName(phoneticGiven);
-                mSb.append(phoneticGiven);
+                sb.append(phoneticGiven);
             }
-            final String phoneticName = mSb.toString().trim();
+            final String phoneticName = sb.toString().trim();
             int phoneticNameStyle = builder.getInt(StructuredName.PHONETIC_NAME_STYLE);
             if (phoneticNameStyle == PhoneticNameStyle.UNDEFINED) {
                 phoneticNameStyle = mSplitter.guessPhoneticNameStyle(phoneticName);
@@ -21,13 +21,16 @@ import android.content.Context;
 import android.provider.CallLog.Calls;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.android.i18n.phonenumbers.NumberParseException;
 import com.android.i18n.phonenumbers.PhoneNumberUtil;
 import com.android.i18n.phonenumbers.Phonenumber.PhoneNumber;
 import com.android.i18n.phonenumbers.geocoding.PhoneNumberOfflineGeocoder;
+import com.android.providers.contacts.ContactsDatabaseHelper.CallsColumns;
 
 import com.google.android.collect.Sets;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.util.Locale;
 import java.util.Set;
@@ -39,16 +42,39 @@ import java.util.Set;
  * It checks for legacy unknown numbers and updates number presentation.
  * <p>
  * It uses {@link PhoneNumberOfflineGeocoder} to compute the geocoded location of a phone number.
+ * <p>
+ * The same few numbers account for most calls, so the geocoded location and the normalized
+ * number of the last {@link #NUMBER_CACHE_SIZE} numbers are memoized together, by number and
+ * country ISO.  The locale is fixed for the lifetime of the instance.
  */
 /*package*/ class DefaultCallLogInsertionHelper implements CallLogInsertionHelper {
     private static DefaultCallLogInsertionHelper sInstance;
 
     private static final Set<String> LEGACY_UNKNOWN_NUMBERS = Sets.newHashSet("-1", "-2", "-3");
 
+    /** Number of distinct numbers whose geocoded location and normalized number are remembered. */
+    @VisibleForTesting
+    static final int NUMBER_CACHE_SIZE = 500;
+
+    /** The values computed from a number and a country ISO. */
+    private static final class NumberInfo {
+        final String geocodedLocation;
+        final String normalizedNumber;
+
+        NumberInfo(String geocodedLocation, String normalizedNumber) {
+            this.geocodedLocation = geocodedLocation;
+            this.normalizedNumber = normalizedNumber;
+        }
+    }
+
+    private static final NumberInfo EMPTY_NUMBER_INFO = new NumberInfo(null, null);
+
     private final CountryMonitor mCountryMonitor;
     private PhoneNumberUtil mPhoneNumberUtil;
     private PhoneNumberOfflineGeocoder mPhoneNumberOfflineGeocoder;
     private final Locale mLocale;
+    private final LruCache<String, NumberInfo> mNumberInfoCache =
+            new LruCache<String, NumberInfo>(NUMBER_CACHE_SIZE);
 
     public static synchronized DefaultCallLogInsertionHelper getInstance(Context context) {
         if (sInstance == null) {
@@ -67,11 +93,11 @@ import java.util.Set;
         // Insert the current country code, so we know the country the number belongs to.
         String countryIso = getCurrentCountryIso();
         values.put(Calls.COUNTRY_ISO, countryIso);
+        final String number = values.getAsString(Calls.NUMBER);
+        final NumberInfo numberInfo = getNumberInfo(number, countryIso);
         // Insert the geocoded location, so that we do not need to compute it on the fly.
-        values.put(Calls.GEOCODED_LOCATION,
-                getGeocodedLocationFor(values.getAsString(Calls.NUMBER), countryIso));
+        values.put(Calls.GEOCODED_LOCATION, numberInfo.geocodedLocation);
 
-        final String number = values.getAsString(Calls.NUMBER);
         if (LEGACY_UNKNOWN_NUMBERS.contains(number)) {
             values.put(Calls.NUMBER_PRESENTATION, Calls.PRESENTATION_UNKNOWN);
             values.put(Calls.NUMBER, "");
@@ -80,11 +106,26 @@ import java.util.Set;
         // Check for a normalized number; if not present attempt to determine one now.
         if (!values.containsKey(Calls.CACHED_NORMALIZED_NUMBER) &&
                 !TextUtils.isEmpty(number)) {
-            String normalizedNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            String normalizedNumber = numberInfo.normalizedNumber;
             if (!TextUtils.isEmpty(normalizedNumber)) {
                 values.put(Calls.CACHED_NORMALIZED_NUMBER, normalizedNumber);
             }
         }
+
+        putMinMatch(values);
+    }
+
+    /**
+     * Sets the min match of the number in the given values, which the call log is filtered by.
+     * Also called when the number of a call is updated.
+     */
+    static void putMinMatch(ContentValues values) {
+        final String number = values.getAsString(Calls.NUMBER);
+        if (TextUtils.isEmpty(number)) {
+            values.putNull(CallsColumns.MIN_MATCH);
+        } else {
+            values.put(CallsColumns.MIN_MATCH, PhoneNumberUtils.toCallerIDMinMatch(number));
+        }
     }
 
     private String getCurrentCountryIso() {
@@ -115,6 +156,24 @@ import java.util.Set;
 
     @Override
     public String getGeocodedLocationFor(String number, String countryIso) {
+        return getNumberInfo(number, countryIso).geocodedLocation;
+    }
+
+    private NumberInfo getNumberInfo(String number, String countryIso) {
+        if (TextUtils.isEmpty(number)) {
+            return EMPTY_NUMBER_INFO;
+        }
+        final String key = countryIso + ":" + number;
+        NumberInfo numberInfo = mNumberInfoCache.get(key);
+        if (numberInfo == null) {
+            numberInfo = new NumberInfo(computeGeocodedLocation(number, countryIso),
+                    PhoneNumberUtils.formatNumberToE164(number, countryIso));
+            mNumberInfoCache.put(key, numberInfo);
+        }
+        return numberInfo;
+    }
+
+    private String computeGeocodedLocation(String number, String countryIso) {
         PhoneNumber structuredPhoneNumber = parsePhoneNumber(number, countryIso);
         if (structuredPhoneNumber != null) {
             return getPhoneNumberOfflineGeocoder().getDescriptionForNumber(
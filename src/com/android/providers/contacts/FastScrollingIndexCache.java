@@ -26,9 +26,13 @@ import android.provider.ContactsContract.Contacts;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.google.android.collect.Maps;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
 
@@ -39,12 +43,14 @@ import java.util.regex.Pattern;
  * content is also persisted in the shared preferences, so it'll survive even if the process
  * is killed or the device reboots.
  *
- * All the content will be invalidated when the provider detects an operation that could potentially
- * change the index.
+ * Each entry holds the counts of one list variant per address book bucket.  When a write only
+ * affects contacts whose buckets don't change, such as starring a contact, the provider calls
+ * {@link #invalidateBuckets} and the next request recounts just those buckets (see
+ * {@link #getStaleBuckets} and {@link #putBuckets}).  All the content will be invalidated when
+ * the provider detects an operation that could move contacts between buckets.
  *
- * There's no maximum number for cached entries.  It's okay because we store keys and values in
- * a compact form in both the in-memory cache and the preferences.  Also the query in question
- * (the query for contact lists) has relatively low number of variations.
+ * The number of entries is bounded by {@link #MAX_ENTRIES}; the least recently used one is
+ * evicted first.
  *
  * This class is thread-safe.
  */
@@ -54,6 +60,9 @@ public class FastScrollingIndexCache {
     @VisibleForTesting
     static final String PREFERENCE_KEY = "LetterCountCache";
 
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 32;
+
     /**
      * Separator used for in-memory structure.
      */
@@ -66,10 +75,50 @@ public class FastScrollingIndexCache {
     private static final String SAVE_SEPARATOR = "\u0002";
     private static final Pattern SAVE_SEPARATOR_PATTERN = Pattern.compile(SAVE_SEPARATOR);
 
+    /**
+     * Separator between the counts, the buckets and the stale buckets of a saved value.
+     */
+    private static final String BUCKETS_SEPARATOR = "\u0003";
+    private static final Pattern BUCKETS_SEPARATOR_PATTERN = Pattern.compile(BUCKETS_SEPARATOR);
+
+    /**
+     * Address book index labels and counts, together with the bucket of each label.
+     */
+    public static final class Index {
+        public final String[] titles;
+        public final int[] counts;
+        public final int[] buckets;
+
+        public Index(String[] titles, int[] counts, int[] buckets) {
+            this.titles = titles;
+            this.counts = counts;
+            this.buckets = buckets;
+        }
+    }
+
+    /**
+     * A cached value.  {@link #buckets} is null for entries put without bucket information,
+     * which can only be regenerated as a whole.
+     */
+    private static final class Entry {
+        final String value;
+        final int[] buckets;
+        final boolean alternative;
+        final BitSet staleBuckets = new BitSet();
+
+        Entry(String value, int[] buckets, boolean alternative) {
+            this.value = value;
+            this.buckets = buckets;
+            this.alternative = alternative;
+        }
+    }
+
     private final SharedPreferences mPrefs;
 
     private boolean mPreferenceLoaded;
 
+    private int mEvictionCount;
+
     /**
      * In-memory cache.
      *
@@ -80,10 +129,23 @@ public class FastScrollingIndexCache {
      * Key strings are generated by {@link #buildCacheKey} and values are generated by
      * {@link #buildCacheValue}.
      *
+     * The map is in access order, so that the least recently used entry is evicted once there
+     * are more than {@link #MAX_ENTRIES}.
+     *
      * We store those strings joined with {@link #SAVE_SEPARATOR} as the separator when saving
      * to shared preferences.
      */
-    private final Map<String, String> mCache = Maps.newHashMap();
+    private final LinkedHashMap<String, Entry> mCache =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        mEvictionCount++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
 
     private static FastScrollingIndexCache sSingleton;
 
@@ -195,21 +257,37 @@ public class FastScrollingIndexCache {
         }
     }
 
+    /**
+     * Returns whether the index for the given sort order is built on
+     * {@link Contacts#SORT_KEY_ALTERNATIVE}.
+     */
+    private static boolean isAlternativeSortOrder(String sortOrder) {
+        return sortOrder != null && sortOrder.startsWith(Contacts.SORT_KEY_ALTERNATIVE);
+    }
+
+    private static boolean isDescendingSortOrder(String sortOrder) {
+        return sortOrder != null && sortOrder.trim().toUpperCase().endsWith(" DESC");
+    }
+
+    /**
+     * Returns the cached bundle, or null if there is no entry for the query or if some of its
+     * buckets are stale.
+     */
     public Bundle get(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
             String countExpression) {
         synchronized (mCache) {
             ensureLoaded();
             final String key = buildCacheKey(queryUri, selection, selectionArgs, sortOrder,
                     countExpression);
-            final String value = mCache.get(key);
-            if (value == null) {
+            final Entry entry = mCache.get(key);
+            if (entry == null || !entry.staleBuckets.isEmpty()) {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "Miss: " + key);
+                    Log.v(TAG, (entry == null ? "Miss: " : "Stale: ") + key);
                 }
                 return null;
             }
 
-            final Bundle b = buildExtraBundleFromValue(value);
+            final Bundle b = buildExtraBundleFromValue(entry.value);
             if (b == null) {
                 // Value was malformed for whatever reason.
                 mCache.remove(key);
@@ -223,19 +301,61 @@ public class FastScrollingIndexCache {
         }
     }
 
+    /**
+     * Returns the buckets of the cached entry that need to be recounted, or null if there is
+     * no entry for the query or if it needs to be regenerated as a whole.
+     */
+    public int[] getStaleBuckets(Uri queryUri, String selection, String[] selectionArgs,
+            String sortOrder, String countExpression) {
+        synchronized (mCache) {
+            ensureLoaded();
+            final Entry entry = mCache.get(buildCacheKey(queryUri, selection, selectionArgs,
+                    sortOrder, countExpression));
+            if (entry == null || entry.buckets == null || entry.staleBuckets.isEmpty()) {
+                return null;
+            }
+            final int[] buckets = new int[entry.staleBuckets.cardinality()];
+            int i = 0;
+            for (int bucket = entry.staleBuckets.nextSetBit(0); bucket >= 0;
+                    bucket = entry.staleBuckets.nextSetBit(bucket + 1)) {
+                buckets[i++] = bucket;
+            }
+            return buckets;
+        }
+    }
+
     /**
      * Put a {@link Bundle} into the cache.  {@link Bundle} MUST be built with
      * {@link #buildExtraBundle(String[], int[])}.
      */
     public void put(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
             String countExpression, Bundle bundle) {
+        put(queryUri, selection, selectionArgs, sortOrder, countExpression,
+                bundle.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES),
+                bundle.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS), null);
+    }
+
+    /**
+     * Put an {@link Index} into the cache.  Unlike entries put as a {@link Bundle}, its buckets
+     * can be invalidated individually.
+     *
+     * @return the {@link Bundle} to append to the cursor
+     */
+    public Bundle put(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
+            String countExpression, Index index) {
+        put(queryUri, selection, selectionArgs, sortOrder, countExpression,
+                index.titles, index.counts, index.buckets);
+        return buildExtraBundle(index.titles, index.counts);
+    }
+
+    private void put(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
+            String countExpression, String[] titles, int[] counts, int[] buckets) {
         synchronized (mCache) {
             ensureLoaded();
             final String key = buildCacheKey(queryUri, selection, selectionArgs, sortOrder,
                     countExpression);
-            mCache.put(key, buildCacheValue(
-                    bundle.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES),
-                    bundle.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS)));
+            mCache.put(key, new Entry(buildCacheValue(titles, counts), buckets,
+                    isAlternativeSortOrder(sortOrder)));
             save();
 
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
@@ -244,6 +364,120 @@ public class FastScrollingIndexCache {
         }
     }
 
+    /**
+     * Replaces the counts of the given buckets of a cached entry.
+     *
+     * @param buckets the buckets that were recounted, as returned by {@link #getStaleBuckets}
+     * @param index the labels and counts of those buckets
+     * @return the {@link Bundle} to append to the cursor, or null if the entry was removed or
+     *     invalidated as a whole in the meantime
+     */
+    public Bundle putBuckets(Uri queryUri, String selection, String[] selectionArgs,
+            String sortOrder, String countExpression, int[] buckets, Index index) {
+        synchronized (mCache) {
+            ensureLoaded();
+            final String key = buildCacheKey(queryUri, selection, selectionArgs, sortOrder,
+                    countExpression);
+            final Entry entry = mCache.get(key);
+            final Bundle old = entry == null || entry.buckets == null
+                    ? null : buildExtraBundleFromValue(entry.value);
+            if (old == null) {
+                return null;
+            }
+            final String[] oldTitles = old.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES);
+            final int[] oldCounts = old.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS);
+
+            final BitSet recounted = new BitSet();
+            for (int bucket : buckets) {
+                recounted.set(bucket);
+            }
+
+            // Keep the rows of the other buckets and add the recounted ones.  The list is
+            // ordered by bucket; the sort is stable, so labels sharing a bucket keep the order
+            // of the query they came from.
+            final ArrayList<int[]> rows = new ArrayList<int[]>();
+            for (int i = 0; i < oldTitles.length; i++) {
+                if (!recounted.get(entry.buckets[i])) {
+                    rows.add(new int[] {entry.buckets[i], i});
+                }
+            }
+            for (int i = 0; i < index.titles.length; i++) {
+                rows.add(new int[] {index.buckets[i], oldTitles.length + i});
+            }
+            final boolean descending = isDescendingSortOrder(sortOrder);
+            Collections.sort(rows, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] lhs, int[] rhs) {
+                    final int result = lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+                    return descending ? -result : result;
+                }
+            });
+
+            final int size = rows.size();
+            final String[] titles = new String[size];
+            final int[] counts = new int[size];
+            final int[] newBuckets = new int[size];
+            for (int i = 0; i < size; i++) {
+                final int[] row = rows.get(i);
+                newBuckets[i] = row[0];
+                if (row[1] < oldTitles.length) {
+                    titles[i] = oldTitles[row[1]];
+                    counts[i] = oldCounts[row[1]];
+                } else {
+                    titles[i] = index.titles[row[1] - oldTitles.length];
+                    counts[i] = index.counts[row[1] - oldTitles.length];
+                }
+            }
+
+            final Entry refreshed = new Entry(buildCacheValue(titles, counts), newBuckets,
+                    entry.alternative);
+            refreshed.staleBuckets.or(entry.staleBuckets);
+            refreshed.staleBuckets.andNot(recounted);
+            mCache.put(key, refreshed);
+            save();
+
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Recounted " + buckets.length + " buckets: " + key);
+            }
+            return refreshed.staleBuckets.isEmpty() ? buildExtraBundle(titles, counts) : null;
+        }
+    }
+
+    /**
+     * Marks the given buckets stale in all entries.  Entries that were put without bucket
+     * information are removed.
+     *
+     * @param primaryBuckets buckets of the affected contacts for
+     *     {@link Contacts#SORT_KEY_PRIMARY}
+     * @param alternativeBuckets buckets of the affected contacts for
+     *     {@link Contacts#SORT_KEY_ALTERNATIVE}
+     */
+    public void invalidateBuckets(BitSet primaryBuckets, BitSet alternativeBuckets) {
+        if (primaryBuckets.isEmpty() && alternativeBuckets.isEmpty()) {
+            return;
+        }
+        synchronized (mCache) {
+            ensureLoaded();
+            final ArrayList<String> removed = new ArrayList<String>();
+            for (Map.Entry<String, Entry> e : mCache.entrySet()) {
+                final Entry entry = e.getValue();
+                if (entry.buckets == null) {
+                    removed.add(e.getKey());
+                } else {
+                    entry.staleBuckets.or(entry.alternative ? alternativeBuckets : primaryBuckets);
+                }
+            }
+            for (String key : removed) {
+                mCache.remove(key);
+            }
+            save();
+
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Invalidated buckets " + primaryBuckets + " / " + alternativeBuckets);
+            }
+        }
+    }
+
     public void invalidate() {
         synchronized (mCache) {
             mPrefs.edit().remove(PREFERENCE_KEY).commit();
@@ -256,20 +490,91 @@ public class FastScrollingIndexCache {
         }
     }
 
+    public int getSize() {
+        synchronized (mCache) {
+            return mCache.size();
+        }
+    }
+
+    public int getEvictionCount() {
+        synchronized (mCache) {
+            return mEvictionCount;
+        }
+    }
+
+    private static String buildSavedValue(Entry entry) {
+        final StringBuilder sb = new StringBuilder(entry.value);
+        if (entry.buckets != null) {
+            appendIfNotNull(sb, BUCKETS_SEPARATOR);
+            appendIfNotNull(sb, entry.alternative ? "1" : "0");
+            appendIfNotNull(sb, BUCKETS_SEPARATOR);
+            for (int i = 0; i < entry.buckets.length; i++) {
+                if (i > 0) {
+                    appendIfNotNull(sb, SEPARATOR);
+                }
+                appendIfNotNull(sb, Integer.toString(entry.buckets[i]));
+            }
+            appendIfNotNull(sb, BUCKETS_SEPARATOR);
+            boolean first = true;
+            for (int bucket = entry.staleBuckets.nextSetBit(0); bucket >= 0;
+                    bucket = entry.staleBuckets.nextSetBit(bucket + 1)) {
+                if (!first) {
+                    appendIfNotNull(sb, SEPARATOR);
+                }
+                appendIfNotNull(sb, Integer.toString(bucket));
+                first = false;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int[] parseBuckets(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return new int[0];
+        }
+        final String[] values = SEPARATOR_PATTERN.split(value);
+        final int[] buckets = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            buckets[i] = Integer.parseInt(values[i]);
+        }
+        return buckets;
+    }
+
+    /**
+     * Parses a value saved by {@link #buildSavedValue}.  Throws a {@link RuntimeException} if
+     * it's malformed.
+     */
+    private static Entry parseSavedValue(String savedValue) {
+        // Keep trailing empty strings, which are empty bucket lists.
+        final String[] parts = BUCKETS_SEPARATOR_PATTERN.split(savedValue, -1);
+        if (parts.length == 1) {
+            return new Entry(parts[0], null, false);
+        }
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Malformed value");
+        }
+        final Entry entry = new Entry(parts[0], parseBuckets(parts[2]), "1".equals(parts[1]));
+        for (int bucket : parseBuckets(parts[3])) {
+            entry.staleBuckets.set(bucket);
+        }
+        return entry;
+    }
+
     /**
      * Store the cache to the preferences.
      *
-     * We concatenate all key+value pairs into one string and save it.
+     * We concatenate all key+value pairs into one string and save it.  Entries are saved least
+     * recently used first, so the access order survives a reload.
      */
     private void save() {
         final StringBuilder sb = new StringBuilder();
-        for (String key : mCache.keySet()) {
+        for (Map.Entry<String, Entry> e : mCache.entrySet()) {
             if (sb.length() > 0) {
                 appendIfNotNull(sb, SAVE_SEPARATOR);
             }
-            appendIfNotNull(sb, key);
+            appendIfNotNull(sb, e.getKey());
             appendIfNotNull(sb, SAVE_SEPARATOR);
-            appendIfNotNull(sb, mCache.get(key));
+            appendIfNotNull(sb, buildSavedValue(e.getValue()));
         }
         mPrefs.edit().putString(PREFERENCE_KEY, sb.toString()).apply();
     }
@@ -304,7 +609,7 @@ public class FastScrollingIndexCache {
                         Log.v(TAG, "Loaded: " + key);
                     }
 
-                    mCache.put(key, value);
+                    mCache.put(key, parseSavedValue(value));
                 }
             }
             successfullyLoaded = true;
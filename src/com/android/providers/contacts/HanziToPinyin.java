@@ -20,6 +20,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Locale;
 
 import libcore.icu.Transliterator;
@@ -37,6 +38,16 @@ public class HanziToPinyin {
     private Transliterator mPinyinTransliterator;
     private Transliterator mAsciiTransliterator;
 
+    /** The transliteration of a character has not been looked up yet. */
+    private static final short TARGET_UNKNOWN = 0;
+    /** The transliteration of a character is the character itself. */
+    private static final short TARGET_UNCHANGED = -1;
+
+    /** Indexed by character: TARGET_UNKNOWN, TARGET_UNCHANGED or 1 + index in mTargets. */
+    private short[] mTargetIds;
+    private String[] mTargets;
+    private int mTargetCount;
+
     public static class Token {
         /**
          * Separator between target string for each source char
@@ -94,31 +105,122 @@ public class HanziToPinyin {
         }
     }
 
-    private void tokenize(char character, Token token) {
-        token.source = Character.toString(character);
+    /**
+     * The tokens of a string, as found by {@link #getTokens(String, TokenBuffer)}.  A buffer can
+     * be reused for any number of strings, so that tokenizing does not allocate once the buffer
+     * has grown to the size of the longest string.
+     *
+     * The source of token i is the text between {@link #getStart} and {@link #getEnd}.  Its
+     * target is the same text, except for {@link Token#PINYIN} tokens, whose target is returned
+     * by {@link #getPinyin}.
+     */
+    public static final class TokenBuffer {
+        private final StringBuilder mText = new StringBuilder();
+        private int mSize;
+        private int[] mTypes = new int[8];
+        private int[] mStarts = new int[8];
+        private int[] mEnds = new int[8];
+        private String[] mPinyins = new String[8];
 
-        // ASCII
-        if (character < 128) {
-            token.type = Token.LATIN;
-            token.target = token.source;
-            return;
+        public int size() {
+            return mSize;
         }
 
-        // Extended Latin. Transcode these to ASCII equivalents
-        if (character < 0x250 || (0x1e00 <= character && character < 0x1eff)) {
-            token.type = Token.LATIN;
-            token.target = mAsciiTransliterator == null ? token.source :
-                mAsciiTransliterator.transliterate(token.source);
-            return;
+        public int getType(int i) {
+            return mTypes[i];
+        }
+
+        public int getStart(int i) {
+            return mStarts[i];
+        }
+
+        public int getEnd(int i) {
+            return mEnds[i];
+        }
+
+        public String getPinyin(int i) {
+            return mPinyins[i];
+        }
+
+        public CharSequence getText() {
+            return mText;
+        }
+
+        private void clear() {
+            mText.setLength(0);
+            mSize = 0;
+        }
+
+        private void add(int type, int start, String pinyin) {
+            if (mSize == mTypes.length) {
+                final int capacity = mSize * 2;
+                mTypes = Arrays.copyOf(mTypes, capacity);
+                mStarts = Arrays.copyOf(mStarts, capacity);
+                mEnds = Arrays.copyOf(mEnds, capacity);
+                mPinyins = Arrays.copyOf(mPinyins, capacity);
+            }
+            mTypes[mSize] = type;
+            mStarts[mSize] = start;
+            mEnds[mSize] = mText.length();
+            mPinyins[mSize] = pinyin;
+            mSize++;
+        }
+    }
+
+    /**
+     * Returns the transliteration of a non-ASCII character, or null if it is left unchanged.
+     * Transliterating is slow, so the result is kept in a table indexed by character, which
+     * holds indexes into a table of the distinct transliterations, such as pinyin syllables.
+     */
+    private synchronized String getTarget(char character) {
+        if (mTargetIds == null) {
+            mTargetIds = new short[Character.MAX_VALUE + 1];
+            mTargets = new String[256];
+            mTargetCount = 0;
+        }
+
+        final short id = mTargetIds[character];
+        if (id == TARGET_UNCHANGED) {
+            return null;
+        } else if (id != TARGET_UNKNOWN) {
+            return mTargets[id - 1];
+        }
+
+        final String source = Character.toString(character);
+        String target;
+        if (isExtendedLatin(character)) {
+            target = mAsciiTransliterator == null ? source :
+                mAsciiTransliterator.transliterate(source);
+        } else {
+            target = mPinyinTransliterator.transliterate(source);
+            if (TextUtils.isEmpty(target)) {
+                target = source;
+            }
         }
 
-        token.type = Token.PINYIN;
-        token.target = mPinyinTransliterator.transliterate(token.source);
-        if (TextUtils.isEmpty(token.target) ||
-            TextUtils.equals(token.source, token.target)) {
-            token.type = Token.UNKNOWN;
-            token.target = token.source;
+        if (TextUtils.equals(source, target)) {
+            mTargetIds[character] = TARGET_UNCHANGED;
+            return null;
+        }
+
+        for (int i = 0; i < mTargetCount; i++) {
+            if (mTargets[i].equals(target)) {
+                mTargetIds[character] = (short) (i + 1);
+                return mTargets[i];
+            }
+        }
+        if (mTargetCount < Short.MAX_VALUE) {
+            if (mTargetCount == mTargets.length) {
+                mTargets = Arrays.copyOf(mTargets, mTargetCount * 2);
+            }
+            mTargets[mTargetCount++] = target;
+            mTargetIds[character] = (short) mTargetCount;
         }
+        return target;
+    }
+
+    private static boolean isExtendedLatin(char character) {
+        return character < 0x250 || (0x1e00 <= character && character < 0x1eff);
     }
 
     public String transliterate(final String input) {
@@ -134,16 +236,36 @@ public class HanziToPinyin {
      * Token. If there is no Chinese transliterator, the empty token array is returned.
      */
     public ArrayList<Token> getTokens(final String input) {
-        ArrayList<Token> tokens = new ArrayList<Token>();
+        final TokenBuffer buffer = new TokenBuffer();
+        getTokens(input, buffer);
+
+        final int size = buffer.size();
+        final ArrayList<Token> tokens = new ArrayList<Token>(size);
+        final CharSequence text = buffer.getText();
+        for (int i = 0; i < size; i++) {
+            final String source =
+                    text.subSequence(buffer.getStart(i), buffer.getEnd(i)).toString();
+            final int type = buffer.getType(i);
+            tokens.add(new Token(type, source,
+                    type == Token.PINYIN ? buffer.getPinyin(i) : source));
+        }
+        return tokens;
+    }
+
+    /**
+     * Like {@link #getTokens(String)}, but puts the tokens into the given buffer, replacing its
+     * contents.
+     */
+    public void getTokens(final String input, final TokenBuffer tokens) {
+        tokens.clear();
         if (!hasChineseTransliterator() || TextUtils.isEmpty(input)) {
-            // return empty tokens.
-            return tokens;
+            return;
         }
 
+        final StringBuilder text = tokens.mText;
         final int inputLength = input.length();
-        final StringBuilder sb = new StringBuilder();
         int tokenType = Token.LATIN;
-        Token token = new Token();
+        int tokenStart = 0;
 
         // Go through the input, create a new token when
         // a. Token type changed
@@ -152,36 +274,47 @@ public class HanziToPinyin {
         for (int i = 0; i < inputLength; i++) {
             final char character = input.charAt(i);
             if (Character.isSpaceChar(character)) {
-                if (sb.length() > 0) {
-                    addToken(sb, tokens, tokenType);
+                if (text.length() > tokenStart) {
+                    tokens.add(tokenType, tokenStart, null);
+                    tokenStart = text.length();
+                }
+                continue;
+            }
+
+            final int type;
+            final String target;
+            if (character < 128) {
+                type = Token.LATIN;
+                target = null;
+            } else {
+                target = getTarget(character);
+                type = isExtendedLatin(character) ? Token.LATIN
+                        : target == null ? Token.UNKNOWN : Token.PINYIN;
+            }
+
+            if (type == Token.PINYIN) {
+                if (text.length() > tokenStart) {
+                    tokens.add(tokenType, tokenStart, null);
+                    tokenStart = text.length();
                 }
+                text.append(character);
+                tokens.add(Token.PINYIN, tokenStart, target);
+                tokenStart = text.length();
             } else {
-                tokenize(character, token);
-                if (token.type == Token.PINYIN) {
-                    if (sb.length() > 0) {
-                        addToken(sb, tokens, tokenType);
-                    }
-                    tokens.add(token);
-                    token = new Token();
+                if (tokenType != type && text.length() > tokenStart) {
+                    tokens.add(tokenType, tokenStart, null);
+                    tokenStart = text.length();
+                }
+                if (target == null) {
+                    text.append(character);
                 } else {
-                    if (tokenType != token.type && sb.length() > 0) {
-                        addToken(sb, tokens, tokenType);
-                    }
-                    sb.append(token.target);
+                    text.append(target);
                 }
-                tokenType = token.type;
             }
+            tokenType = type;
         }
-        if (sb.length() > 0) {
-            addToken(sb, tokens, tokenType);
+        if (text.length() > tokenStart) {
+            tokens.add(tokenType, tokenStart, null);
         }
-        return tokens;
-    }
-
-    private void addToken(
-            final StringBuilder sb, final ArrayList<Token> tokens, final int tokenType) {
-        String str = sb.toString();
-        tokens.add(new Token(tokenType, str, str));
-        sb.setLength(0);
     }
 }
@@ -139,14 +139,19 @@ public abstract class NameLookupBuilder {
         insertNicknamePermutations(rawContactId, dataId, 0, tokenCount);
     }
 
+    /**
+     * Appends the name tokens and shorthand lookups for the given name to the search index.
+     * Unlike {@link #insertNameLookup}, this does not use any of the shared buffers.
+     */
     public void appendToSearchIndex(IndexBuilder builder, String name, int fullNameStyle) {
-        int tokenCount = mSplitter.tokenize(mNames, name);
+        final String[] names = new String[NameSplitter.MAX_TOKENS];
+        int tokenCount = mSplitter.tokenize(names, name);
         if (tokenCount == 0) {
             return;
         }
 
         for (int i = 0; i < tokenCount; i++) {
-            builder.appendName(mNames[i]);
+            builder.appendName(names[i]);
         }
 
         appendNameShorthandLookup(builder, name, fullNameStyle);
@@ -178,7 +183,7 @@ public abstract class NameLookupBuilder {
         int character;
 
         final int stringLength = name.length();
-        mStringBuilder.setLength(0);
+        final StringBuilder consonants = new StringBuilder(stringLength);
         do {
             character = name.codePointAt(position++);
             if ((character == 0x20) || (character == 0x2c) || (character == 0x2E)) {
@@ -211,14 +216,14 @@ public abstract class NameLookupBuilder {
                     break;
                 }
             }
-            mStringBuilder.appendCodePoint(character);
+            consonants.appendCodePoint(character);
             consonantLength++;
         } while (position < stringLength);
 
         // At least, insert consonants when Korean characters are two or more.
         // Only one character cases are covered by NAME_COLLATION_KEY
         if (consonantLength > 1) {
-            builder.appendName(mStringBuilder.toString());
+            builder.appendName(consonants.toString());
         }
     }
 
@@ -24,9 +24,9 @@ import android.text.TextUtils;
 import com.android.providers.contacts.util.NeededForTesting;
 
 import java.lang.Character.UnicodeBlock;
-import java.util.HashSet;
 import java.util.Locale;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The purpose of this class is to split a full name into given names and last
@@ -53,11 +53,15 @@ public class NameSplitter {
     // This includes simplified and traditional Chinese
     private static final String CHINESE_LANGUAGE = Locale.CHINESE.getLanguage().toLowerCase();
 
-    private final HashSet<String> mPrefixesSet;
-    private final HashSet<String> mSuffixesSet;
+    private final WordSet mPrefixesSet;
+    private final WordSet mSuffixesSet;
     private final int mMaxSuffixLength;
-    private final HashSet<String> mLastNamePrefixesSet;
-    private final HashSet<String> mConjuctions;
+    private final WordSet mLastNamePrefixesSet;
+    private final WordSet mConjuctions;
+
+    /** A tokenizer kept for the next name, so that splitting a name does not allocate one. */
+    private final AtomicReference<NameTokenizer> mTokenizerPool =
+            new AtomicReference<NameTokenizer>();
     private final Locale mLocale;
     private final String mLanguage;
 
@@ -219,40 +223,79 @@ public class NameSplitter {
         }
     }
 
-    private static class NameTokenizer extends StringTokenizer {
-        private final String[] mTokens;
+    /**
+     * Splits a full name into tokens on spaces, dots and commas, remembering which tokens are
+     * followed by a dot or a comma.  Tokens are kept as offsets into the full name, so that a
+     * tokenizer can be reused from one name to the next.
+     */
+    private static class NameTokenizer {
+        private final int[] mStarts = new int[MAX_TOKENS];
+        private final int[] mEnds = new int[MAX_TOKENS];
+        private String mFullName;
         private int mDotBitmask;
         private int mCommaBitmask;
         private int mStartPointer;
         private int mEndPointer;
 
-        public NameTokenizer(String fullName) {
-            super(fullName, " .,", true);
+        public void reset(String fullName) {
+            mFullName = fullName;
+            mDotBitmask = 0;
+            mCommaBitmask = 0;
+            mStartPointer = 0;
+            mEndPointer = 0;
 
-            mTokens = new String[MAX_TOKENS];
-
-            // Iterate over tokens, skipping over empty ones and marking tokens that
+            // Iterate over tokens, skipping over spaces and marking tokens that
             // are followed by dots.
-            while (hasMoreTokens() && mEndPointer < MAX_TOKENS) {
-                final String token = nextToken();
-                if (token.length() > 0) {
-                    final char c = token.charAt(0);
-                    if (c == ' ') {
-                        continue;
-                    }
+            final int length = fullName.length();
+            int offset = 0;
+            while (offset < length && mEndPointer < MAX_TOKENS) {
+                final int start = offset;
+                final char c = fullName.charAt(offset++);
+                if (c == ' ') {
+                    continue;
                 }
 
-                if (mEndPointer > 0 && token.charAt(0) == '.') {
-                    mDotBitmask |= (1 << (mEndPointer - 1));
-                } else if (mEndPointer > 0 && token.charAt(0) == ',') {
-                    mCommaBitmask |= (1 << (mEndPointer - 1));
-                } else {
-                    mTokens[mEndPointer] = token;
-                    mEndPointer++;
+                if (c != '.' && c != ',') {
+                    while (offset < length && !isDelimiter(fullName.charAt(offset))) {
+                        offset++;
+                    }
+                } else if (mEndPointer > 0) {
+                    if (c == '.') {
+                        mDotBitmask |= (1 << (mEndPointer - 1));
+                    } else {
+                        mCommaBitmask |= (1 << (mEndPointer - 1));
+                    }
+                    continue;
                 }
+
+                mStarts[mEndPointer] = start;
+                mEnds[mEndPointer] = offset;
+                mEndPointer++;
             }
         }
 
+        private static boolean isDelimiter(char c) {
+            return c == ' ' || c == '.' || c == ',';
+        }
+
+        /**
+         * Returns the token at the given index as a string.
+         */
+        public String getToken(int index) {
+            return mFullName.substring(mStarts[index], mEnds[index]);
+        }
+
+        public int getLength(int index) {
+            return mEnds[index] - mStarts[index];
+        }
+
+        /**
+         * Returns true if the token is in the given set.
+         */
+        public boolean isIn(WordSet set, int index) {
+            return set.contains(mFullName, mStarts[index], mEnds[index]);
+        }
+
         /**
          * Returns true if the token is followed by a dot in the original full name.
          */
@@ -268,6 +311,111 @@ public class NameSplitter {
         }
     }
 
+    /**
+     * A set of words compared ignoring case, stored as a trie so that a word can be looked up
+     * in place, e.g. as a range of a full name, without making an upper-case copy of it.
+     */
+    private static class WordSet {
+        private static final char[] NO_CHARS = new char[0];
+        private static final Node[] NO_NODES = new Node[0];
+
+        private static class Node {
+            char[] mChars = NO_CHARS;
+            Node[] mChildren = NO_NODES;
+            boolean mIsWord;
+
+            public Node getChild(char c) {
+                for (int i = 0; i < mChars.length; i++) {
+                    if (mChars[i] == c) {
+                        return mChildren[i];
+                    }
+                }
+                return null;
+            }
+
+            public Node addChild(char c) {
+                Node child = getChild(c);
+                if (child == null) {
+                    final int count = mChars.length;
+                    final char[] chars = new char[count + 1];
+                    final Node[] children = new Node[count + 1];
+                    System.arraycopy(mChars, 0, chars, 0, count);
+                    System.arraycopy(mChildren, 0, children, 0, count);
+                    child = new Node();
+                    chars[count] = c;
+                    children[count] = child;
+                    mChars = chars;
+                    mChildren = children;
+                }
+                return child;
+            }
+        }
+
+        private final Node mRoot = new Node();
+        private int mMaxLength;
+
+        /**
+         * Builds a set from a comma-separated list of words. Trims the words.
+         */
+        public WordSet(String words) {
+            if (words != null) {
+                String[] split = words.split(",");
+                for (int i = 0; i < split.length; i++) {
+                    add(split[i].trim());
+                }
+            }
+        }
+
+        private void add(String word) {
+            Node node = mRoot;
+            final int length = word.length();
+            for (int i = 0; i < length; i++) {
+                node = node.addChild(Character.toUpperCase(word.charAt(i)));
+            }
+            node.mIsWord = true;
+            mMaxLength = Math.max(mMaxLength, length);
+        }
+
+        /**
+         * Returns the length of the longest word.
+         */
+        public int getMaxLength() {
+            return mMaxLength;
+        }
+
+        /**
+         * Returns the node reached from the given node by the characters between start and end
+         * of the string, or null if no word continues that way.
+         */
+        public Node find(Node node, CharSequence s, int start, int end) {
+            for (int i = start; i < end && node != null; i++) {
+                node = node.getChild(Character.toUpperCase(s.charAt(i)));
+            }
+            return node;
+        }
+
+        public Node getRoot() {
+            return mRoot;
+        }
+
+        public boolean contains(CharSequence s, int start, int end) {
+            final Node node = find(mRoot, s, start, end);
+            return node != null && node.mIsWord;
+        }
+
+        /**
+         * Returns true if the set contains the characters between start and end, followed by a
+         * dot.
+         */
+        public boolean containsWithDot(CharSequence s, int start, int end) {
+            Node node = find(mRoot, s, start, end);
+            if (node != null) {
+                node = node.getChild('.');
+            }
+            return node != null && node.mIsWord;
+        }
+    }
+
     /**
      * Constructor.
      *
@@ -283,36 +431,30 @@ public class NameSplitter {
     public NameSplitter(String commonPrefixes, String commonLastNamePrefixes,
             String commonSuffixes, String commonConjunctions, Locale locale) {
         // TODO: refactor this to use <string-array> resources
-        mPrefixesSet = convertToSet(commonPrefixes);
-        mLastNamePrefixesSet = convertToSet(commonLastNamePrefixes);
-        mSuffixesSet = convertToSet(commonSuffixes);
-        mConjuctions = convertToSet(commonConjunctions);
+        mPrefixesSet = new WordSet(commonPrefixes);
+        mLastNamePrefixesSet = new WordSet(commonLastNamePrefixes);
+        mSuffixesSet = new WordSet(commonSuffixes);
+        mConjuctions = new WordSet(commonConjunctions);
         mLocale = locale != null ? locale : Locale.getDefault();
         mLanguage = mLocale.getLanguage().toLowerCase();
-
-        int maxLength = 0;
-        for (String suffix : mSuffixesSet) {
-            if (suffix.length() > maxLength) {
-                maxLength = suffix.length();
-            }
-        }
-
-        mMaxSuffixLength = maxLength;
+        mMaxSuffixLength = mSuffixesSet.getMaxLength();
     }
 
     /**
-     * Converts a comma-separated list of Strings to a set of Strings. Trims strings
-     * and converts them to upper case.
+     * Returns a tokenizer for the full name.  Pass it to {@link #releaseTokenizer} once done.
      */
-    private static HashSet<String> convertToSet(String strings) {
-        HashSet<String> set = new HashSet<String>();
-        if (strings != null) {
-            String[] split = strings.split(",");
-            for (int i = 0; i < split.length; i++) {
-                set.add(split[i].trim().toUpperCase());
-            }
+    private NameTokenizer obtainTokenizer(String fullName) {
+        NameTokenizer tokenizer = mTokenizerPool.getAndSet(null);
+        if (tokenizer == null) {
+            tokenizer = new NameTokenizer();
         }
-        return set;
+        tokenizer.reset(fullName);
+        return tokenizer;
+    }
+
+    private void releaseTokenizer(NameTokenizer tokenizer) {
+        tokenizer.mFullName = null;
+        mTokenizerPool.set(tokenizer);
     }
 
     /**
@@ -323,18 +465,12 @@ public class NameSplitter {
             return 0;
         }
 
-        NameTokenizer tokenizer = new NameTokenizer(fullName);
-
-        if (tokenizer.mStartPointer == tokenizer.mEndPointer) {
-            return 0;
-        }
-
-        String firstToken = tokenizer.mTokens[tokenizer.mStartPointer];
+        NameTokenizer tokenizer = obtainTokenizer(fullName);
         int count = 0;
         for (int i = tokenizer.mStartPointer; i < tokenizer.mEndPointer; i++) {
-            tokens[count++] = tokenizer.mTokens[i];
+            tokens[count++] = tokenizer.getToken(i);
         }
-
+        releaseTokenizer(tokenizer);
         return count;
     }
 
@@ -392,7 +528,7 @@ public class NameSplitter {
      * </pre>
      */
     private void splitWesternName(Name name, String fullName) {
-        NameTokenizer tokens = new NameTokenizer(fullName);
+        NameTokenizer tokens = obtainTokenizer(fullName);
         parsePrefix(name, tokens);
 
         // If the name consists of just one or two tokens, treat them as first/last name,
@@ -402,12 +538,13 @@ public class NameSplitter {
         }
 
         if (name.prefix == null && tokens.mEndPointer - tokens.mStartPointer == 1) {
-            name.givenNames = tokens.mTokens[tokens.mStartPointer];
+            name.givenNames = tokens.getToken(tokens.mStartPointer);
         } else {
             parseLastName(name, tokens);
             parseMiddleName(name, tokens);
             parseGivenNames(name, tokens);
         }
+        releaseTokenizer(tokens);
     }
 
     /**
@@ -672,9 +809,8 @@ public class NameSplitter {
             return suffix;
         }
 
-        String withDot = suffix + '.';
-        if (mSuffixesSet.contains(withDot.toUpperCase())) {
-            return withDot;
+        if (mSuffixesSet.containsWithDot(suffix, 0, length)) {
+            return suffix + '.';
         } else {
             return suffix;
         }
@@ -717,8 +853,8 @@ public class NameSplitter {
             return;
         }
 
-        String firstToken = tokens.mTokens[tokens.mStartPointer];
-        if (mPrefixesSet.contains(firstToken.toUpperCase())) {
+        if (tokens.isIn(mPrefixesSet, tokens.mStartPointer)) {
+            String firstToken = tokens.getToken(tokens.mStartPointer);
             if (tokens.hasDot(tokens.mStartPointer)) {
                 firstToken += '.';
             }
@@ -735,41 +871,42 @@ public class NameSplitter {
             return;
         }
 
-        String lastToken = tokens.mTokens[tokens.mEndPointer - 1];
+        final int last = tokens.mEndPointer - 1;
 
         // Take care of an explicit comma-separated suffix
         if (tokens.mEndPointer - tokens.mStartPointer > 2
                 && tokens.hasComma(tokens.mEndPointer - 2)) {
-            if (tokens.hasDot(tokens.mEndPointer - 1)) {
-                lastToken += '.';
-            }
-            name.suffix = lastToken;
+            name.suffix = getSuffix(tokens, last, last);
             tokens.mEndPointer--;
             return;
         }
 
-        if (lastToken.length() > mMaxSuffixLength) {
+        final int lastLength = tokens.getLength(last);
+        if (lastLength > mMaxSuffixLength) {
             return;
         }
 
-        String normalized = lastToken.toUpperCase();
-        if (mSuffixesSet.contains(normalized)) {
-            name.suffix = lastToken;
+        if (tokens.isIn(mSuffixesSet, last)) {
+            name.suffix = tokens.getToken(last);
             tokens.mEndPointer--;
             return;
         }
 
-        if (tokens.hasDot(tokens.mEndPointer - 1)) {
-            lastToken += '.';
-        }
-        normalized += ".";
-
-        // Take care of suffixes like M.D. and D.D.S.
-        int pos = tokens.mEndPointer - 1;
-        while (normalized.length() <= mMaxSuffixLength) {
-
-            if (mSuffixesSet.contains(normalized)) {
-                name.suffix = lastToken;
+        // Take care of suffixes like M.D. and D.D.S.: look for the last tokens, each followed by
+        // a dot, in the suffixes
+        final String fullName = tokens.mFullName;
+        int normalizedLength = lastLength + 1;
+        int pos = last;
+        while (normalizedLength <= mMaxSuffixLength) {
+            WordSet.Node node = mSuffixesSet.getRoot();
+            for (int i = pos; i <= last && node != null; i++) {
+                node = mSuffixesSet.find(node, fullName, tokens.mStarts[i], tokens.mEnds[i]);
+                if (node != null) {
+                    node = node.getChild('.');
+                }
+            }
+            if (node != null && node.mIsWord) {
+                name.suffix = getSuffix(tokens, pos, last);
                 tokens.mEndPointer = pos;
                 return;
             }
@@ -779,14 +916,26 @@ public class NameSplitter {
             }
 
             pos--;
-            if (tokens.hasDot(pos)) {
-                lastToken = tokens.mTokens[pos] + "." + lastToken;
+            normalizedLength += tokens.getLength(pos) + 1;
+        }
+    }
+
+    /**
+     * Joins the tokens from first to last, with the dots that follow them, or spaces.
+     */
+    private static String getSuffix(NameTokenizer tokens, int first, int last) {
+        String suffix = tokens.getToken(last);
+        if (tokens.hasDot(last)) {
+            suffix += '.';
+        }
+        for (int i = last - 1; i >= first; i--) {
+            if (tokens.hasDot(i)) {
+                suffix = tokens.getToken(i) + "." + suffix;
             } else {
-                lastToken = tokens.mTokens[pos] + " " + lastToken;
+                suffix = tokens.getToken(i) + " " + suffix;
             }
-
-            normalized = tokens.mTokens[pos].toUpperCase() + "." + normalized;
         }
+        return suffix;
     }
 
     private void parseLastName(Name name, NameTokenizer tokens) {
@@ -796,7 +945,7 @@ public class NameSplitter {
 
         // If the first word is followed by a comma, assume that it's the family name
         if (tokens.hasComma(tokens.mStartPointer)) {
-           name.familyName = tokens.mTokens[tokens.mStartPointer];
+           name.familyName = tokens.getToken(tokens.mStartPointer);
            tokens.mStartPointer++;
            return;
         }
@@ -806,24 +955,24 @@ public class NameSplitter {
         // the first two words as the family name.
         if (tokens.mStartPointer + 1 < tokens.mEndPointer
                 && tokens.hasComma(tokens.mStartPointer + 1)
-                && isFamilyNamePrefix(tokens.mTokens[tokens.mStartPointer])) {
-            String familyNamePrefix = tokens.mTokens[tokens.mStartPointer];
+                && isFamilyNamePrefix(tokens, tokens.mStartPointer)) {
+            String familyNamePrefix = tokens.getToken(tokens.mStartPointer);
             if (tokens.hasDot(tokens.mStartPointer)) {
                 familyNamePrefix += '.';
             }
-            name.familyName = familyNamePrefix + " " + tokens.mTokens[tokens.mStartPointer + 1];
+            name.familyName = familyNamePrefix + " " + tokens.getToken(tokens.mStartPointer + 1);
             tokens.mStartPointer += 2;
             return;
         }
 
         // Finally, assume that the last word is the last name
-        name.familyName = tokens.mTokens[tokens.mEndPointer - 1];
+        name.familyName = tokens.getToken(tokens.mEndPointer - 1);
         tokens.mEndPointer--;
 
         // Take care of last names like "de Sade" and "von Cliburn"
         if ((tokens.mEndPointer - tokens.mStartPointer) > 0) {
-            String lastNamePrefix = tokens.mTokens[tokens.mEndPointer - 1];
-            if (isFamilyNamePrefix(lastNamePrefix)) {
+            if (isFamilyNamePrefix(tokens, tokens.mEndPointer - 1)) {
+                String lastNamePrefix = tokens.getToken(tokens.mEndPointer - 1);
                 if (tokens.hasDot(tokens.mEndPointer - 1)) {
                     lastNamePrefix += '.';
                 }
@@ -836,11 +985,11 @@ public class NameSplitter {
     /**
      * Returns true if the supplied word is an accepted last name prefix, e.g. "von", "de"
      */
-    private boolean isFamilyNamePrefix(String word) {
-        final String normalized = word.toUpperCase();
-
-        return mLastNamePrefixesSet.contains(normalized)
-                || mLastNamePrefixesSet.contains(normalized + ".");
+    private boolean isFamilyNamePrefix(NameTokenizer tokens, int index) {
+        final int start = tokens.mStarts[index];
+        final int end = tokens.mEnds[index];
+        return mLastNamePrefixesSet.contains(tokens.mFullName, start, end)
+                || mLastNamePrefixesSet.containsWithDot(tokens.mFullName, start, end);
     }
 
 
@@ -851,9 +1000,8 @@ public class NameSplitter {
 
         if ((tokens.mEndPointer - tokens.mStartPointer) > 1) {
             if ((tokens.mEndPointer - tokens.mStartPointer) == 2
-                    || !mConjuctions.contains(tokens.mTokens[tokens.mEndPointer - 2].
-                            toUpperCase())) {
-                name.middleName = tokens.mTokens[tokens.mEndPointer - 1];
+                    || !tokens.isIn(mConjuctions, tokens.mEndPointer - 2)) {
+                name.middleName = tokens.getToken(tokens.mEndPointer - 1);
                 if (tokens.hasDot(tokens.mEndPointer - 1)) {
                     name.middleName += '.';
                 }
@@ -868,14 +1016,14 @@ public class NameSplitter {
         }
 
         if ((tokens.mEndPointer - tokens.mStartPointer) == 1) {
-            name.givenNames = tokens.mTokens[tokens.mStartPointer];
+            name.givenNames = tokens.getToken(tokens.mStartPointer);
         } else {
             StringBuilder sb = new StringBuilder();
             for (int i = tokens.mStartPointer; i < tokens.mEndPointer; i++) {
                 if (i != tokens.mStartPointer) {
                     sb.append(' ');
                 }
-                sb.append(tokens.mTokens[i]);
+                sb.append(tokens.mFullName, tokens.mStarts[i], tokens.mEnds[i]);
                 if (tokens.hasDot(i)) {
                     sb.append('.');
                 }
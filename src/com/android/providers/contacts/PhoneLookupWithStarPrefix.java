@@ -15,8 +15,6 @@
  */
 package com.android.providers.contacts;
 
-import com.android.internal.annotations.VisibleForTesting;
-
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.provider.ContactsContract.PhoneLookup;
@@ -100,7 +98,6 @@ import android.util.Log;
         }
     }
 
-    @VisibleForTesting
     static String normalizeNumberWithStar(String phoneNumber) {
         if (TextUtils.isEmpty(phoneNumber)) {
             return phoneNumber;
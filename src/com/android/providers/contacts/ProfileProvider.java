@@ -148,6 +148,12 @@ public class ProfileProvider extends AbstractContactsProvider {
         sendProfileChangedBroadcast();
     }
 
+    @Override
+    protected void onEndTransaction() {
+        // Profile transactions are serialized on a transaction of the contacts database
+        mDelegate.onEndTransaction();
+    }
+
     @Override
     public void onRollback() {
         mDelegate.onRollbackTransactionInternal(true);
@@ -23,8 +23,8 @@ import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Nickname;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
-import android.provider.ContactsContract.ProviderStatus;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
 import android.util.Log;
@@ -33,14 +33,16 @@ import com.android.providers.contacts.ContactsDatabaseHelper.DataColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.MimetypesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexFragmentsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.util.LongSet;
 import com.google.android.collect.Lists;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -52,18 +54,90 @@ public class SearchIndexManager {
     private static final boolean VERBOSE_LOGGING = Log.isLoggable(TAG, Log.VERBOSE);
 
     public static final String PROPERTY_SEARCH_INDEX_VERSION = "search_index";
-    private static final int SEARCH_INDEX_VERSION = 1;
+    public static final String PROPERTY_SEARCH_INDEX_REBUILD_PROGRESS =
+            "search_index_rebuild_progress";
+    private static final int SEARCH_INDEX_VERSION = 2;
+
+    /** Number of contacts whose index rows are built and committed together on rebuild. */
+    private static final int REBUILD_RANGE_SIZE = 500;
+    private static final long REBUILD_NOT_STARTED = -1;
+
+    /** The FTS rowid of a search index row, which is always the contact ID. */
+    private static final String SEARCH_INDEX_DOCID = "docid";
 
     private static final class ContactIndexQuery {
         public static final String[] COLUMNS = {
                 Data.CONTACT_ID,
                 MimetypesColumns.MIMETYPE,
+                DataColumns.CONCRETE_ID,
                 Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA5,
                 Data.DATA6, Data.DATA7, Data.DATA8, Data.DATA9, Data.DATA10, Data.DATA11,
                 Data.DATA12, Data.DATA13, Data.DATA14
         };
 
+        public static final int CONTACT_ID = 0;
         public static final int MIMETYPE = 1;
+        public static final int DATA_ID = 2;
+    }
+
+    private static final class FragmentQuery {
+        public static final String TABLE = Tables.SEARCH_INDEX_FRAGMENTS
+                + " JOIN " + Tables.DATA_JOIN_RAW_CONTACTS
+                + " ON (" + SearchIndexFragmentsColumns.CONCRETE_DATA_ID
+                        + "=" + DataColumns.CONCRETE_ID + ")";
+
+        public static final String[] COLUMNS = {
+                RawContacts.CONTACT_ID,
+                SearchIndexFragmentsColumns.CONCRETE_CONTENT,
+                SearchIndexFragmentsColumns.CONCRETE_NAME,
+                SearchIndexFragmentsColumns.CONCRETE_TOKENS,
+        };
+
+        public static final int CONTACT_ID = 0;
+        public static final int CONTENT = 1;
+        public static final int NAME = 2;
+        public static final int TOKENS = 3;
+    }
+
+    /**
+     * Searchable content contributed by a single data row. The index row of a contact is the
+     * concatenation of the fragments of all its data rows.
+     */
+    private static final class IndexFragment {
+        final long dataId;
+        final String content;
+        final String name;
+        final String tokens;
+
+        IndexFragment(long dataId, IndexBuilder builder) {
+            this.dataId = dataId;
+            this.content = builder.getContent();
+            this.name = builder.getName();
+            this.tokens = builder.getTokens();
+        }
+
+        boolean isEmpty() {
+            return content == null && name == null && tokens == null;
+        }
+    }
+
+    /**
+     * Content of the search index row of one contact, and the fragments it was built from.
+     */
+    private static final class IndexRow {
+        final long contactId;
+        final String content;
+        final String name;
+        final String tokens;
+        final List<IndexFragment> fragments;
+
+        IndexRow(long contactId, IndexBuilder builder, List<IndexFragment> fragments) {
+            this.contactId = contactId;
+            this.content = builder.getContent();
+            this.name = builder.getName();
+            this.tokens = builder.getTokens();
+            this.fragments = fragments;
+        }
     }
 
     public static class IndexBuilder {
@@ -233,60 +307,160 @@ public class SearchIndexManager {
             }
             mSbName.append(NameNormalizer.normalize(name));
         }
+
+        /**
+         * Appends the content, name and tokens produced by another builder for a single data
+         * row, as if that row had been appended to this builder directly.
+         */
+        void appendFragment(String content, String name, String tokens) {
+            if (!TextUtils.isEmpty(content)) {
+                for (String element : content.split("\n")) {
+                    if (!mUniqueElements.contains(element)) {
+                        if (mSbContent.length() != 0) {
+                            mSbContent.append('\n');
+                        }
+                        mSbContent.append(element);
+                        mUniqueElements.add(element);
+                    }
+                }
+            }
+            if (!TextUtils.isEmpty(name)) {
+                if (mSbName.length() != 0) {
+                    mSbName.append(' ');
+                }
+                mSbName.append(name);
+            }
+            appendToken(tokens);
+        }
     }
 
     private final ContactsProvider2 mContactsProvider;
     private final ContactsDatabaseHelper mDbHelper;
-    private StringBuilder mSb = new StringBuilder();
     private IndexBuilder mIndexBuilder = new IndexBuilder();
+    private IndexBuilder mFragmentBuilder = new IndexBuilder();
     private ContentValues mValues = new ContentValues();
     private String[] mSelectionArgs1 = new String[1];
+    private int mRebuildRangeSize = REBUILD_RANGE_SIZE;
 
     public SearchIndexManager(ContactsProvider2 contactsProvider) {
         this.mContactsProvider = contactsProvider;
         mDbHelper = (ContactsDatabaseHelper) mContactsProvider.getDatabaseHelper();
     }
 
+    @VisibleForTesting
+    void setRebuildRangeSizeForTest(int rangeSize) {
+        mRebuildRangeSize = rangeSize;
+    }
+
     public void updateIndex(boolean force) {
         if (force) {
             setSearchIndexVersion(0);
+            setRebuildProgress(REBUILD_NOT_STARTED);
         } else {
             if (getSearchIndexVersion() == SEARCH_INDEX_VERSION) {
                 return;
             }
         }
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        rebuildIndex(mDbHelper.getWritableDatabase());
+    }
+
+    /**
+     * Rebuilds the index in ranges of contact IDs. Every range is built and written in its own
+     * short transaction, so the provider remains usable during the rebuild and concurrent
+     * changes can never be overwritten with stale rows. Progress is stored in
+     * {@link #PROPERTY_SEARCH_INDEX_REBUILD_PROGRESS}, which lets a rebuild interrupted by a
+     * process kill resume after the last committed range.
+     */
+    private void rebuildIndex(SQLiteDatabase db) {
+        final long start = SystemClock.elapsedRealtime();
+        int count = 0;
+        int rangeCount = 0;
+
+        long lastContactId;
         db.beginTransaction();
         try {
             // We do a version check again, because the version might have been modified after
             // the first check.  We need to do the check again in a transaction to make sure.
-            if (getSearchIndexVersion() != SEARCH_INDEX_VERSION) {
-                rebuildIndex(db);
-                setSearchIndexVersion(SEARCH_INDEX_VERSION);
-                db.setTransactionSuccessful();
+            if (getSearchIndexVersion() == SEARCH_INDEX_VERSION) {
+                return;
+            }
+            lastContactId = getRebuildProgress();
+            if (lastContactId == REBUILD_NOT_STARTED) {
+                mDbHelper.createSearchIndexTable(db, true);
+                lastContactId = 0;
+                setRebuildProgress(lastContactId);
+            } else {
+                Log.i(TAG, "Resuming search index rebuild after contact " + lastContactId);
             }
+            db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
-    }
 
-    private void rebuildIndex(SQLiteDatabase db) {
-        mContactsProvider.setProviderStatus(ProviderStatus.STATUS_UPGRADING);
-        final long start = SystemClock.elapsedRealtime();
-        int count = 0;
         try {
-            mDbHelper.createSearchIndexTable(db, true);
-            count = buildAndInsertIndex(db, null);
+            while (true) {
+                db.beginTransaction();
+                try {
+                    final long rangeEnd = getRebuildRangeEnd(db, lastContactId);
+                    if (rangeEnd == REBUILD_NOT_STARTED) {
+                        setSearchIndexVersion(SEARCH_INDEX_VERSION);
+                        setRebuildProgress(REBUILD_NOT_STARTED);
+                        db.setTransactionSuccessful();
+                        break;
+                    }
+                    count += rebuildIndexRange(db, lastContactId, rangeEnd);
+                    rangeCount++;
+                    setRebuildProgress(rangeEnd);
+                    db.setTransactionSuccessful();
+                    lastContactId = rangeEnd;
+                } finally {
+                    db.endTransaction();
+                }
+            }
         } finally {
-            mContactsProvider.setProviderStatus(ProviderStatus.STATUS_NORMAL);
-
             final long end = SystemClock.elapsedRealtime();
             Log.i(TAG, "Rebuild contact search index in " + (end - start) + "ms, "
-                    + count + " contacts");
+                    + count + " contacts, " + rangeCount + " ranges");
+        }
+    }
+
+    /**
+     * Returns the ID of the last contact in the range of at most {@link #mRebuildRangeSize}
+     * contacts following {@code lastContactId}, or {@link #REBUILD_NOT_STARTED} if there are
+     * no more contacts.
+     */
+    private long getRebuildRangeEnd(SQLiteDatabase db, long lastContactId) {
+        mSelectionArgs1[0] = String.valueOf(lastContactId);
+        Cursor cursor = db.rawQuery("SELECT MAX(" + Contacts._ID + ")"
+                + " FROM (SELECT " + Contacts._ID + " FROM " + Tables.CONTACTS
+                + " WHERE " + Contacts._ID + ">?"
+                + " ORDER BY " + Contacts._ID + " LIMIT " + mRebuildRangeSize + ")",
+                mSelectionArgs1);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+            return REBUILD_NOT_STARTED;
+        } finally {
+            cursor.close();
         }
     }
 
-    public void updateIndexForRawContacts(Set<Long> contactIds, Set<Long> rawContactIds) {
+    /**
+     * Replaces the index rows of the contacts after {@code lastContactId} up to and including
+     * {@code rangeEnd}. Rows of contacts that no longer exist are removed as well.
+     *
+     * @return the number of contacts indexed
+     */
+    private int rebuildIndexRange(SQLiteDatabase db, long lastContactId, long rangeEnd) {
+        final String[] rangeArgs = {String.valueOf(lastContactId), String.valueOf(rangeEnd)};
+        db.delete(Tables.SEARCH_INDEX, SEARCH_INDEX_DOCID + ">? AND "
+                + SEARCH_INDEX_DOCID + "<=?", rangeArgs);
+        return buildAndInsertIndex(db, RawContacts.CONTACT_ID + ">" + lastContactId
+                + " AND " + RawContacts.CONTACT_ID + "<=" + rangeEnd);
+    }
+
+    public void updateIndexForRawContacts(LongSet contactIds, LongSet rawContactIds) {
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "Updating search index for " + contactIds.size() +
                     " contacts / " + rawContactIds.size() + " raw contacts");
@@ -296,7 +470,7 @@ public class SearchIndexManager {
         if (!contactIds.isEmpty()) {
             // Select all raw contacts that belong to all contacts in contactIds
             sb.append(RawContacts.CONTACT_ID + " IN (");
-            sb.append(TextUtils.join(",", contactIds));
+            sb.append(contactIds.join(","));
             sb.append(')');
         }
         if (!rawContactIds.isEmpty()) {
@@ -311,7 +485,7 @@ public class SearchIndexManager {
             sb.append(RawContacts.CONTACT_ID + " IN " +
                     "(SELECT " + RawContacts.CONTACT_ID + " FROM " + Tables.RAW_CONTACTS +
                     " WHERE " + RawContactsColumns.CONCRETE_ID + " IN (");
-            sb.append(TextUtils.join(",", rawContactIds));
+            sb.append(rawContactIds.join(","));
             sb.append("))");
         }
 
@@ -323,7 +497,7 @@ public class SearchIndexManager {
         // Remove affected search_index rows.
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
         final int deleted = db.delete(Tables.SEARCH_INDEX,
-                SearchIndexColumns.CONTACT_ID + " IN (SELECT " +
+                SEARCH_INDEX_DOCID + " IN (SELECT " +
                     RawContacts.CONTACT_ID +
                     " FROM " + Tables.RAW_CONTACTS +
                     " WHERE " + rawContactsSelection +
@@ -338,66 +512,217 @@ public class SearchIndexManager {
         }
     }
 
-    private int buildAndInsertIndex(SQLiteDatabase db, String selection) {
-        mSb.setLength(0);
-        mSb.append(Data.CONTACT_ID + ", ");
-        mSb.append("(CASE WHEN " + DataColumns.MIMETYPE_ID + "=");
-        mSb.append(mDbHelper.getMimeTypeId(Nickname.CONTENT_ITEM_TYPE));
-        mSb.append(" THEN -4 ");
-        mSb.append(" WHEN " + DataColumns.MIMETYPE_ID + "=");
-        mSb.append(mDbHelper.getMimeTypeId(Organization.CONTENT_ITEM_TYPE));
-        mSb.append(" THEN -3 ");
-        mSb.append(" WHEN " + DataColumns.MIMETYPE_ID + "=");
-        mSb.append(mDbHelper.getMimeTypeId(StructuredPostal.CONTENT_ITEM_TYPE));
-        mSb.append(" THEN -2");
-        mSb.append(" WHEN " + DataColumns.MIMETYPE_ID + "=");
-        mSb.append(mDbHelper.getMimeTypeId(Email.CONTENT_ITEM_TYPE));
-        mSb.append(" THEN -1");
-        mSb.append(" ELSE " + DataColumns.MIMETYPE_ID);
-        mSb.append(" END), " + Data.IS_SUPER_PRIMARY + ", " + DataColumns.CONCRETE_ID);
+    /**
+     * Updates the index after changes to individual data rows. Only the fragments of the given
+     * data rows are rebuilt; the index rows of the affected contacts are then rewritten from
+     * the stored fragments, without reading any of their other data rows.
+     *
+     * @param dataIds inserted or updated data rows with searchable content
+     * @param rawContactIds raw contacts of all changed data rows, including deleted ones
+     */
+    public void updateIndexForDataRows(LongSet dataIds, LongSet rawContactIds) {
+        if (VERBOSE_LOGGING) {
+            Log.v(TAG, "Updating search index for " + dataIds.size() +
+                    " data rows / " + rawContactIds.size() + " raw contacts");
+        }
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if (!dataIds.isEmpty()) {
+            final String dataIdList = dataIds.join(",");
+            final String dataIdsSelection = DataColumns.CONCRETE_ID + " IN (" + dataIdList + ")";
+            db.delete(Tables.SEARCH_INDEX_FRAGMENTS, SearchIndexFragmentsColumns.DATA_ID
+                    + " IN (" + dataIdList + ")", null);
+
+            Cursor cursor = db.query(Tables.DATA_JOIN_MIMETYPE_RAW_CONTACTS,
+                    ContactIndexQuery.COLUMNS, dataIdsSelection, null, null, null, null);
+            mFragmentBuilder.setCursor(cursor);
+            try {
+                while (cursor.moveToNext()) {
+                    final String mimetype = cursor.getString(ContactIndexQuery.MIMETYPE);
+                    final DataRowHandler dataRowHandler =
+                            mContactsProvider.getDataRowHandler(mimetype);
+                    if (dataRowHandler.hasSearchableData()) {
+                        mFragmentBuilder.reset();
+                        dataRowHandler.appendSearchableData(mFragmentBuilder);
+                        mFragmentBuilder.commit();
+                        insertFragment(db, new IndexFragment(
+                                cursor.getLong(ContactIndexQuery.DATA_ID), mFragmentBuilder));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (rawContactIds.isEmpty()) {
+            return;
+        }
+
+        final String contactIdsQuery = "SELECT " + RawContacts.CONTACT_ID +
+                " FROM " + Tables.RAW_CONTACTS +
+                " WHERE " + RawContactsColumns.CONCRETE_ID +
+                " IN (" + rawContactIds.join(",") + ")";
+        db.delete(Tables.SEARCH_INDEX, SEARCH_INDEX_DOCID + " IN (" + contactIdsQuery + ")",
+                null);
 
         int count = 0;
-        Cursor cursor = db.query(Tables.DATA_JOIN_MIMETYPE_RAW_CONTACTS, ContactIndexQuery.COLUMNS,
-                selection, null, null, null, mSb.toString());
-        mIndexBuilder.setCursor(cursor);
+        Cursor cursor = db.query(FragmentQuery.TABLE, FragmentQuery.COLUMNS,
+                RawContacts.CONTACT_ID + " IN (" + contactIdsQuery + ")", null, null, null,
+                buildIndexOrderBy());
         mIndexBuilder.reset();
         try {
             long currentContactId = -1;
             while (cursor.moveToNext()) {
-                long contactId = cursor.getLong(0);
+                long contactId = cursor.getLong(FragmentQuery.CONTACT_ID);
                 if (contactId != currentContactId) {
                     if (currentContactId != -1) {
-                        insertIndexRow(db, currentContactId, mIndexBuilder);
+                        insertSearchIndexRow(db, currentContactId, mIndexBuilder);
                         count++;
                     }
                     currentContactId = contactId;
                     mIndexBuilder.reset();
                 }
-                String mimetype = cursor.getString(ContactIndexQuery.MIMETYPE);
-                DataRowHandler dataRowHandler = mContactsProvider.getDataRowHandler(mimetype);
-                if (dataRowHandler.hasSearchableData()) {
-                    dataRowHandler.appendSearchableData(mIndexBuilder);
-                    mIndexBuilder.commit();
-                }
+                mIndexBuilder.appendFragment(cursor.getString(FragmentQuery.CONTENT),
+                        cursor.getString(FragmentQuery.NAME),
+                        cursor.getString(FragmentQuery.TOKENS));
             }
             if (currentContactId != -1) {
-                insertIndexRow(db, currentContactId, mIndexBuilder);
+                insertSearchIndexRow(db, currentContactId, mIndexBuilder);
                 count++;
             }
         } finally {
             cursor.close();
         }
-        return count;
+
+        if (VERBOSE_LOGGING) {
+            Log.v(TAG, "Rewrote search index for " + count + " contacts");
+        }
+    }
+
+    private String buildIndexOrderBy() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(Data.CONTACT_ID + ", ");
+        sb.append("(CASE WHEN " + DataColumns.MIMETYPE_ID + "=");
+        sb.append(mDbHelper.getMimeTypeId(Nickname.CONTENT_ITEM_TYPE));
+        sb.append(" THEN -4 ");
+        sb.append(" WHEN " + DataColumns.MIMETYPE_ID + "=");
+        sb.append(mDbHelper.getMimeTypeId(Organization.CONTENT_ITEM_TYPE));
+        sb.append(" THEN -3 ");
+        sb.append(" WHEN " + DataColumns.MIMETYPE_ID + "=");
+        sb.append(mDbHelper.getMimeTypeId(StructuredPostal.CONTENT_ITEM_TYPE));
+        sb.append(" THEN -2");
+        sb.append(" WHEN " + DataColumns.MIMETYPE_ID + "=");
+        sb.append(mDbHelper.getMimeTypeId(Email.CONTENT_ITEM_TYPE));
+        sb.append(" THEN -1");
+        sb.append(" ELSE " + DataColumns.MIMETYPE_ID);
+        sb.append(" END), " + Data.IS_SUPER_PRIMARY + ", " + DataColumns.CONCRETE_ID);
+        return sb.toString();
+    }
+
+    private int buildAndInsertIndex(SQLiteDatabase db, String selection) {
+        db.delete(Tables.SEARCH_INDEX_FRAGMENTS, SearchIndexFragmentsColumns.DATA_ID
+                + " IN (SELECT " + DataColumns.CONCRETE_ID
+                + " FROM " + Tables.DATA_JOIN_RAW_CONTACTS
+                + " WHERE " + selection + ")", null);
+
+        Cursor cursor = db.query(Tables.DATA_JOIN_MIMETYPE_RAW_CONTACTS, ContactIndexQuery.COLUMNS,
+                selection, null, null, null, buildIndexOrderBy());
+        try {
+            final HashMap<Long, IndexRow> rows =
+                    buildIndexRows(cursor, mIndexBuilder, mFragmentBuilder);
+            for (IndexRow row : rows.values()) {
+                insertIndexRow(db, row);
+            }
+            return rows.size();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Builds one index row per contact, along with the fragments of its data rows, from a
+     * cursor over {@link ContactIndexQuery#COLUMNS} sorted by contact ID.
+     */
+    private HashMap<Long, IndexRow> buildIndexRows(Cursor cursor, IndexBuilder builder,
+            IndexBuilder fragmentBuilder) {
+        final HashMap<Long, IndexRow> rows = new HashMap<Long, IndexRow>();
+        fragmentBuilder.setCursor(cursor);
+        builder.reset();
+        ArrayList<IndexFragment> fragments = Lists.newArrayList();
+        long currentContactId = -1;
+        while (cursor.moveToNext()) {
+            long contactId = cursor.getLong(ContactIndexQuery.CONTACT_ID);
+            if (contactId != currentContactId) {
+                if (currentContactId != -1) {
+                    rows.put(currentContactId, new IndexRow(currentContactId, builder, fragments));
+                    fragments = Lists.newArrayList();
+                }
+                currentContactId = contactId;
+                builder.reset();
+            }
+            String mimetype = cursor.getString(ContactIndexQuery.MIMETYPE);
+            DataRowHandler dataRowHandler = mContactsProvider.getDataRowHandler(mimetype);
+            if (dataRowHandler.hasSearchableData()) {
+                fragmentBuilder.reset();
+                dataRowHandler.appendSearchableData(fragmentBuilder);
+                fragmentBuilder.commit();
+                final IndexFragment fragment = new IndexFragment(
+                        cursor.getLong(ContactIndexQuery.DATA_ID), fragmentBuilder);
+                builder.appendFragment(fragment.content, fragment.name, fragment.tokens);
+                fragments.add(fragment);
+            }
+        }
+        if (currentContactId != -1) {
+            rows.put(currentContactId, new IndexRow(currentContactId, builder, fragments));
+        }
+        return rows;
+    }
+
+    /**
+     * Inserts an index row together with the fragments it was built from.
+     */
+    private void insertIndexRow(SQLiteDatabase db, IndexRow row) {
+        insertSearchIndexRow(db, row.contactId, row.content, row.name, row.tokens);
+        for (IndexFragment fragment : row.fragments) {
+            insertFragment(db, fragment);
+        }
+    }
+
+    private void insertSearchIndexRow(SQLiteDatabase db, long contactId, IndexBuilder builder) {
+        insertSearchIndexRow(db, contactId, builder.getContent(), builder.getName(),
+                builder.getTokens());
     }
 
-    private void insertIndexRow(SQLiteDatabase db, long contactId, IndexBuilder builder) {
+    /**
+     * Inserts a search index row. The row's docid is the contact ID, which lets ranges and
+     * single contacts be addressed through the FTS table's rowid.
+     */
+    private void insertSearchIndexRow(SQLiteDatabase db, long contactId, String content,
+            String name, String tokens) {
         mValues.clear();
-        mValues.put(SearchIndexColumns.CONTENT, builder.getContent());
-        mValues.put(SearchIndexColumns.NAME, builder.getName());
-        mValues.put(SearchIndexColumns.TOKENS, builder.getTokens());
+        mValues.put(SEARCH_INDEX_DOCID, contactId);
+        mValues.put(SearchIndexColumns.CONTENT, content);
+        mValues.put(SearchIndexColumns.NAME, name);
+        mValues.put(SearchIndexColumns.TOKENS, tokens);
         mValues.put(SearchIndexColumns.CONTACT_ID, contactId);
         db.insert(Tables.SEARCH_INDEX, null, mValues);
     }
+
+    /**
+     * Stores the fragment of a data row, replacing any previous one. Empty fragments are not
+     * stored.
+     */
+    private void insertFragment(SQLiteDatabase db, IndexFragment fragment) {
+        if (fragment.isEmpty()) {
+            return;
+        }
+        mValues.clear();
+        mValues.put(SearchIndexFragmentsColumns.DATA_ID, fragment.dataId);
+        mValues.put(SearchIndexFragmentsColumns.CONTENT, fragment.content);
+        mValues.put(SearchIndexFragmentsColumns.NAME, fragment.name);
+        mValues.put(SearchIndexFragmentsColumns.TOKENS, fragment.tokens);
+        db.replace(Tables.SEARCH_INDEX_FRAGMENTS, null, mValues);
+    }
+
     private int getSearchIndexVersion() {
         return Integer.parseInt(mDbHelper.getProperty(PROPERTY_SEARCH_INDEX_VERSION, "0"));
     }
@@ -406,6 +731,31 @@ public class SearchIndexManager {
         mDbHelper.setProperty(PROPERTY_SEARCH_INDEX_VERSION, String.valueOf(version));
     }
 
+    /**
+     * Returns the ID of the last contact committed by an unfinished rebuild of the current
+     * index version, or {@link #REBUILD_NOT_STARTED}.
+     */
+    private long getRebuildProgress() {
+        final String progress = mDbHelper.getProperty(PROPERTY_SEARCH_INDEX_REBUILD_PROGRESS, "");
+        final int separator = progress.indexOf(':');
+        if (separator == -1
+                || !progress.substring(0, separator).equals(String.valueOf(SEARCH_INDEX_VERSION))) {
+            return REBUILD_NOT_STARTED;
+        }
+        try {
+            return Long.parseLong(progress.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return REBUILD_NOT_STARTED;
+        }
+    }
+
+    @VisibleForTesting
+    void setRebuildProgress(long lastContactId) {
+        mDbHelper.setProperty(PROPERTY_SEARCH_INDEX_REBUILD_PROGRESS,
+                lastContactId == REBUILD_NOT_STARTED
+                        ? "" : SEARCH_INDEX_VERSION + ":" + lastContactId);
+    }
+
     /**
      * Token separator that matches SQLite's "simple" tokenizer.
      * - Unicode codepoints >= 128: Everything
@@ -16,33 +16,51 @@
 
 package com.android.providers.contacts;
 
+import android.util.LongSparseArray;
+
+import com.android.providers.contacts.util.LongSet;
 import com.google.android.collect.Maps;
-import com.google.android.collect.Sets;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map.Entry;
 import java.util.Set;
 
 /**
  * Accumulates information for an entire transaction. {@link ContactsProvider2} consumes
  * it at commit time.
+ *
+ * IDs are kept in {@link LongSet}s, which are cleared rather than reallocated between
+ * transactions.
  */
 public class TransactionContext  {
 
     private final boolean mForProfile;
+    private final LongSet mInsertedRawContacts = new LongSet();
     /** Map from raw contact id to account Id */
-    private HashMap<Long, Long> mInsertedRawContactsAccounts;
-    private HashSet<Long> mUpdatedRawContacts;
-    private HashSet<Long> mDirtyRawContacts;
+    private LongSparseArray<Long> mInsertedRawContactsAccounts = new LongSparseArray<Long>();
+    private final LongSet mUpdatedRawContacts = new LongSet();
+    private final LongSet mDirtyRawContacts = new LongSet();
     // Set used to track what has been changed and deleted. This is needed so we can update the
     // contact last touch timestamp.  Dirty set above is only set when sync adapter is false.
     // {@see android.provider.ContactsContract#CALLER_IS_SYNCADAPTER}. While the set below will
     // contain all changed contacts.
-    private HashSet<Long> mChangedRawContacts;
-    private HashSet<Long> mStaleSearchIndexRawContacts;
-    private HashSet<Long> mStaleSearchIndexContacts;
+    private final LongSet mChangedRawContacts = new LongSet();
+    private final LongSet mStaleSearchIndexRawContacts = new LongSet();
+    private final LongSet mStaleSearchIndexContacts = new LongSet();
+    // Data rows whose search index fragments need rebuilding, and the raw contacts whose
+    // search index rows need to be reassembled from fragments.
+    private final LongSet mStaleSearchIndexData = new LongSet();
+    private final LongSet mStaleSearchIndexFragmentRawContacts = new LongSet();
     private HashMap<Long, Object> mUpdatedSyncStates;
+    // Raw contacts whose display name or aggregation was left for the end of the current
+    // group of operations, see ContactsProvider2#onEndOperationGroup.
+    private boolean mDeferringRowSideEffects;
+    private final LongSet mDeferredDisplayNameRawContacts = new LongSet();
+    private final LongSet mDeferredAggregationRawContacts = new LongSet();
+    private final LongSet mDeferredHasPhoneNumberRawContacts = new LongSet();
+    // Account IDs resolved within the current group of operations, which mostly insert
+    // raw contacts of the same account.
+    private HashMap<AccountWithDataSet, Long> mGroupAccountIds;
 
     public TransactionContext(boolean forProfile) {
         mForProfile = forProfile;
@@ -53,22 +71,18 @@ public class TransactionContext  {
     }
 
     public void rawContactInserted(long rawContactId, long accountId) {
-        if (mInsertedRawContactsAccounts == null) mInsertedRawContactsAccounts = Maps.newHashMap();
+        mInsertedRawContacts.add(rawContactId);
         mInsertedRawContactsAccounts.put(rawContactId, accountId);
 
         markRawContactChangedOrDeletedOrInserted(rawContactId);
     }
 
     public void rawContactUpdated(long rawContactId) {
-        if (mUpdatedRawContacts == null) mUpdatedRawContacts = Sets.newHashSet();
         mUpdatedRawContacts.add(rawContactId);
     }
 
     public void markRawContactDirtyAndChanged(long rawContactId, boolean isSyncAdapter) {
         if (!isSyncAdapter) {
-            if (mDirtyRawContacts == null) {
-                mDirtyRawContacts = Sets.newHashSet();
-            }
             mDirtyRawContacts.add(rawContactId);
         }
 
@@ -76,9 +90,6 @@ public class TransactionContext  {
     }
 
     public void markRawContactChangedOrDeletedOrInserted(long rawContactId) {
-        if (mChangedRawContacts == null) {
-            mChangedRawContacts = Sets.newHashSet();
-        }
         mChangedRawContacts.add(rawContactId);
     }
 
@@ -88,71 +99,157 @@ public class TransactionContext  {
     }
 
     public void invalidateSearchIndexForRawContact(long rawContactId) {
-        if (mStaleSearchIndexRawContacts == null) mStaleSearchIndexRawContacts = Sets.newHashSet();
         mStaleSearchIndexRawContacts.add(rawContactId);
     }
 
     public void invalidateSearchIndexForContact(long contactId) {
-        if (mStaleSearchIndexContacts == null) mStaleSearchIndexContacts = Sets.newHashSet();
         mStaleSearchIndexContacts.add(contactId);
     }
 
-    public Set<Long> getInsertedRawContactIds() {
-        if (mInsertedRawContactsAccounts == null) mInsertedRawContactsAccounts = Maps.newHashMap();
-        return mInsertedRawContactsAccounts.keySet();
+    /**
+     * Marks a single data row as changed. Unlike {@link #invalidateSearchIndexForRawContact},
+     * only the searchable content of that row is rebuilt at commit time.
+     */
+    public void invalidateSearchIndexForData(long rawContactId, long dataId) {
+        mStaleSearchIndexData.add(dataId);
+        invalidateSearchIndexForDeletedData(rawContactId);
+    }
+
+    /**
+     * Marks a raw contact whose data rows were deleted. The search index fragments of deleted
+     * data rows are removed by a trigger, so only the contact's index row needs reassembling.
+     */
+    public void invalidateSearchIndexForDeletedData(long rawContactId) {
+        mStaleSearchIndexFragmentRawContacts.add(rawContactId);
+    }
+
+    /**
+     * Starts collecting raw contacts whose display name needs fixing or which need
+     * aggregating, instead of having each data row do it right away.
+     */
+    public void beginDeferringRowSideEffects() {
+        mDeferringRowSideEffects = true;
+    }
+
+    public boolean isDeferringRowSideEffects() {
+        return mDeferringRowSideEffects;
     }
 
-    public Set<Long> getUpdatedRawContactIds() {
-        if (mUpdatedRawContacts == null) mUpdatedRawContacts = Sets.newHashSet();
+    public void deferDisplayNameUpdate(long rawContactId) {
+        mDeferredDisplayNameRawContacts.add(rawContactId);
+    }
+
+    public void deferAggregation(long rawContactId) {
+        mDeferredAggregationRawContacts.add(rawContactId);
+    }
+
+    public void deferHasPhoneNumberUpdate(long rawContactId) {
+        mDeferredHasPhoneNumberRawContacts.add(rawContactId);
+    }
+
+    public LongSet getDeferredDisplayNameRawContactIds() {
+        return mDeferredDisplayNameRawContacts;
+    }
+
+    public LongSet getDeferredAggregationRawContactIds() {
+        return mDeferredAggregationRawContacts;
+    }
+
+    public LongSet getDeferredHasPhoneNumberRawContactIds() {
+        return mDeferredHasPhoneNumberRawContacts;
+    }
+
+    /**
+     * Returns the ID of an account already resolved by the current group of operations, or
+     * null.  Nothing is remembered outside of a group.
+     */
+    public Long getGroupAccountIdOrNull(AccountWithDataSet accountWithDataSet) {
+        return mGroupAccountIds == null ? null : mGroupAccountIds.get(accountWithDataSet);
+    }
+
+    public void groupAccountIdResolved(AccountWithDataSet accountWithDataSet, long accountId) {
+        if (!mDeferringRowSideEffects) {
+            return;
+        }
+        if (mGroupAccountIds == null) mGroupAccountIds = Maps.newHashMap();
+        mGroupAccountIds.put(accountWithDataSet, accountId);
+    }
+
+    /**
+     * Stops deferring and forgets the deferred raw contacts, which the caller must have
+     * processed.
+     */
+    public void endDeferringRowSideEffects() {
+        mDeferringRowSideEffects = false;
+        mDeferredDisplayNameRawContacts.clear();
+        mDeferredAggregationRawContacts.clear();
+        mDeferredHasPhoneNumberRawContacts.clear();
+        mGroupAccountIds = null;
+    }
+
+    public LongSet getInsertedRawContactIds() {
+        return mInsertedRawContacts;
+    }
+
+    public LongSet getUpdatedRawContactIds() {
         return mUpdatedRawContacts;
     }
 
-    public Set<Long> getDirtyRawContactIds() {
-        if (mDirtyRawContacts == null) mDirtyRawContacts = Sets.newHashSet();
+    public LongSet getDirtyRawContactIds() {
         return mDirtyRawContacts;
     }
 
-    public Set<Long> getChangedRawContactIds() {
-        if (mChangedRawContacts == null) mChangedRawContacts = Sets.newHashSet();
+    public LongSet getChangedRawContactIds() {
         return mChangedRawContacts;
     }
 
-    public Set<Long> getStaleSearchIndexRawContactIds() {
-        if (mStaleSearchIndexRawContacts == null) mStaleSearchIndexRawContacts = Sets.newHashSet();
+    public LongSet getStaleSearchIndexRawContactIds() {
         return mStaleSearchIndexRawContacts;
     }
 
-    public Set<Long> getStaleSearchIndexContactIds() {
-        if (mStaleSearchIndexContacts == null) mStaleSearchIndexContacts = Sets.newHashSet();
+    public LongSet getStaleSearchIndexContactIds() {
         return mStaleSearchIndexContacts;
     }
 
+    public LongSet getStaleSearchIndexDataIds() {
+        return mStaleSearchIndexData;
+    }
+
+    public LongSet getStaleSearchIndexFragmentRawContactIds() {
+        return mStaleSearchIndexFragmentRawContacts;
+    }
+
     public Set<Entry<Long, Object>> getUpdatedSyncStates() {
         if (mUpdatedSyncStates == null) mUpdatedSyncStates = Maps.newHashMap();
         return mUpdatedSyncStates.entrySet();
     }
 
     public Long getAccountIdOrNullForRawContact(long rawContactId) {
-        if (mInsertedRawContactsAccounts == null) mInsertedRawContactsAccounts = Maps.newHashMap();
         return mInsertedRawContactsAccounts.get(rawContactId);
     }
 
     public boolean isNewRawContact(long rawContactId) {
-        if (mInsertedRawContactsAccounts == null) mInsertedRawContactsAccounts = Maps.newHashMap();
-        return mInsertedRawContactsAccounts.containsKey(rawContactId);
+        return mInsertedRawContactsAccounts.indexOfKey(rawContactId) >= 0;
     }
 
     public void clearExceptSearchIndexUpdates() {
-        mInsertedRawContactsAccounts = null;
-        mUpdatedRawContacts = null;
+        mInsertedRawContacts.clear();
+        if (mInsertedRawContactsAccounts.size() > 0) {
+            // LongSparseArray doesn't shrink its arrays when cleared
+            mInsertedRawContactsAccounts = new LongSparseArray<Long>();
+        }
+        mUpdatedRawContacts.clear();
         mUpdatedSyncStates = null;
-        mDirtyRawContacts = null;
-        mChangedRawContacts = null;
+        mDirtyRawContacts.clear();
+        mChangedRawContacts.clear();
+        endDeferringRowSideEffects();
     }
 
     public void clearSearchIndexUpdates() {
-        mStaleSearchIndexRawContacts = null;
-        mStaleSearchIndexContacts = null;
+        mStaleSearchIndexRawContacts.clear();
+        mStaleSearchIndexContacts.clear();
+        mStaleSearchIndexData.clear();
+        mStaleSearchIndexFragmentRawContacts.clear();
     }
 
     public void clearAll() {
@@ -235,6 +235,11 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
         checkForSupportedColumns(ALLOWED_COLUMNS, values, "Updates are not allowed.");
         checkUpdateSupported(uriData);
 
+        if (values.containsKey(Voicemails.NUMBER)) {
+            values = new ContentValues(values);
+            DefaultCallLogInsertionHelper.putMinMatch(values);
+        }
+
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
         // TODO: This implementation does not allow bulk update because it only accepts
         // URI that include message Id. I think we do want to support bulk update.
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import com.android.providers.contacts.util.Clock;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides when a batch operation checks whether to yield its transaction, and how long it
+ * sleeps after yielding, from how long it has been holding the database lock.
+ *
+ * A yield check only commits the transaction if another thread is waiting for the lock, so
+ * checking is cheap when there is no contention, but each check ends the group of operations
+ * whose side effects are deferred (see {@link AbstractContactsProvider#onBeginOperationGroup}).
+ * Operations that can yield anywhere, such as bulk inserts, therefore check once they have held
+ * the lock for {@link #YIELD_CHECK_INTERVAL_MILLIS} rather than after a fixed number of rows.
+ *
+ * After yielding, the batch sleeps for as long as it held the lock, between
+ * {@link #MIN_SLEEP_AFTER_YIELD_MILLIS} and the given maximum, so that waiting threads get at
+ * least half of the time without long sleeps after short bursts.  The batch used to sleep for
+ * the maximum after every yield.
+ *
+ * Durations are measured with {@link Clock#elapsedRealtime}, so that changes of the wall clock
+ * neither force nor suppress yield checks.
+ *
+ * This class is thread-safe.
+ */
+public class YieldPolicy {
+
+    /** Time a bulk operation holds the lock before checking whether to yield. */
+    @VisibleForTesting
+    static final long YIELD_CHECK_INTERVAL_MILLIS = 100;
+
+    /**
+     * Shortest sleep after yielding, for a batch that yields soon after acquiring the lock.
+     * Enough for a waiting query to run, much shorter than the former fixed 4s sleep.
+     */
+    @VisibleForTesting
+    static final long MIN_SLEEP_AFTER_YIELD_MILLIS = 50;
+
+    private final long mMaxSleepAfterYieldMillis;
+
+    // Stats
+    private int mCheckCount;
+    private int mYieldCount;
+    private long mTotalHeldMillis;
+    private long mMaxHeldMillis;
+    private long mTotalSleepMillis;
+
+    public YieldPolicy(long maxSleepAfterYieldMillis) {
+        mMaxSleepAfterYieldMillis = maxSleepAfterYieldMillis;
+    }
+
+    private static long now() {
+        return Clock.getInstance().elapsedRealtime();
+    }
+
+    /**
+     * Returns true if an operation that can yield at any point should check whether to yield.
+     */
+    public boolean isYieldCheckDue(ContactsTransaction transaction) {
+        return now() - transaction.getLastYieldCheckMillis() >= YIELD_CHECK_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Returns how long to sleep if the transaction is yielded now.
+     */
+    public long getSleepAfterYieldMillis(ContactsTransaction transaction) {
+        final long heldMillis = now() - transaction.getHeldSinceMillis();
+        return Math.max(MIN_SLEEP_AFTER_YIELD_MILLIS,
+                Math.min(heldMillis, mMaxSleepAfterYieldMillis));
+    }
+
+    /**
+     * Records the outcome of a yield check.
+     *
+     * @param yielded whether the transaction was committed to let another thread in
+     * @param sleepMillis the time slept after yielding
+     */
+    public synchronized void onYieldChecked(ContactsTransaction transaction, boolean yielded,
+            long sleepMillis) {
+        final long now = now();
+        mCheckCount++;
+        transaction.setLastYieldCheckMillis(now);
+        if (yielded) {
+            // The lock was held until the yield, i.e. before the sleep
+            final long heldMillis = Math.max(0,
+                    now - sleepMillis - transaction.getHeldSinceMillis());
+            mYieldCount++;
+            mTotalHeldMillis += heldMillis;
+            mMaxHeldMillis = Math.max(mMaxHeldMillis, heldMillis);
+            mTotalSleepMillis += sleepMillis;
+            transaction.setHeldSinceMillis(now);
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int getYieldCount() {
+        return mYieldCount;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.print("YieldPolicy stats:\n");
+        pw.printf("checks=%d  yields=%d (%d%%)  avg held=%dms  max held=%dms  avg sleep=%dms\n",
+                mCheckCount,
+                mYieldCount,
+                mCheckCount == 0 ? 0 : mYieldCount * 100 / mCheckCount,
+                mYieldCount == 0 ? 0 : mTotalHeldMillis / mYieldCount,
+                mMaxHeldMillis,
+                mYieldCount == 0 ? 0 : mTotalSleepMillis / mYieldCount);
+    }
+}
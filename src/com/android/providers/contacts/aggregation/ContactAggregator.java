@@ -65,8 +65,12 @@ import com.android.providers.contacts.TransactionContext;
 import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
 import com.android.providers.contacts.aggregation.util.ContactMatcher;
 import com.android.providers.contacts.aggregation.util.ContactMatcher.MatchScore;
+import com.android.providers.contacts.aggregation.util.NameLookupIndex;
+import com.android.providers.contacts.aggregation.util.RawContactMatchBatch;
+import com.android.providers.contacts.aggregation.util.RawContactMatchBatch.Match;
 import com.android.providers.contacts.database.ContactsTableUtil;
 import com.android.providers.contacts.util.Clock;
+import com.android.providers.contacts.util.LongSet;
 
 import com.google.android.collect.Maps;
 import com.google.android.collect.Sets;
@@ -159,6 +163,21 @@ public class ContactAggregator {
 
     private boolean mEnabled = true;
 
+    /**
+     * Whether the aggregation in progress looks up name matches in the in-memory
+     * {@link NameLookupIndex}, which only the aggregation upgrade does.
+     */
+    private boolean mNameLookupIndexInUse;
+
+    /**
+     * Smallest number of raw contacts aggregated in one transaction for which the data matches
+     * are loaded in batch, see {@link RawContactMatchBatch}.
+     */
+    private static final int MIN_BATCH_AGGREGATION_SIZE = 20;
+
+    private final RawContactMatchBatch mMatchBatch = new RawContactMatchBatch();
+    private boolean mMatchBatchEnabled = true;
+
     /** Precompiled sql statement for setting an aggregated presence */
     private SQLiteStatement mAggregatedPresenceReplace;
     private SQLiteStatement mPresenceContactIdUpdate;
@@ -411,6 +430,23 @@ public class ContactAggregator {
         return mEnabled;
     }
 
+    /**
+     * Drops the in-memory {@link NameLookupIndex} loaded by
+     * {@link #aggregateInTransaction(TransactionContext, SQLiteDatabase, RawContactMatchBatch)},
+     * which can hold the whole name lookup table.
+     */
+    public void releaseNameLookupIndex() {
+        mDbHelper.getNameLookupIndex().invalidate();
+    }
+
+    /**
+     * Enables or disables loading the data matches of large aggregation batches up front.
+     */
+    @VisibleForTesting
+    public void setMatchBatchEnabled(boolean enabled) {
+        mMatchBatchEnabled = enabled;
+    }
+
     private interface AggregationQuery {
         String SQL =
                 "SELECT " + RawContacts._ID + "," + RawContacts.CONTACT_ID +
@@ -428,6 +464,26 @@ public class ContactAggregator {
      * Call just before committing the transaction.
      */
     public void aggregateInTransaction(TransactionContext txContext, SQLiteDatabase db) {
+        aggregateInTransaction(txContext, db, null, false);
+    }
+
+    /**
+     * Same as {@link #aggregateInTransaction(TransactionContext, SQLiteDatabase)}, but uses
+     * data matches loaded ahead of time by {@link #loadMatchBatch}, and finds name matches in the
+     * in-memory {@link NameLookupIndex}, which is loaded on first use and kept until
+     * {@link #releaseNameLookupIndex} is called.  Meant for re-aggregating all raw contacts in
+     * chunks, where loading the whole name lookup table once pays off.
+     *
+     * @param matchBatch matches loaded since data rows last changed, or null to load them here.
+     *     Raw contacts missing from the batch are matched against the database as usual.
+     */
+    public void aggregateInTransaction(TransactionContext txContext, SQLiteDatabase db,
+            RawContactMatchBatch matchBatch) {
+        aggregateInTransaction(txContext, db, matchBatch, true);
+    }
+
+    private void aggregateInTransaction(TransactionContext txContext, SQLiteDatabase db,
+            RawContactMatchBatch matchBatch, boolean useNameLookupIndex) {
         final int markedCount = mRawContactsMarkedForAggregation.size();
         if (markedCount == 0) {
             return;
@@ -485,9 +541,27 @@ public class ContactAggregator {
             Log.d(TAG, "aggregateInTransaction: initial query done.");
         }
 
-        for (int i = 0; i < actualCount; i++) {
-            aggregateContact(txContext, db, rawContactIds[i], accountIds[i], contactIds[i],
-                    mCandidates, mMatcher);
+        mNameLookupIndexInUse = useNameLookupIndex;
+
+        if (matchBatch != null) {
+            mMatchBatch.putAll(matchBatch);
+        } else if (mMatchBatchEnabled && actualCount >= MIN_BATCH_AGGREGATION_SIZE) {
+            mMatchBatch.load(db, rawContactIds, mMimeTypeIdIdentity, mMimeTypeIdEmail,
+                    mDbHelper.getUseStrictPhoneNumberComparisonParameter(),
+                    mNameLookupIndexInUse ? mDbHelper.getNameLookupIndex() : null);
+            if (DEBUG_LOGGING) {
+                Log.d(TAG, "aggregateInTransaction: batch matches loaded.");
+            }
+        }
+
+        try {
+            for (int i = 0; i < actualCount; i++) {
+                aggregateContact(txContext, db, rawContactIds[i], accountIds[i], contactIds[i],
+                        mCandidates, mMatcher);
+            }
+        } finally {
+            mMatchBatch.clear();
+            mNameLookupIndexInUse = false;
         }
 
         long elapsedTime = System.currentTimeMillis() - start;
@@ -538,6 +612,13 @@ public class ContactAggregator {
         mRawContactsMarkedForAggregation = Maps.newHashMap();
     }
 
+    /**
+     * Returns the IDs of the raw contacts marked for aggregation in the current transaction.
+     */
+    public Set<Long> getRawContactsMarkedForAggregation() {
+        return mRawContactsMarkedForAggregation.keySet();
+    }
+
     public void markNewForAggregation(long rawContactId, int aggregationMode) {
         mRawContactsMarkedForAggregation.put(rawContactId, aggregationMode);
     }
@@ -596,28 +677,54 @@ public class ContactAggregator {
         }
     }
 
+    private interface VisibleForAggregationQuery {
+        // Don't re-aggregate AGGREGATION_MODE_SUSPENDED / AGGREGATION_MODE_DISABLED
+        String SELECTION = RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY +
+                " AND " + RawContacts.AGGREGATION_MODE + "=" +
+                RawContacts.AGGREGATION_MODE_DEFAULT;
+    }
+
+    /**
+     * Returns the IDs greater than {@code afterRawContactId} of the visible raw contacts with
+     * {@link RawContacts#AGGREGATION_MODE_DEFAULT}, in increasing order.  Doesn't use any
+     * shared state, so it may be called outside of a transaction.
+     */
+    public long[] getVisibleRawContactIdsForAggregation(SQLiteDatabase db,
+            long afterRawContactId) {
+        final Cursor cursor = db.query(Tables.RAW_CONTACTS, new String[] {RawContacts._ID},
+                RawContacts._ID + ">? AND " + VisibleForAggregationQuery.SELECTION,
+                new String[] {String.valueOf(afterRawContactId)}, null, null, RawContacts._ID);
+        try {
+            final long[] rawContactIds = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                rawContactIds[i] = cursor.getLong(0);
+            }
+            return rawContactIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
-     * Mark all visible contacts for re-aggregation.
+     * Mark the visible contacts with raw contact IDs in ({@code afterRawContactId},
+     * {@code lastRawContactId}] for re-aggregation.
      *
      * - Set {@link RawContactsColumns#AGGREGATION_NEEDED} For all visible raw_contacts with
-     *   {@link RawContacts#AGGREGATION_MODE_DEFAULT}.
+     *   {@link RawContacts#AGGREGATION_MODE_DEFAULT} in the range.
      * - Also put them into {@link #mRawContactsMarkedForAggregation}.
      */
-    public int markAllVisibleForAggregation(SQLiteDatabase db) {
-        final long start = System.currentTimeMillis();
-
-        // Set AGGREGATION_NEEDED for all visible raw_cotnacts with AGGREGATION_MODE_DEFAULT.
-        // (Don't re-aggregate AGGREGATION_MODE_SUSPENDED / AGGREGATION_MODE_DISABLED)
+    public int markVisibleForAggregation(SQLiteDatabase db, long afterRawContactId,
+            long lastRawContactId) {
+        final String range = RawContacts._ID + ">" + afterRawContactId +
+                " AND " + RawContacts._ID + "<=" + lastRawContactId;
         db.execSQL("UPDATE " + Tables.RAW_CONTACTS + " SET " +
                 RawContactsColumns.AGGREGATION_NEEDED + "=1" +
-                " WHERE " + RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY +
-                " AND " + RawContacts.AGGREGATION_MODE + "=" + RawContacts.AGGREGATION_MODE_DEFAULT
-                );
+                " WHERE " + range + " AND " + VisibleForAggregationQuery.SELECTION);
 
         final int count;
         final Cursor cursor = db.rawQuery("SELECT " + RawContacts._ID +
                 " FROM " + Tables.RAW_CONTACTS +
-                " WHERE " + RawContactsColumns.AGGREGATION_NEEDED + "=1", null);
+                " WHERE " + range + " AND " + RawContactsColumns.AGGREGATION_NEEDED + "=1", null);
         try {
             count = cursor.getCount();
             cursor.moveToPosition(-1);
@@ -629,13 +736,24 @@ public class ContactAggregator {
         } finally {
             cursor.close();
         }
-
-        final long end = System.currentTimeMillis();
-        Log.i(TAG, "Marked all visible contacts for aggregation: " + count + " raw contacts, " +
-                (end - start) + " ms");
         return count;
     }
 
+    /**
+     * Loads the data matches of the given raw contacts for
+     * {@link #aggregateInTransaction(TransactionContext, SQLiteDatabase, RawContactMatchBatch)}.
+     * Only reads data rows, which aggregation doesn't change, so unlike the rest of the
+     * aggregator it may be called on any thread and outside of a transaction.
+     */
+    public RawContactMatchBatch loadMatchBatch(SQLiteDatabase db, long[] rawContactIds) {
+        final RawContactMatchBatch matchBatch = new RawContactMatchBatch();
+        // The name lookup index is maintained by the writer, so load name matches from the
+        // database.
+        matchBatch.load(db, rawContactIds, mMimeTypeIdIdentity, mMimeTypeIdEmail,
+                mDbHelper.getUseStrictPhoneNumberComparisonParameter(), null);
+        return matchBatch;
+    }
+
     /**
      * Creates a new contact based on the given raw contact.  Does not perform aggregation.  Returns
      * the ID of the contact that was created.
@@ -1617,6 +1735,9 @@ public class ContactAggregator {
      */
     private long updateMatchScoresBasedOnDataMatches(SQLiteDatabase db, long rawContactId,
             ContactMatcher matcher) {
+        if (mMatchBatch.contains(rawContactId)) {
+            return updateMatchScoresBasedOnBatchedDataMatches(db, rawContactId, matcher);
+        }
 
         updateMatchScoresBasedOnIdentityMatch(db, rawContactId, matcher);
         updateMatchScoresBasedOnNameMatches(db, rawContactId, matcher);
@@ -1631,6 +1752,93 @@ public class ContactAggregator {
         return -1;
     }
 
+    /**
+     * Same as {@link #updateMatchScoresBasedOnDataMatches}, but uses the matches loaded in
+     * {@link #mMatchBatch}.  Only the contacts of the matched raw contacts need to be looked up,
+     * because they may have changed while aggregating the earlier raw contacts of the batch.
+     */
+    private long updateMatchScoresBasedOnBatchedDataMatches(SQLiteDatabase db, long rawContactId,
+            ContactMatcher matcher) {
+        final HashMap<Long, Long> contactIds = resolveMatchContactIds(db,
+                mMatchBatch.getMatchedRawContactIds(rawContactId), true /* aggregatedOnly */);
+
+        if (mMatchBatch.isComplete(rawContactId, RawContactMatchBatch.KIND_IDENTITY)) {
+            final HashSet<Long> matchedContactIds = Sets.newHashSet();
+            for (Match match : mMatchBatch.getMatches(rawContactId,
+                    RawContactMatchBatch.KIND_IDENTITY)) {
+                final Long contactId = contactIds.get(match.rawContactId);
+                if (contactId != null && matchedContactIds.add(contactId)) {
+                    matcher.matchIdentity(contactId);
+                }
+            }
+        } else {
+            updateMatchScoresBasedOnIdentityMatch(db, rawContactId, matcher);
+        }
+
+        if (mMatchBatch.isComplete(rawContactId, RawContactMatchBatch.KIND_NAME)) {
+            int count = 0;
+            for (Match match : mMatchBatch.getMatches(rawContactId,
+                    RawContactMatchBatch.KIND_NAME)) {
+                final Long contactId = contactIds.get(match.rawContactId);
+                if (contactId == null) {
+                    continue;
+                }
+                matcher.matchName(contactId, match.nameTypeA, match.name,
+                        match.nameTypeB, match.name, ContactMatcher.MATCHING_ALGORITHM_EXACT);
+                if (match.nameTypeA == NameLookupType.NICKNAME &&
+                        match.nameTypeB == NameLookupType.NICKNAME) {
+                    matcher.updateScoreWithNicknameMatch(contactId);
+                }
+                if (++count >= PRIMARY_HIT_LIMIT) {
+                    break;
+                }
+            }
+        } else {
+            updateMatchScoresBasedOnNameMatches(db, rawContactId, matcher);
+        }
+
+        long bestMatch = matcher.pickBestMatch(ContactMatcher.SCORE_THRESHOLD_PRIMARY, false);
+        if (bestMatch != -1) {
+            return bestMatch;
+        }
+
+        if (mMatchBatch.isComplete(rawContactId, RawContactMatchBatch.KIND_EMAIL)) {
+            int count = 0;
+            for (Match match : mMatchBatch.getMatches(rawContactId,
+                    RawContactMatchBatch.KIND_EMAIL)) {
+                final Long contactId = contactIds.get(match.rawContactId);
+                if (contactId == null) {
+                    continue;
+                }
+                matcher.updateScoreWithEmailMatch(contactId);
+                if (++count >= SECONDARY_HIT_LIMIT) {
+                    break;
+                }
+            }
+        } else {
+            updateMatchScoresBasedOnEmailMatches(db, rawContactId, matcher);
+        }
+
+        if (mMatchBatch.isComplete(rawContactId, RawContactMatchBatch.KIND_PHONE)) {
+            int count = 0;
+            for (Match match : mMatchBatch.getMatches(rawContactId,
+                    RawContactMatchBatch.KIND_PHONE)) {
+                final Long contactId = contactIds.get(match.rawContactId);
+                if (contactId == null) {
+                    continue;
+                }
+                matcher.updateScoreWithPhoneNumberMatch(contactId);
+                if (++count >= SECONDARY_HIT_LIMIT) {
+                    break;
+                }
+            }
+        } else {
+            updateMatchScoresBasedOnPhoneMatches(db, rawContactId, matcher);
+        }
+
+        return -1;
+    }
+
     private interface IdentityLookupMatchQuery {
         final String TABLE = Tables.DATA + " dataA"
                 + " JOIN " + Tables.DATA + " dataB" +
@@ -1707,6 +1915,11 @@ public class ContactAggregator {
      */
     private void updateMatchScoresBasedOnNameMatches(SQLiteDatabase db, long rawContactId,
             ContactMatcher matcher) {
+        if (mNameLookupIndexInUse && mDbHelper.getNameLookupIndex().ensureLoaded(db)) {
+            updateMatchScoresBasedOnIndexedNameMatches(db, rawContactId, matcher);
+            return;
+        }
+
         mSelectionArgs1[0] = String.valueOf(rawContactId);
         Cursor c = db.query(NameLookupMatchQuery.TABLE, NameLookupMatchQuery.COLUMNS,
                 NameLookupMatchQuery.SELECTION,
@@ -1729,6 +1942,97 @@ public class ContactAggregator {
         }
     }
 
+    /**
+     * Same as {@link #updateMatchScoresBasedOnNameMatches(SQLiteDatabase, long, ContactMatcher)},
+     * but finds the matching names in the {@link NameLookupIndex}.
+     */
+    private void updateMatchScoresBasedOnIndexedNameMatches(SQLiteDatabase db, long rawContactId,
+            ContactMatcher matcher) {
+        final NameLookupIndex index = mDbHelper.getNameLookupIndex();
+        final List<NameLookupIndex.Entry> entriesA = index.getEntriesForRawContact(rawContactId);
+        if (entriesA.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<NameLookupIndex.Entry> entriesB = new ArrayList<NameLookupIndex.Entry>();
+        final ArrayList<NameLookupIndex.Entry> pairsA = new ArrayList<NameLookupIndex.Entry>();
+        final HashSet<Long> rawContactIds = Sets.newHashSet();
+        for (NameLookupIndex.Entry entryA : entriesA) {
+            for (NameLookupIndex.Entry entryB : index.getEntriesForName(entryA.name)) {
+                pairsA.add(entryA);
+                entriesB.add(entryB);
+                rawContactIds.add(entryB.rawContactId);
+            }
+        }
+
+        final HashMap<Long, Long> contactIds =
+                resolveMatchContactIds(db, rawContactIds, true /* aggregatedOnly */);
+        int count = 0;
+        for (int i = 0; i < entriesB.size() && count < PRIMARY_HIT_LIMIT; i++) {
+            final NameLookupIndex.Entry entryB = entriesB.get(i);
+            final Long contactId = contactIds.get(entryB.rawContactId);
+            if (contactId == null) {
+                continue;
+            }
+            final int nameTypeA = pairsA.get(i).nameType;
+            final int nameTypeB = entryB.nameType;
+            matcher.matchName(contactId, nameTypeA, entryB.name,
+                    nameTypeB, entryB.name, ContactMatcher.MATCHING_ALGORITHM_EXACT);
+            if (nameTypeA == NameLookupType.NICKNAME &&
+                    nameTypeB == NameLookupType.NICKNAME) {
+                matcher.updateScoreWithNicknameMatch(contactId);
+            }
+            count++;
+        }
+    }
+
+    private interface MatchContactIdQuery {
+        String TABLE = Tables.RAW_CONTACTS;
+
+        String[] COLUMNS = new String[] {
+            RawContacts._ID,
+            RawContacts.CONTACT_ID,
+        };
+
+        String SELECTION = RawContacts.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
+
+        String SELECTION_AGGREGATED = RawContactsColumns.AGGREGATION_NEEDED + "=0"
+                + " AND " + SELECTION;
+
+        int _ID = 0;
+        int CONTACT_ID = 1;
+    }
+
+    /**
+     * Maps the given raw contacts to their contacts, leaving out the raw contacts the
+     * corresponding data match queries would not match: raw contacts that are not in the
+     * default directory and, if {@code aggregatedOnly} is set, raw contacts that are waiting
+     * for aggregation.
+     */
+    private HashMap<Long, Long> resolveMatchContactIds(SQLiteDatabase db,
+            Set<Long> rawContactIds, boolean aggregatedOnly) {
+        final HashMap<Long, Long> contactIds = Maps.newHashMap();
+        if (rawContactIds.isEmpty()) {
+            return contactIds;
+        }
+
+        final String selection = RawContacts._ID + " IN (" + TextUtils.join(",", rawContactIds)
+                + ") AND " + (aggregatedOnly
+                        ? MatchContactIdQuery.SELECTION_AGGREGATED
+                        : MatchContactIdQuery.SELECTION);
+        final Cursor c = db.query(MatchContactIdQuery.TABLE, MatchContactIdQuery.COLUMNS,
+                selection, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                contactIds.put(c.getLong(MatchContactIdQuery._ID),
+                        c.getLong(MatchContactIdQuery.CONTACT_ID));
+            }
+        } finally {
+            c.close();
+        }
+        return contactIds;
+    }
+
     private interface NameLookupMatchQueryWithParameter {
         String TABLE = Tables.NAME_LOOKUP
                 + " JOIN " + Tables.RAW_CONTACTS +
@@ -1913,6 +2217,11 @@ public class ContactAggregator {
      */
     private void lookupApproximateNameMatches(SQLiteDatabase db, MatchCandidateList candidates,
             ContactMatcher matcher) {
+        if (mNameLookupIndexInUse && mDbHelper.getNameLookupIndex().ensureLoaded(db)) {
+            lookupIndexedApproximateNameMatches(db, candidates, matcher);
+            return;
+        }
+
         HashSet<String> firstLetters = new HashSet<String>();
         for (int i = 0; i < candidates.mCount; i++) {
             final NameMatchCandidate candidate = candidates.mList.get(i);
@@ -1935,6 +2244,68 @@ public class ContactAggregator {
         }
     }
 
+    /**
+     * Name types considered by approximate matching, indexed by name lookup type.
+     */
+    private static final boolean[] APPROXIMATE_MATCH_NAME_TYPES =
+            new boolean[NameLookupType.TYPE_COUNT];
+    static {
+        APPROXIMATE_MATCH_NAME_TYPES[NameLookupType.NAME_COLLATION_KEY] = true;
+        APPROXIMATE_MATCH_NAME_TYPES[NameLookupType.EMAIL_BASED_NICKNAME] = true;
+        APPROXIMATE_MATCH_NAME_TYPES[NameLookupType.NICKNAME] = true;
+    }
+
+    /**
+     * Same as {@link #lookupApproximateNameMatches}, but finds the names sharing a prefix with
+     * the candidates in the {@link NameLookupIndex}.
+     */
+    private void lookupIndexedApproximateNameMatches(SQLiteDatabase db,
+            MatchCandidateList candidates, ContactMatcher matcher) {
+        final NameLookupIndex index = mDbHelper.getNameLookupIndex();
+        final HashSet<String> firstLetters = new HashSet<String>();
+        final ArrayList<NameLookupIndex.Entry> entries = new ArrayList<NameLookupIndex.Entry>();
+        final HashSet<Long> rawContactIds = Sets.newHashSet();
+        for (int i = 0; i < candidates.mCount; i++) {
+            final NameMatchCandidate candidate = candidates.mList.get(i);
+            if (candidate.mName.length() < NameLookupIndex.PREFIX_LENGTH) {
+                continue;
+            }
+            final String firstLetter = NameLookupIndex.getPrefix(candidate.mName);
+            if (!firstLetters.add(firstLetter)) {
+                continue;
+            }
+
+            // Entries of raw contacts outside of the default directory are only dropped after
+            // resolving contact IDs, so fetch a few more than the hit limit.
+            entries.clear();
+            rawContactIds.clear();
+            index.getEntriesForPrefix(firstLetter, APPROXIMATE_MATCH_NAME_TYPES,
+                    FIRST_LETTER_SUGGESTION_HIT_LIMIT * 2, entries);
+            for (NameLookupIndex.Entry entry : entries) {
+                rawContactIds.add(entry.rawContactId);
+            }
+            final HashMap<Long, Long> contactIds =
+                    resolveMatchContactIds(db, rawContactIds, false /* aggregatedOnly */);
+
+            int count = 0;
+            for (int j = 0; j < entries.size() && count < FIRST_LETTER_SUGGESTION_HIT_LIMIT;
+                    j++) {
+                final NameLookupIndex.Entry entry = entries.get(j);
+                final Long contactId = contactIds.get(entry.rawContactId);
+                if (contactId == null) {
+                    continue;
+                }
+                for (int k = 0; k < candidates.mCount; k++) {
+                    NameMatchCandidate c = candidates.mList.get(k);
+                    matcher.matchName(contactId, c.mLookupType, c.mName,
+                            entry.nameType, entry.name,
+                            ContactMatcher.MATCHING_ALGORITHM_APPROXIMATE);
+                }
+                count++;
+            }
+        }
+    }
+
     private interface ContactNameLookupQuery {
         String TABLE = Tables.NAME_LOOKUP_JOIN_RAW_CONTACTS;
 
@@ -2487,6 +2858,25 @@ public class ContactAggregator {
         updateDisplayNameForContact(db, contactId);
     }
 
+    /**
+     * Updates the display names of the contacts containing the given raw contacts, once per
+     * contact.
+     */
+    public void updateDisplayNamesForRawContacts(SQLiteDatabase db, LongSet rawContactIds) {
+        final Cursor c = db.rawQuery("SELECT DISTINCT " + RawContacts.CONTACT_ID
+                + " FROM " + Tables.RAW_CONTACTS
+                + " WHERE " + RawContacts._ID + " IN ("
+                        + mDbHelper.getIdSetSql(db, rawContactIds) + ")"
+                + " AND " + RawContacts.CONTACT_ID + " NOT NULL", null);
+        try {
+            while (c.moveToNext()) {
+                updateDisplayNameForContact(db, c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     public void updateDisplayNameForContact(SQLiteDatabase db, long contactId) {
         boolean lookupKeyUpdateNeeded = false;
 
@@ -2557,6 +2947,26 @@ public class ContactAggregator {
         }
     }
 
+    /**
+     * Updates the {@link Contacts#HAS_PHONE_NUMBER} flag for the aggregate contacts containing the
+     * given raw contacts with a single statement.
+     */
+    public void updateHasPhoneNumber(SQLiteDatabase db, LongSet rawContactIds) {
+        db.execSQL("UPDATE " + Tables.CONTACTS +
+                " SET " + Contacts.HAS_PHONE_NUMBER + "="
+                        + "(SELECT (CASE WHEN COUNT(*)=0 THEN 0 ELSE 1 END)"
+                        + " FROM " + Tables.DATA_JOIN_RAW_CONTACTS
+                        + " WHERE " + DataColumns.MIMETYPE_ID + "=?"
+                                + " AND " + Phone.NUMBER + " NOT NULL"
+                                + " AND " + RawContacts.CONTACT_ID + "="
+                                        + Tables.CONTACTS + "." + Contacts._ID + ")" +
+                " WHERE " + Contacts._ID + " IN (SELECT " + RawContacts.CONTACT_ID
+                        + " FROM " + Tables.RAW_CONTACTS
+                        + " WHERE " + RawContacts._ID + " IN ("
+                                + mDbHelper.getIdSetSql(db, rawContactIds) + "))",
+                new Object[] { mDbHelper.getMimeTypeId(Phone.CONTENT_ITEM_TYPE) });
+    }
+
     private interface LookupKeyQuery {
         String TABLE = Views.RAW_CONTACTS;
         String[] COLUMNS = new String[] {
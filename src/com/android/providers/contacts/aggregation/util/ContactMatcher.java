@@ -21,8 +21,7 @@ import com.android.providers.contacts.util.Hex;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -160,8 +159,8 @@ public class ContactMatcher {
     }
 
     /**
-     * Captures the max score and match count for a specific contact.  Used in an
-     * contactId - MatchScore map.
+     * Captures the max score and match count for a specific contact, as returned by
+     * {@link #pickBestMatches}.
      */
     public static class MatchScore implements Comparable<MatchScore> {
         private long mContactId;
@@ -241,27 +240,119 @@ public class ContactMatcher {
         }
     }
 
-    private final HashMap<Long, MatchScore> mScores = new HashMap<Long, MatchScore>();
-    private final ArrayList<MatchScore> mScoreList = new ArrayList<MatchScore>();
+    private static final int INITIAL_SLOT_COUNT = 64;
+
+    private static final int FLAG_KEEP_IN = 1;
+    private static final int FLAG_KEEP_OUT = 2;
+
+    /*
+     * Scores are kept in flat arrays indexed in the order contacts were first matched.  An open
+     * addressing hash table maps contact IDs to those indexes: mSlots holds the index plus one,
+     * zero marking an empty slot, and mSlotKeys the contact ID.  Clearing only empties the slots
+     * used by the current scores, so it costs no more than the matching did.
+     */
+    private int[] mSlots = new int[INITIAL_SLOT_COUNT];
+    private long[] mSlotKeys = new long[INITIAL_SLOT_COUNT];
+
+    private long[] mContactIds = new long[INITIAL_SLOT_COUNT / 2];
+    private int[] mSlotOfScore = new int[INITIAL_SLOT_COUNT / 2];
+    private int[] mPrimaryScores = new int[INITIAL_SLOT_COUNT / 2];
+    private int[] mSecondaryScores = new int[INITIAL_SLOT_COUNT / 2];
+    private int[] mMatchCounts = new int[INITIAL_SLOT_COUNT / 2];
+    private int[] mFlags = new int[INITIAL_SLOT_COUNT / 2];
     private int mScoreCount = 0;
 
+    // Reused by pickBestMatches() and prepareSecondaryMatchCandidates()
+    private final ArrayList<MatchScore> mMatchScorePool = new ArrayList<MatchScore>();
+    private final ArrayList<MatchScore> mBestMatches = new ArrayList<MatchScore>();
+    private final ArrayList<Long> mSecondaryContactIds = new ArrayList<Long>();
+
     private final NameDistance mNameDistanceConservative = new NameDistance();
     private final NameDistance mNameDistanceApproximate = new NameDistance(MAX_MATCHED_NAME_LENGTH);
 
-    private MatchScore getMatchingScore(long contactId) {
-        MatchScore matchingScore = mScores.get(contactId);
-        if (matchingScore == null) {
-            if (mScoreList.size() > mScoreCount) {
-                matchingScore = mScoreList.get(mScoreCount);
-                matchingScore.reset(contactId);
-            } else {
-                matchingScore = new MatchScore(contactId);
-                mScoreList.add(matchingScore);
+    private static int hash(long contactId) {
+        final long h = contactId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the index of the scores of the given contact, adding zero scores for it if needed.
+     */
+    private int getScoreIndex(long contactId) {
+        int mask = mSlots.length - 1;
+        int slot = hash(contactId) & mask;
+        while (mSlots[slot] != 0) {
+            if (mSlotKeys[slot] == contactId) {
+                return mSlots[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if ((mScoreCount + 1) * 2 > mSlots.length) {
+            grow();
+            mask = mSlots.length - 1;
+            slot = hash(contactId) & mask;
+            while (mSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
             }
-            mScoreCount++;
-            mScores.put(contactId, matchingScore);
         }
-        return matchingScore;
+
+        final int index = mScoreCount++;
+        mSlots[slot] = index + 1;
+        mSlotKeys[slot] = contactId;
+        mContactIds[index] = contactId;
+        mSlotOfScore[index] = slot;
+        mPrimaryScores[index] = 0;
+        mSecondaryScores[index] = 0;
+        mMatchCounts[index] = 0;
+        mFlags[index] = 0;
+        return index;
+    }
+
+    /**
+     * Doubles the capacity of the hash table and score arrays.
+     */
+    private void grow() {
+        final int slotCount = mSlots.length * 2;
+        mSlots = new int[slotCount];
+        mSlotKeys = new long[slotCount];
+
+        final int capacity = slotCount / 2;
+        mContactIds = Arrays.copyOf(mContactIds, capacity);
+        mSlotOfScore = Arrays.copyOf(mSlotOfScore, capacity);
+        mPrimaryScores = Arrays.copyOf(mPrimaryScores, capacity);
+        mSecondaryScores = Arrays.copyOf(mSecondaryScores, capacity);
+        mMatchCounts = Arrays.copyOf(mMatchCounts, capacity);
+        mFlags = Arrays.copyOf(mFlags, capacity);
+
+        final int mask = slotCount - 1;
+        for (int i = 0; i < mScoreCount; i++) {
+            int slot = hash(mContactIds[i]) & mask;
+            while (mSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mSlots[slot] = i + 1;
+            mSlotKeys[slot] = mContactIds[i];
+            mSlotOfScore[i] = slot;
+        }
+    }
+
+    /**
+     * Same as {@link MatchScore#getScore} for the scores at the given index.
+     */
+    private int getScore(int index) {
+        if ((mFlags[index] & FLAG_KEEP_OUT) != 0) {
+            return 0;
+        }
+
+        if ((mFlags[index] & FLAG_KEEP_IN) != 0) {
+            return MAX_SCORE;
+        }
+
+        int primaryScore = mPrimaryScores[index];
+        int secondaryScore = mSecondaryScores[index];
+        int score = (primaryScore > secondaryScore ? primaryScore : secondaryScore);
+        return score * SCORE_SCALE + mMatchCounts[index];
     }
 
     /**
@@ -314,12 +405,12 @@ public class ContactMatcher {
                 mNameDistanceConservative : mNameDistanceApproximate;
 
         int score;
-        float distance = nameDistance.getDistance(decodedCandidateName, decodedName);
         boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
                 || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
         float threshold = emailBased
                 ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
                 : APPROXIMATE_MATCH_THRESHOLD;
+        float distance = nameDistance.getDistance(decodedCandidateName, decodedName, threshold);
         if (distance > threshold) {
             score = (int)(minScore +  (maxScore - minScore) * (1.0f - distance));
         } else {
@@ -342,23 +433,33 @@ public class ContactMatcher {
     }
 
     private void updatePrimaryScore(long contactId, int score) {
-        getMatchingScore(contactId).updatePrimaryScore(score);
+        final int index = getScoreIndex(contactId);
+        if (score > mPrimaryScores[index]) {
+            mPrimaryScores[index] = score;
+        }
+        mMatchCounts[index]++;
     }
 
     private void updateSecondaryScore(long contactId, int score) {
-        getMatchingScore(contactId).updateSecondaryScore(score);
+        final int index = getScoreIndex(contactId);
+        if (score > mSecondaryScores[index]) {
+            mSecondaryScores[index] = score;
+        }
+        mMatchCounts[index]++;
     }
 
     public void keepIn(long contactId) {
-        getMatchingScore(contactId).keepIn();
+        mFlags[getScoreIndex(contactId)] |= FLAG_KEEP_IN;
     }
 
     public void keepOut(long contactId) {
-        getMatchingScore(contactId).keepOut();
+        mFlags[getScoreIndex(contactId)] |= FLAG_KEEP_OUT;
     }
 
     public void clear() {
-        mScores.clear();
+        for (int i = 0; i < mScoreCount; i++) {
+            mSlots[mSlotOfScore[i]] = 0;
+        }
         mScoreCount = 0;
     }
 
@@ -367,27 +468,21 @@ public class ContactMatcher {
      * (phone number, email address, nickname). We still need to obtain the approximate
      * primary score for those contacts to determine if any of them should be aggregated.
      * <p>
-     * May return null.
+     * May return null.  The returned list is reused by the next call.
      */
     public List<Long> prepareSecondaryMatchCandidates(int threshold) {
-        ArrayList<Long> contactIds = null;
-
+        mSecondaryContactIds.clear();
         for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
-            if (score.mKeepOut) {
+            if ((mFlags[i] & FLAG_KEEP_OUT) != 0) {
                 continue;
             }
 
-            int s = score.mSecondaryScore;
-            if (s >= threshold) {
-                if (contactIds == null) {
-                    contactIds = new ArrayList<Long>();
-                }
-                contactIds.add(score.mContactId);
+            if (mSecondaryScores[i] >= threshold) {
+                mSecondaryContactIds.add(mContactIds[i]);
             }
-            score.mPrimaryScore = NO_DATA_SCORE;
+            mPrimaryScores[i] = NO_DATA_SCORE;
         }
-        return contactIds;
+        return mSecondaryContactIds.isEmpty() ? null : mSecondaryContactIds;
     }
 
     /**
@@ -400,18 +495,18 @@ public class ContactMatcher {
         long contactId = -1;
         int maxScore = 0;
         for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
-            if (score.mKeepOut) {
+            final int flags = mFlags[i];
+            if ((flags & FLAG_KEEP_OUT) != 0) {
                 continue;
             }
 
-            if (score.mKeepIn) {
-                return score.mContactId;
+            if ((flags & FLAG_KEEP_IN) != 0) {
+                return mContactIds[i];
             }
 
-            int s = score.mPrimaryScore;
+            int s = mPrimaryScores[i];
             if (s == NO_DATA_SCORE) {
-                s = score.mSecondaryScore;
+                s = mSecondaryScores[i];
             }
 
             if (s >= threshold) {
@@ -420,8 +515,8 @@ public class ContactMatcher {
                 }
                 // In order to make it stable, let's jut pick the one with the lowest ID
                 // if multiple candidates are found.
-                if ((s > maxScore) || ((s == maxScore) && (contactId > score.mContactId))) {
-                    contactId = score.mContactId;
+                if ((s > maxScore) || ((s == maxScore) && (contactId > mContactIds[i]))) {
+                    contactId = mContactIds[i];
                     maxScore = s;
                 }
             }
@@ -430,27 +525,63 @@ public class ContactMatcher {
     }
 
     /**
-     * Returns matches in the order of descending score.
+     * Returns matches in the order of descending score.  The returned list and its elements
+     * are reused by the next call.
      */
     public List<MatchScore> pickBestMatches(int threshold) {
         int scaledThreshold = threshold * SCORE_SCALE;
-        List<MatchScore> matches = mScoreList.subList(0, mScoreCount);
-        Collections.sort(matches);
-        int count = 0;
+        mBestMatches.clear();
         for (int i = 0; i < mScoreCount; i++) {
-            MatchScore matchScore = matches.get(i);
-            if (matchScore.getScore() >= scaledThreshold) {
-                count++;
-            } else {
-                break;
+            final int score = getScore(i);
+            if (score < scaledThreshold) {
+                continue;
             }
+
+            final MatchScore matchScore = getPooledMatchScore(mBestMatches.size(), i);
+
+            // Insertion sort, which keeps contacts with the same score in the order they were
+            // matched.  There are very few matches above the threshold in practice.
+            int position = mBestMatches.size();
+            mBestMatches.add(matchScore);
+            while (position > 0 && mBestMatches.get(position - 1).getScore() < score) {
+                mBestMatches.set(position, mBestMatches.get(position - 1));
+                position--;
+            }
+            mBestMatches.set(position, matchScore);
         }
+        return mBestMatches;
+    }
 
-        return matches.subList(0, count);
+    /**
+     * Returns the n-th pooled {@link MatchScore}, populated from the scores at the given index.
+     */
+    private MatchScore getPooledMatchScore(int n, int index) {
+        final MatchScore matchScore;
+        if (n < mMatchScorePool.size()) {
+            matchScore = mMatchScorePool.get(n);
+            matchScore.reset(mContactIds[index]);
+        } else {
+            matchScore = new MatchScore(mContactIds[index]);
+            mMatchScorePool.add(matchScore);
+        }
+        matchScore.mPrimaryScore = mPrimaryScores[index];
+        matchScore.mSecondaryScore = mSecondaryScores[index];
+        matchScore.mMatchCount = mMatchCounts[index];
+        matchScore.mKeepIn = (mFlags[index] & FLAG_KEEP_IN) != 0;
+        matchScore.mKeepOut = (mFlags[index] & FLAG_KEEP_OUT) != 0;
+        return matchScore;
     }
 
     @Override
     public String toString() {
-        return mScoreList.subList(0, mScoreCount).toString();
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < mScoreCount; i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            sb.append(mContactIds[i]).append(": ").append(mPrimaryScores[i]).append('/')
+                    .append(mSecondaryScores[i]).append('(').append(mMatchCounts[i]).append(')');
+        }
+        return sb.append(']').toString();
     }
 }
@@ -32,11 +32,26 @@ public class NameDistance {
     private static final float WINKLER_BONUS_THRESHOLD = 0.7f;
     private static final int MIN_EXACT_PREFIX_LENGTH = 3;
 
+    /** Names up to this length are matched using bit masks rather than flag arrays. */
+    private static final int MAX_BIT_MASK_LENGTH = 64;
+
+    /**
+     * Allowance for rounding errors when comparing an upper bound of the distance with a
+     * threshold.
+     */
+    private static final float THRESHOLD_TOLERANCE = 0.0001f;
+
     private final int mMaxLength;
     private final boolean mPrefixOnly;
     private final boolean[] mMatchFlags1;
     private final boolean[] mMatchFlags2;
 
+    /**
+     * For each byte value, a bit mask of the positions of that byte in the longer of the two
+     * names being compared.  Only used if mMaxLength is not greater than MAX_BIT_MASK_LENGTH.
+     */
+    private final long[] mPositions;
+
     /**
      * Constructor.
      *
@@ -45,8 +60,14 @@ public class NameDistance {
     public NameDistance(int maxLength) {
         mMaxLength = maxLength;
         mPrefixOnly = false;
-        mMatchFlags1 = new boolean[maxLength];
-        mMatchFlags2 = new boolean[maxLength];
+        if (maxLength <= MAX_BIT_MASK_LENGTH) {
+            mPositions = new long[256];
+            mMatchFlags1 = mMatchFlags2 = null;
+        } else {
+            mPositions = null;
+            mMatchFlags1 = new boolean[maxLength];
+            mMatchFlags2 = new boolean[maxLength];
+        }
     }
 
     /**
@@ -56,12 +77,23 @@ public class NameDistance {
         mPrefixOnly = true;
         mMaxLength = 0;
         mMatchFlags1 = mMatchFlags2 = null;
+        mPositions = null;
     }
 
     /**
      * Computes a string distance between two normalized strings passed as byte arrays.
      */
     public float getDistance(byte bytes1[], byte bytes2[]) {
+        return getDistance(bytes1, bytes2, 0f);
+    }
+
+    /**
+     * Computes a string distance between two normalized strings passed as byte arrays, giving up
+     * as soon as the distance is known to be lower than {@code threshold}.
+     *
+     * @return the distance, or 0 if it is lower than the threshold
+     */
+    public float getDistance(byte bytes1[], byte bytes2[], float threshold) {
         byte[] array1, array2;
 
         if (bytes1.length > bytes2.length) {
@@ -99,14 +131,134 @@ public class NameDistance {
             length2 = mMaxLength;
         }
 
-        Arrays.fill(mMatchFlags1, 0, length1, false);
-        Arrays.fill(mMatchFlags2, 0, length2, false);
+        if (length1 == 0 || getUpperBound(length1, length1, length2) < threshold) {
+            return 0f;
+        }
 
         int range = length2 / 2 - 1;
         if (range < 0) {
             range = 0;
         }
 
+        final float jaro = mPositions != null
+                ? getJaroDistanceWithBitMasks(array1, length1, array2, length2, range, threshold)
+                : getJaroDistanceWithFlags(array1, length1, array2, length2, range, threshold);
+
+        float distance = jaro;
+        if (jaro >= WINKLER_BONUS_THRESHOLD) {
+            // Add Winkler bonus
+            int prefix = 0;
+            for (int i = 0; i < length1; i++) {
+                if (bytes1[i] != bytes2[i]) {
+                    break;
+                }
+                prefix++;
+            }
+
+            distance = jaro + Math.min(0.1f, 1f / length2) * prefix * (1 - jaro);
+        }
+
+        return distance < threshold ? 0f : distance;
+    }
+
+    /**
+     * Computes the distances between a name and each of the given candidates.
+     *
+     * @param distances receives the distance to each candidate, or 0 if it is lower than
+     *     {@code threshold}
+     */
+    public void getDistances(byte[] name, byte[][] candidates, int count, float threshold,
+            float[] distances) {
+        for (int i = 0; i < count; i++) {
+            distances[i] = getDistance(name, candidates[i], threshold);
+        }
+    }
+
+    /**
+     * Returns the highest distance two names of the given lengths could have with the given
+     * number of matching characters.
+     */
+    private static float getUpperBound(int matches, int length1, int length2) {
+        if (matches == 0) {
+            return 0f;
+        }
+
+        // No transpositions
+        float m = matches;
+        float jaro = (m / length1 + m / length2 + 1f) / 3;
+        if (jaro >= WINKLER_BONUS_THRESHOLD) {
+            // Longest possible common prefix
+            jaro += Math.min(0.1f, 1f / length2) * length1 * (1 - jaro);
+        }
+        return jaro + THRESHOLD_TOLERANCE;
+    }
+
+    private float getJaroDistanceWithBitMasks(byte[] array1, int length1, byte[] array2,
+            int length2, int range, float threshold) {
+        final long[] positions = mPositions;
+        for (int j = 0; j < length2; j++) {
+            positions[array2[j] & 0xFF] |= 1L << j;
+        }
+
+        long flags1 = 0;
+        long flags2 = 0;
+        int matches = 0;
+        boolean belowThreshold = false;
+        for (int i = 0; i < length1; i++) {
+            int from = i - range;
+            if (from < 0) {
+                from = 0;
+            }
+
+            int to = i + range + 1;
+            if (to > length2) {
+                to = length2;
+            }
+
+            if (from < to) {
+                // Positions from..to-1 of the unmatched occurrences of the same byte
+                long window = (to == 64 ? -1L : (1L << to) - 1) & -(1L << from);
+                long candidates = positions[array1[i] & 0xFF] & window & ~flags2;
+                if (candidates != 0) {
+                    long lowest = candidates & -candidates;
+                    flags1 |= 1L << i;
+                    flags2 |= lowest;
+                    matches++;
+                }
+            }
+
+            if (getUpperBound(matches + length1 - i - 1, length1, length2) < threshold) {
+                belowThreshold = true;
+                break;
+            }
+        }
+
+        for (int j = 0; j < length2; j++) {
+            positions[array2[j] & 0xFF] = 0;
+        }
+
+        if (belowThreshold || matches == 0) {
+            return 0f;
+        }
+
+        int transpositions = 0;
+        while (flags1 != 0) {
+            if (array1[Long.numberOfTrailingZeros(flags1)]
+                    != array2[Long.numberOfTrailingZeros(flags2)]) {
+                transpositions++;
+            }
+            flags1 &= flags1 - 1;
+            flags2 &= flags2 - 1;
+        }
+
+        return getJaroDistance(matches, transpositions, length1, length2);
+    }
+
+    private float getJaroDistanceWithFlags(byte[] array1, int length1, byte[] array2,
+            int length2, int range, float threshold) {
+        Arrays.fill(mMatchFlags1, 0, length1, false);
+        Arrays.fill(mMatchFlags2, 0, length2, false);
+
         int matches = 0;
         for (int i = 0; i < length1; i++) {
             byte c1 = array1[i];
@@ -128,6 +280,10 @@ public class NameDistance {
                     break;
                 }
             }
+
+            if (getUpperBound(matches + length1 - i - 1, length1, length2) < threshold) {
+                return 0f;
+            }
         }
 
         if (matches == 0) {
@@ -148,22 +304,12 @@ public class NameDistance {
             }
         }
 
-        float m = matches;
-        float jaro = ((m / length1 + m / length2 + (m - (transpositions / 2f)) / m)) / 3;
-
-        if (jaro < WINKLER_BONUS_THRESHOLD) {
-            return jaro;
-        }
-
-        // Add Winkler bonus
-        int prefix = 0;
-        for (int i = 0; i < length1; i++) {
-            if (bytes1[i] != bytes2[i]) {
-                break;
-            }
-            prefix++;
-        }
+        return getJaroDistance(matches, transpositions, length1, length2);
+    }
 
-        return jaro + Math.min(0.1f, 1f / length2) * prefix * (1 - jaro);
+    private static float getJaroDistance(int matches, int transpositions, int length1,
+            int length2) {
+        float m = matches;
+        return ((m / length1 + m / length2 + (m - (transpositions / 2f)) / m)) / 3;
     }
 }
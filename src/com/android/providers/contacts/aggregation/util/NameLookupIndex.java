@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.google.android.collect.Lists;
+import com.google.android.collect.Maps;
+import com.google.android.collect.Sets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * In-memory copy of the name lookup table, used by the aggregator to find contacts with
+ * matching names without querying {@link Tables#NAME_LOOKUP}.
+ *
+ * The index is loaded from the database on first use and then kept up to date by
+ * {@link #add} and {@link #removeData}, which are called whenever single name lookup rows are
+ * inserted or deleted.  Bulk changes to the table must call {@link #invalidate}, after which
+ * the index is reloaded on next use.
+ *
+ * Contact IDs are not part of the index, because they change on every aggregation; callers
+ * resolve the raw contact IDs of the entries they're interested in.
+ *
+ * This class is thread-safe.
+ */
+public class NameLookupIndex {
+    private static final String TAG = "NameLookupIndex";
+
+    /** Length of the name prefixes used for approximate matching. */
+    public static final int PREFIX_LENGTH = 2;
+
+    /**
+     * Tables larger than this are not loaded into memory; callers fall back to querying the
+     * database instead.
+     */
+    private static final int MAX_ENTRIES = 200000;
+
+    private static final class NameLookupQuery {
+        public static final String TABLE = Tables.NAME_LOOKUP;
+
+        public static final String[] COLUMNS = new String[] {
+                NameLookupColumns.RAW_CONTACT_ID,
+                NameLookupColumns.DATA_ID,
+                NameLookupColumns.NAME_TYPE,
+                NameLookupColumns.NORMALIZED_NAME,
+        };
+
+        public static final int RAW_CONTACT_ID = 0;
+        public static final int DATA_ID = 1;
+        public static final int NAME_TYPE = 2;
+        public static final int NORMALIZED_NAME = 3;
+    }
+
+    /**
+     * A row of the name lookup table.
+     */
+    public static final class Entry {
+        public final long rawContactId;
+        public final long dataId;
+        public final int nameType;
+        public final String name;
+
+        Entry(long rawContactId, long dataId, int nameType, String name) {
+            this.rawContactId = rawContactId;
+            this.dataId = dataId;
+            this.nameType = nameType;
+            this.name = name;
+        }
+    }
+
+    private HashMap<String, ArrayList<Entry>> mEntriesByName = Maps.newHashMap();
+    private HashMap<Long, ArrayList<Entry>> mEntriesByRawContact = Maps.newHashMap();
+    private HashMap<Long, ArrayList<Entry>> mEntriesByData = Maps.newHashMap();
+    private HashMap<String, HashSet<String>> mNamesByPrefix = Maps.newHashMap();
+
+    private boolean mLoaded;
+    private boolean mTooLarge;
+    private int mSize;
+
+    /**
+     * Loads the index if needed.
+     *
+     * @return false if the index can't be used, in which case the caller should query the
+     *     database instead
+     */
+    public synchronized boolean ensureLoaded(SQLiteDatabase db) {
+        if (mLoaded) {
+            return true;
+        }
+        if (mTooLarge) {
+            return false;
+        }
+
+        final Cursor c = db.query(NameLookupQuery.TABLE, NameLookupQuery.COLUMNS,
+                null, null, null, null, null);
+        try {
+            if (c.getCount() > MAX_ENTRIES) {
+                Log.i(TAG, "Not loading " + c.getCount() + " name lookup rows");
+                mTooLarge = true;
+                return false;
+            }
+            while (c.moveToNext()) {
+                addInternal(c.getLong(NameLookupQuery.RAW_CONTACT_ID),
+                        c.getLong(NameLookupQuery.DATA_ID),
+                        c.getInt(NameLookupQuery.NAME_TYPE),
+                        c.getString(NameLookupQuery.NORMALIZED_NAME));
+            }
+        } finally {
+            c.close();
+        }
+        mLoaded = true;
+        return true;
+    }
+
+    /**
+     * Drops the content of the index, which will be reloaded from the database on next use.  The
+     * maps are replaced rather than cleared, so that their memory is released.
+     */
+    public synchronized void invalidate() {
+        mEntriesByName = Maps.newHashMap();
+        mEntriesByRawContact = Maps.newHashMap();
+        mEntriesByData = Maps.newHashMap();
+        mNamesByPrefix = Maps.newHashMap();
+        mSize = 0;
+        mLoaded = false;
+        mTooLarge = false;
+    }
+
+    /**
+     * Records a row inserted in the name lookup table.  Duplicate rows are ignored, like the
+     * table's primary key does.
+     */
+    public synchronized void add(long rawContactId, long dataId, int nameType, String name) {
+        if (!mLoaded) {
+            return;
+        }
+        final ArrayList<Entry> dataEntries = mEntriesByData.get(dataId);
+        if (dataEntries != null) {
+            for (int i = 0; i < dataEntries.size(); i++) {
+                final Entry entry = dataEntries.get(i);
+                if (entry.nameType == nameType && entry.name.equals(name)) {
+                    return;
+                }
+            }
+        }
+        addInternal(rawContactId, dataId, nameType, name);
+        if (mSize > MAX_ENTRIES) {
+            invalidate();
+            mTooLarge = true;
+        }
+    }
+
+    /**
+     * Records the deletion of all name lookup rows of a data row.
+     */
+    public synchronized void removeData(long dataId) {
+        if (!mLoaded) {
+            return;
+        }
+        final ArrayList<Entry> entries = mEntriesByData.remove(dataId);
+        if (entries == null) {
+            return;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            remove(mEntriesByRawContact, entry.rawContactId, entry);
+            if (remove(mEntriesByName, entry.name, entry)) {
+                final String prefix = getPrefix(entry.name);
+                final HashSet<String> names = mNamesByPrefix.get(prefix);
+                if (names != null) {
+                    names.remove(entry.name);
+                    if (names.isEmpty()) {
+                        mNamesByPrefix.remove(prefix);
+                    }
+                }
+            }
+            mSize--;
+        }
+    }
+
+    /**
+     * Records the deletion of a raw contact, whose name lookup rows are deleted along with its
+     * data rows.
+     */
+    public synchronized void removeRawContact(long rawContactId) {
+        if (!mLoaded) {
+            return;
+        }
+        final ArrayList<Entry> entries = mEntriesByRawContact.get(rawContactId);
+        if (entries == null) {
+            return;
+        }
+        final HashSet<Long> dataIds = Sets.newHashSet();
+        for (int i = 0; i < entries.size(); i++) {
+            dataIds.add(entries.get(i).dataId);
+        }
+        for (long dataId : dataIds) {
+            removeData(dataId);
+        }
+    }
+
+    /**
+     * Returns the entries of the given raw contact.
+     */
+    public synchronized List<Entry> getEntriesForRawContact(long rawContactId) {
+        return copyOf(mEntriesByRawContact.get(rawContactId));
+    }
+
+    /**
+     * Returns the entries with the given normalized name.
+     */
+    public synchronized List<Entry> getEntriesForName(String name) {
+        return copyOf(mEntriesByName.get(name));
+    }
+
+    /**
+     * Adds the entries whose normalized name starts with the given {@link #PREFIX_LENGTH}
+     * characters and whose type is one of the given name types to {@code out}, up to
+     * {@code limit} entries in total.
+     */
+    public synchronized void getEntriesForPrefix(String prefix, boolean[] nameTypes, int limit,
+            List<Entry> out) {
+        final HashSet<String> names = mNamesByPrefix.get(prefix);
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            final ArrayList<Entry> entries = mEntriesByName.get(name);
+            for (int i = 0; i < entries.size(); i++) {
+                final Entry entry = entries.get(i);
+                if (entry.nameType < nameTypes.length && nameTypes[entry.nameType]) {
+                    if (out.size() >= limit) {
+                        return;
+                    }
+                    out.add(entry);
+                }
+            }
+        }
+    }
+
+    public static String getPrefix(String name) {
+        return name.length() <= PREFIX_LENGTH ? name : name.substring(0, PREFIX_LENGTH);
+    }
+
+    private void addInternal(long rawContactId, long dataId, int nameType, String name) {
+        final Entry entry = new Entry(rawContactId, dataId, nameType, name);
+        if (add(mEntriesByName, name, entry)) {
+            final String prefix = getPrefix(name);
+            HashSet<String> names = mNamesByPrefix.get(prefix);
+            if (names == null) {
+                names = Sets.newHashSet();
+                mNamesByPrefix.put(prefix, names);
+            }
+            names.add(name);
+        }
+        add(mEntriesByRawContact, rawContactId, entry);
+        add(mEntriesByData, dataId, entry);
+        mSize++;
+    }
+
+    /**
+     * Adds an entry to the list of the given key.
+     *
+     * @return true if the key is new
+     */
+    private static <K> boolean add(HashMap<K, ArrayList<Entry>> map, K key, Entry entry) {
+        ArrayList<Entry> entries = map.get(key);
+        final boolean newKey = entries == null;
+        if (newKey) {
+            entries = Lists.newArrayList();
+            map.put(key, entries);
+        }
+        entries.add(entry);
+        return newKey;
+    }
+
+    /**
+     * Removes an entry from the list of the given key.
+     *
+     * @return true if the key has no entries left
+     */
+    private static <K> boolean remove(HashMap<K, ArrayList<Entry>> map, K key, Entry entry) {
+        final ArrayList<Entry> entries = map.get(key);
+        if (entries == null) {
+            return false;
+        }
+        entries.remove(entry);
+        if (entries.isEmpty()) {
+            map.remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    private static List<Entry> copyOf(ArrayList<Entry> entries) {
+        return entries == null ? new ArrayList<Entry>() : new ArrayList<Entry>(entries);
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Identity;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.DataColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.google.android.collect.Lists;
+import com.google.android.collect.Maps;
+import com.google.android.collect.Sets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Data matches of a batch of raw contacts that are about to be aggregated, loaded with a few
+ * set-based queries instead of one query per raw contact and kind of data.
+ *
+ * Matches are recorded between raw contacts rather than contacts: data rows don't change while
+ * a batch is aggregated, but contact IDs do, so the aggregator resolves the matched raw
+ * contacts to their current contacts when it gets to each raw contact of the batch.
+ *
+ * To bound memory use, at most {@link #MAX_MATCHES_PER_KIND} matches are kept per raw contact
+ * and kind of data.  When a raw contact has more, {@link #isComplete} returns false and the
+ * aggregator queries the database for that raw contact as before.
+ */
+public class RawContactMatchBatch {
+
+    public static final int KIND_IDENTITY = 0;
+    public static final int KIND_NAME = 1;
+    public static final int KIND_EMAIL = 2;
+    public static final int KIND_PHONE = 3;
+    private static final int KIND_COUNT = 4;
+
+    /** Maximum number of matches kept per raw contact and kind of data. */
+    private static final int MAX_MATCHES_PER_KIND = 100;
+
+    /** Maximum number of raw contact IDs in a single IN() clause. */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /**
+     * A data match between a raw contact of the batch and another raw contact.  For name
+     * matches, also carries the matching name and the lookup types on both sides.
+     */
+    public static final class Match {
+        public final long rawContactId;
+        public final String name;
+        public final int nameTypeA;
+        public final int nameTypeB;
+
+        Match(long rawContactId, String name, int nameTypeA, int nameTypeB) {
+            this.rawContactId = rawContactId;
+            this.name = name;
+            this.nameTypeA = nameTypeA;
+            this.nameTypeB = nameTypeB;
+        }
+    }
+
+    private static final class Matches {
+        @SuppressWarnings("unchecked")
+        final ArrayList<Match>[] byKind = new ArrayList[KIND_COUNT];
+        final boolean[] overflow = new boolean[KIND_COUNT];
+    }
+
+    private interface IdentityQuery {
+        String SQL = "SELECT dataA." + Data.RAW_CONTACT_ID + ", dataB." + Data.RAW_CONTACT_ID
+                + " FROM " + Tables.DATA + " dataA"
+                + " JOIN " + Tables.DATA + " dataB"
+                + " ON (dataA." + Identity.NAMESPACE + "=dataB." + Identity.NAMESPACE
+                + " AND dataA." + Identity.IDENTITY + "=dataB." + Identity.IDENTITY + ")"
+                + " WHERE dataA." + DataColumns.MIMETYPE_ID + "=?1"
+                + " AND dataA." + Identity.NAMESPACE + " NOT NULL"
+                + " AND dataA." + Identity.IDENTITY + " NOT NULL"
+                + " AND dataB." + DataColumns.MIMETYPE_ID + "=?1"
+                + " AND dataA." + Data.RAW_CONTACT_ID + " IN (";
+    }
+
+    private interface NameQuery {
+        String SQL = "SELECT nameA." + NameLookupColumns.RAW_CONTACT_ID
+                + ", nameB." + NameLookupColumns.RAW_CONTACT_ID
+                + ", nameA." + NameLookupColumns.NORMALIZED_NAME
+                + ", nameA." + NameLookupColumns.NAME_TYPE
+                + ", nameB." + NameLookupColumns.NAME_TYPE
+                + " FROM " + Tables.NAME_LOOKUP + " nameA"
+                + " JOIN " + Tables.NAME_LOOKUP + " nameB"
+                + " ON (nameA." + NameLookupColumns.NORMALIZED_NAME + "="
+                        + "nameB." + NameLookupColumns.NORMALIZED_NAME + ")"
+                + " WHERE nameA." + NameLookupColumns.RAW_CONTACT_ID + " IN (";
+
+        int NAME = 2;
+        int NAME_TYPE_A = 3;
+        int NAME_TYPE_B = 4;
+    }
+
+    private interface EmailQuery {
+        String SQL = "SELECT dataA." + Data.RAW_CONTACT_ID + ", dataB." + Data.RAW_CONTACT_ID
+                + " FROM " + Tables.DATA + " dataA"
+                + " JOIN " + Tables.DATA + " dataB"
+                + " ON lower(dataA." + Email.DATA + ")=lower(dataB." + Email.DATA + ")"
+                + " WHERE dataA." + DataColumns.MIMETYPE_ID + "=?1"
+                + " AND dataA." + Email.DATA + " NOT NULL"
+                + " AND dataB." + DataColumns.MIMETYPE_ID + "=?1"
+                + " AND dataA." + Data.RAW_CONTACT_ID + " IN (";
+    }
+
+    private interface PhoneQuery {
+        String SQL = "SELECT dataA." + Data.RAW_CONTACT_ID + ", dataB." + Data.RAW_CONTACT_ID
+                + " FROM " + Tables.PHONE_LOOKUP + " phoneA"
+                + " JOIN " + Tables.DATA + " dataA"
+                + " ON (dataA." + Data._ID + "=phoneA." + PhoneLookupColumns.DATA_ID + ")"
+                + " JOIN " + Tables.PHONE_LOOKUP + " phoneB"
+                + " ON (phoneA." + PhoneLookupColumns.MIN_MATCH + "="
+                        + "phoneB." + PhoneLookupColumns.MIN_MATCH + ")"
+                + " JOIN " + Tables.DATA + " dataB"
+                + " ON (dataB." + Data._ID + "=phoneB." + PhoneLookupColumns.DATA_ID + ")"
+                + " WHERE PHONE_NUMBERS_EQUAL(dataA." + Phone.NUMBER + ", "
+                        + "dataB." + Phone.NUMBER + ",?1)"
+                + " AND dataA." + Data.RAW_CONTACT_ID + " IN (";
+    }
+
+    private static final int SOURCE_RAW_CONTACT_ID = 0;
+    private static final int MATCHED_RAW_CONTACT_ID = 1;
+
+    private final HashMap<Long, Matches> mMatches = Maps.newHashMap();
+
+    /**
+     * Loads the data matches of the given raw contacts.
+     *
+     * @param nameLookupIndex if loaded, name matches are taken from the index rather than
+     *     the database; may be null
+     */
+    public void load(SQLiteDatabase db, long[] rawContactIds, long mimeTypeIdIdentity,
+            long mimeTypeIdEmail, String useStrictPhoneNumberComparison,
+            NameLookupIndex nameLookupIndex) {
+        mMatches.clear();
+        for (long rawContactId : rawContactIds) {
+            mMatches.put(rawContactId, new Matches());
+        }
+
+        final String[] identityArgs = new String[] { String.valueOf(mimeTypeIdIdentity) };
+        final String[] emailArgs = new String[] { String.valueOf(mimeTypeIdEmail) };
+        final String[] phoneArgs = new String[] { useStrictPhoneNumberComparison };
+        final boolean namesFromIndex = nameLookupIndex != null && nameLookupIndex.ensureLoaded(db);
+
+        for (int start = 0; start < rawContactIds.length; start += MAX_IDS_PER_QUERY) {
+            final int end = Math.min(start + MAX_IDS_PER_QUERY, rawContactIds.length);
+            final StringBuilder sb = new StringBuilder();
+            for (int i = start; i < end; i++) {
+                if (i != start) {
+                    sb.append(',');
+                }
+                sb.append(rawContactIds[i]);
+            }
+            sb.append(')');
+            final String ids = sb.toString();
+
+            loadMatches(db, KIND_IDENTITY, IdentityQuery.SQL + ids, identityArgs);
+            if (!namesFromIndex) {
+                loadMatches(db, KIND_NAME, NameQuery.SQL + ids, null);
+            }
+            loadMatches(db, KIND_EMAIL, EmailQuery.SQL + ids, emailArgs);
+            loadMatches(db, KIND_PHONE, PhoneQuery.SQL + ids, phoneArgs);
+        }
+
+        if (namesFromIndex) {
+            for (long rawContactId : rawContactIds) {
+                for (NameLookupIndex.Entry entryA :
+                        nameLookupIndex.getEntriesForRawContact(rawContactId)) {
+                    for (NameLookupIndex.Entry entryB :
+                            nameLookupIndex.getEntriesForName(entryA.name)) {
+                        addMatch(rawContactId, KIND_NAME, new Match(entryB.rawContactId,
+                                entryA.name, entryA.nameType, entryB.nameType));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the matches loaded by another batch, e.g. one loaded on another thread.
+     */
+    public void putAll(RawContactMatchBatch other) {
+        mMatches.putAll(other.mMatches);
+    }
+
+    /**
+     * Drops all loaded matches.
+     */
+    public void clear() {
+        mMatches.clear();
+    }
+
+    /**
+     * Returns true if the given raw contact was part of the loaded batch.
+     */
+    public boolean contains(long rawContactId) {
+        return mMatches.containsKey(rawContactId);
+    }
+
+    /**
+     * Returns false if the given raw contact had too many matches of the given kind for all of
+     * them to be kept.
+     */
+    public boolean isComplete(long rawContactId, int kind) {
+        final Matches matches = mMatches.get(rawContactId);
+        return matches != null && !matches.overflow[kind];
+    }
+
+    /**
+     * Returns the matches of the given kind of a raw contact of the batch.
+     */
+    public List<Match> getMatches(long rawContactId, int kind) {
+        final Matches matches = mMatches.get(rawContactId);
+        if (matches == null || matches.byKind[kind] == null) {
+            return Lists.newArrayList();
+        }
+        return matches.byKind[kind];
+    }
+
+    /**
+     * Returns the IDs of all raw contacts matched by a raw contact of the batch.
+     */
+    public Set<Long> getMatchedRawContactIds(long rawContactId) {
+        final HashSet<Long> result = Sets.newHashSet();
+        final Matches matches = mMatches.get(rawContactId);
+        if (matches == null) {
+            return result;
+        }
+        for (ArrayList<Match> list : matches.byKind) {
+            if (list != null) {
+                for (int i = 0; i < list.size(); i++) {
+                    result.add(list.get(i).rawContactId);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void loadMatches(SQLiteDatabase db, int kind, String sql, String[] args) {
+        final boolean isName = kind == KIND_NAME;
+        final Cursor c = db.rawQuery(sql, args);
+        try {
+            while (c.moveToNext()) {
+                final long rawContactId = c.getLong(SOURCE_RAW_CONTACT_ID);
+                final long matchedRawContactId = c.getLong(MATCHED_RAW_CONTACT_ID);
+                addMatch(rawContactId, kind, isName
+                        ? new Match(matchedRawContactId, c.getString(NameQuery.NAME),
+                                c.getInt(NameQuery.NAME_TYPE_A), c.getInt(NameQuery.NAME_TYPE_B))
+                        : new Match(matchedRawContactId, null, 0, 0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private void addMatch(long rawContactId, int kind, Match match) {
+        final Matches matches = mMatches.get(rawContactId);
+        if (matches == null || matches.overflow[kind]) {
+            return;
+        }
+        ArrayList<Match> list = matches.byKind[kind];
+        if (list == null) {
+            list = Lists.newArrayList();
+            matches.byKind[kind] = list;
+        }
+        if (list.size() >= MAX_MATCHES_PER_KIND) {
+            matches.overflow[kind] = true;
+            matches.byKind[kind] = null;
+            return;
+        }
+        list.add(match);
+    }
+}
@@ -26,6 +26,7 @@ import android.provider.ContactsContract;
 import android.text.TextUtils;
 
 import com.android.common.io.MoreCloseables;
+import com.android.providers.contacts.ContactsDatabaseHelper;
 import com.android.providers.contacts.util.Clock;
 
 import java.util.Set;
@@ -78,6 +79,25 @@ public class ContactsTableUtil {
         db.execSQL(buildUpdateLastUpdateSql(rawContactIds));
     }
 
+    /**
+     * Refreshes the last updated timestamp of the contacts with the current time.
+     *
+     * @param db The sqlite database instance.
+     * @param rawContactIdSql The raw contact ids to refresh the contact for, as a list or a query
+     *     for an IN clause, see {@link ContactsDatabaseHelper#getIdSetSql}.
+     */
+    public static void updateContactLastUpdateByRawContactIdSql(SQLiteDatabase db,
+            String rawContactIdSql) {
+        db.execSQL("UPDATE " + Tables.CONTACTS
+                + " SET " + Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + "=?"
+                + " WHERE " + Contacts._ID + " IN ("
+                + "SELECT " + ContactsContract.RawContacts.CONTACT_ID
+                + " FROM " + Tables.RAW_CONTACTS
+                + " WHERE " + ContactsContract.RawContacts._ID + " IN ("
+                + rawContactIdSql + "))",
+                new Object[] {Clock.getInstance().currentTimeMillis()});
+    }
+
     /**
      * Build a sql to update the last updated timestamp for contacts.
      *
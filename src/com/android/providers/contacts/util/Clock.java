@@ -16,6 +16,8 @@
 
 package com.android.providers.contacts.util;
 
+import android.os.SystemClock;
+
 public class Clock {
     private static final Clock INSTANCE = new Clock();
 
@@ -38,4 +40,9 @@ public class Clock {
     public long currentTimeMillis() {
         return System.currentTimeMillis();
     }
+
+    /** Monotonic time, for measuring durations that must not jump with the wall clock. */
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of longs, such as row IDs, backed by a sorted array of primitives.
+ *
+ * IDs are mostly added in increasing order, as rows are inserted, or repeatedly, as rows of the
+ * same raw contact are changed; in both cases adding is at most an append.  Otherwise the array
+ * is sorted and de-duplicated the next time the set is read.  Iterate in increasing order with
+ * {@link #size} and {@link #get}:
+ *
+ * <pre>
+ *     for (int i = 0; i < set.size(); i++) {
+ *         long id = set.get(i);
+ *     }
+ * </pre>
+ *
+ * This class is not thread-safe.
+ */
+public class LongSet {
+    private static final int INITIAL_CAPACITY = 8;
+
+    /** Capacity above which {@link #clear} releases the array. */
+    private static final int MAX_RETAINED_CAPACITY = 1024;
+
+    private long[] mValues = new long[INITIAL_CAPACITY];
+    private int mSize;
+    private boolean mSorted = true;
+
+    public void add(long value) {
+        if (mSize > 0 && mSorted) {
+            final long last = mValues[mSize - 1];
+            if (value == last) {
+                return;
+            }
+            mSorted = value > last;
+        }
+        if (mSize == mValues.length) {
+            // Drop duplicates before growing
+            sort();
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+        }
+        mValues[mSize++] = value;
+    }
+
+    public void addAll(LongSet other) {
+        for (int i = 0; i < other.size(); i++) {
+            add(other.get(i));
+        }
+    }
+
+    public void removeAll(LongSet other) {
+        if (other.isEmpty()) {
+            return;
+        }
+        sort();
+        int size = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (!other.contains(mValues[i])) {
+                mValues[size++] = mValues[i];
+            }
+        }
+        mSize = size;
+    }
+
+    public boolean contains(long value) {
+        sort();
+        return Arrays.binarySearch(mValues, 0, mSize, value) >= 0;
+    }
+
+    public int size() {
+        sort();
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Returns the element at the given index, in increasing order.
+     */
+    public long get(int index) {
+        sort();
+        if (index >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return mValues[index];
+    }
+
+    public void clear() {
+        if (mValues.length > MAX_RETAINED_CAPACITY) {
+            mValues = new long[INITIAL_CAPACITY];
+        }
+        mSize = 0;
+        mSorted = true;
+    }
+
+    /**
+     * Returns the elements in increasing order, separated by the given delimiter, e.g. for an
+     * IN (...) clause.
+     */
+    public String join(String delimiter) {
+        sort();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                sb.append(delimiter);
+            }
+            sb.append(mValues[i]);
+        }
+        return sb.toString();
+    }
+
+    private void sort() {
+        if (mSorted) {
+            return;
+        }
+        Arrays.sort(mValues, 0, mSize);
+        int size = 1;
+        for (int i = 1; i < mSize; i++) {
+            if (mValues[i] != mValues[size - 1]) {
+                mValues[size++] = mValues[i];
+            }
+        }
+        mSize = size;
+        mSorted = true;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + join(", ") + "]";
+    }
+}
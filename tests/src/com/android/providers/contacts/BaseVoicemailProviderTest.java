@@ -193,6 +193,7 @@ public abstract class BaseVoicemailProviderTest extends BaseContactsProvider2Tes
                 public void addComputedValues(ContentValues values) {
                     values.put(Calls.COUNTRY_ISO, "us");
                     values.put(Calls.GEOCODED_LOCATION, "usa");
+                    DefaultCallLogInsertionHelper.putMinMatch(values);
                 }
             };
         }
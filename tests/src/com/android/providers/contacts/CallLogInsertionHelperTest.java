@@ -57,6 +57,18 @@ public class CallLogInsertionHelperTest extends AndroidTestCase {
         checkNormalization("test@sip.org", null);
     }
 
+    /**
+     * Tests that numbers are computed the same way when they are cached.
+     */
+    public void testCachedNumber() {
+        checkNormalization("650-555-1212", "+16505551212");
+        checkNormalization("650-555-1212", "+16505551212");
+        checkNormalization("663-555-1212", null);
+        checkNormalization("663-555-1212", null);
+        assertEquals(mInsertionHelper.getGeocodedLocationFor("650-555-1212", "US"),
+                mInsertionHelper.getGeocodedLocationFor("650-555-1212", "US"));
+    }
+
     /**
      * Runs the DefaultCallLogInsertionHelper to determine if it produces the correct normalized
      * phone number.
@@ -38,6 +38,7 @@ import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.VoicemailContract.Voicemails;
 import android.telecom.PhoneAccountHandle;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.text.format.DateUtils;
 
 import java.util.Arrays;
 import java.util.List;
@@ -173,6 +174,40 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         c.close();
     }
 
+    public void testCallLogFilterMatchesOtherFormats() {
+        ContentValues values = getDefaultCallValues();
+        mResolver.insert(Calls.CONTENT_URI, values);
+
+        Uri filterUri = Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, "+18004664411");
+        Cursor c = mResolver.query(filterUri, null, null, null, null);
+        assertEquals(1, c.getCount());
+        c.close();
+
+        filterUri = Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, "(800) 466-4411");
+        c = mResolver.query(filterUri, null, null, null, null);
+        assertEquals(1, c.getCount());
+        c.close();
+    }
+
+    public void testCallLogFilterAfterNumberUpdate() {
+        ContentValues values = getDefaultCallValues();
+        Uri uri = mResolver.insert(Calls.CONTENT_URI, values);
+
+        ContentValues updateValues = new ContentValues();
+        updateValues.put(Calls.NUMBER, "1-888-4664-411");
+        assertEquals(1, mResolver.update(uri, updateValues, null, null));
+
+        Uri filterUri = Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, "1-800-4664-411");
+        Cursor c = mResolver.query(filterUri, null, null, null, null);
+        assertEquals(0, c.getCount());
+        c.close();
+
+        filterUri = Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, "1-888-4664-411");
+        c = mResolver.query(filterUri, null, null, null, null);
+        assertEquals(1, c.getCount());
+        c.close();
+    }
+
     public void testAddCall() {
         CallerInfo ci = new CallerInfo();
         ci.name = "1-800-GOOG-411";
@@ -262,6 +297,65 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         }
     }
 
+    public void testBeforeParamsReturnNextPages() {
+        // Pairs of calls with the same date, so that pages end between calls of a date
+        for (int i = 0; i < 10; i++) {
+            ContentValues values = getDefaultCallValues();
+            values.put(Calls.DATE, 1000 + i / 2);
+            mResolver.insert(Calls.CONTENT_URI, values);
+        }
+        String[] projection = new String[] {Calls._ID, Calls.DATE};
+        Cursor all = mResolver.query(Calls.CONTENT_URI, projection, null, null,
+                CallLogProvider.KEYSET_SORT_ORDER);
+
+        Uri uri = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, "3")
+                .build();
+        try {
+            while (true) {
+                Cursor page = mResolver.query(uri, projection, null, null, null);
+                try {
+                    if (!page.moveToFirst()) {
+                        break;
+                    }
+                    do {
+                        assertTrue(all.moveToNext());
+                        assertEquals(all.getLong(0), page.getLong(0));
+                    } while (page.moveToNext());
+                    page.moveToLast();
+                    uri = Calls.CONTENT_URI.buildUpon()
+                            .appendQueryParameter(Calls.LIMIT_PARAM_KEY, "3")
+                            .appendQueryParameter(CallLogProvider.BEFORE_DATE_PARAM_KEY,
+                                    page.getString(1))
+                            .appendQueryParameter(CallLogProvider.BEFORE_ID_PARAM_KEY,
+                                    page.getString(0))
+                            .build();
+                } finally {
+                    page.close();
+                }
+            }
+            assertTrue(all.isLast());
+        } finally {
+            all.close();
+        }
+    }
+
+    public void testBeforeDateParamWithOtherSortOrderThrowsException() {
+        Uri uri = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(CallLogProvider.BEFORE_DATE_PARAM_KEY, "1000")
+                .build();
+        try {
+            mResolver.query(uri, null, null, null, Calls.NUMBER);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testUriWithBadBeforeDateParamThrowsException() {
+        assertParamThrowsIllegalArgumentException(CallLogProvider.BEFORE_DATE_PARAM_KEY,
+                "notvalid");
+    }
+
     public void testUriWithBadLimitParamThrowsException() {
         assertParamThrowsIllegalArgumentException(Calls.LIMIT_PARAM_KEY, "notvalid");
     }
@@ -401,6 +495,24 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         assertEquals(10, mCallLogProvider.copyEntriesFromCursor(getTestCallLogCursor()));
     }
 
+    public void testCopyEntriesFromCursor_KeysetPage() {
+        // A page of the primary user's call log, most recent first, with the IDs of the calls
+        final String[] projection = Arrays.copyOf(CallLogProvider.CALL_LOG_SYNC_PROJECTION,
+                CallLogProvider.CALL_LOG_SYNC_PROJECTION.length + 1);
+        projection[projection.length - 1] = Calls._ID;
+        final MatrixCursor cursor = new MatrixCursor(projection);
+        for (int i = 0; i <= 2; i++) {
+            final ContentValues values = getTestCallLogValues(i);
+            values.put(Calls._ID, 100 + i);
+            cursor.addRow(CommonDatabaseUtils.getArrayFromContentValues(values, projection));
+        }
+        assertEquals(10, mCallLogProvider.copyEntriesFromCursor(cursor));
+        assertStoredValues(Calls.CONTENT_URI,
+                getTestCallLogValues(2),
+                getTestCallLogValues(1),
+                getTestCallLogValues(0));
+    }
+
     public void testCopyEntriesFromCursor_AllEntriesSyncedWithoutDuplicatesPresent() {
         assertStoredValues(Calls.CONTENT_URI);
         mCallLogProvider.copyEntriesFromCursor(getTestCallLogCursor());
@@ -420,6 +532,87 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
                 getTestCallLogValues(0));
     }
 
+    public void testCopyEntriesFromCursor_DuplicatesWithinCursorCopiedOnce() {
+        final MatrixCursor cursor = new MatrixCursor(CallLogProvider.CALL_LOG_SYNC_PROJECTION);
+        for (int i = 0; i < 2; i++) {
+            cursor.addRow(CommonDatabaseUtils.getArrayFromContentValues(getTestCallLogValues(1),
+                    CallLogProvider.CALL_LOG_SYNC_PROJECTION));
+        }
+        assertEquals(5, mCallLogProvider.copyEntriesFromCursor(cursor));
+        assertStoredValues(Calls.CONTENT_URI, getTestCallLogValues(1));
+    }
+
+    public void testCopyEntriesFromCursor_CopiedEntriesMatchFilter() {
+        mCallLogProvider.copyEntriesFromCursor(getTestCallLogCursor());
+        Uri filterUri = Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, "654321");
+        Cursor c = mResolver.query(filterUri, null, null, null, null);
+        assertEquals(1, c.getCount());
+        c.close();
+    }
+
+    public void testDeleteExpiredCalls_KeepsMostRecentCalls() {
+        for (int i = 1; i <= 5; i++) {
+            ContentValues values = getDefaultCallValues();
+            values.put(Calls.DATE, i);
+            mResolver.insert(Calls.CONTENT_URI, values);
+        }
+        mCallLogProvider.waitForBackgroundTasksForTest();
+        mCallLogProvider.setCallLogRetentionForTest(2, 0);
+        assertEquals(3, mCallLogProvider.deleteExpiredCalls());
+        assertEquals(0, mCallLogProvider.deleteExpiredCalls());
+
+        Cursor c = mResolver.query(Calls.CONTENT_URI, new String[] {Calls.DATE}, null, null,
+                Calls.DATE + " DESC");
+        assertEquals(2, c.getCount());
+        c.moveToFirst();
+        assertEquals(5, c.getLong(0));
+        c.moveToNext();
+        assertEquals(4, c.getLong(0));
+        c.close();
+    }
+
+    public void testDeleteExpiredCalls_DeletesOldCalls() {
+        final long now = System.currentTimeMillis();
+        ContentValues values = getDefaultCallValues();
+        values.put(Calls.DATE, now - 3 * DateUtils.DAY_IN_MILLIS);
+        mResolver.insert(Calls.CONTENT_URI, values);
+        values.put(Calls.DATE, now);
+        mResolver.insert(Calls.CONTENT_URI, values);
+
+        mCallLogProvider.waitForBackgroundTasksForTest();
+        mCallLogProvider.setCallLogRetentionForTest(0, 2 * DateUtils.DAY_IN_MILLIS);
+        assertEquals(1, mCallLogProvider.deleteExpiredCalls());
+        assertStoredValues(Calls.CONTENT_URI, values);
+    }
+
+    public void testDeleteExpiredCalls_KeepsVoicemailsWithFiles() {
+        setUpWithVoicemailPermissions();
+        ContentValues values = getDefaultVoicemailValues();
+        values.put(Calls.DATE, 1);
+        values.put(Voicemails._DATA, "/data/voicemail/1");
+        mResolver.insert(Calls.CONTENT_URI_WITH_VOICEMAIL, values);
+        ContentValues callValues = getDefaultCallValues();
+        callValues.put(Calls.DATE, 2);
+        mResolver.insert(Calls.CONTENT_URI, callValues);
+        callValues.put(Calls.DATE, 3);
+        mResolver.insert(Calls.CONTENT_URI, callValues);
+
+        mCallLogProvider.waitForBackgroundTasksForTest();
+        mCallLogProvider.setCallLogRetentionForTest(1, 0);
+        assertEquals(1, mCallLogProvider.deleteExpiredCalls());
+        assertEquals(0, mCallLogProvider.deleteExpiredCalls());
+
+        Cursor c = mResolver.query(Calls.CONTENT_URI_WITH_VOICEMAIL,
+                new String[] {Calls.DATE, Calls.TYPE}, null, null, Calls.DATE + " DESC");
+        assertEquals(2, c.getCount());
+        c.moveToFirst();
+        assertEquals(3, c.getLong(0));
+        c.moveToNext();
+        assertEquals(1, c.getLong(0));
+        assertEquals(Calls.VOICEMAIL_TYPE, c.getInt(1));
+        c.close();
+    }
+
     private ContentValues getDefaultValues(int callType) {
         ContentValues values = new ContentValues();
         values.put(Calls.TYPE, callType);
@@ -470,6 +663,7 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
                 public void addComputedValues(ContentValues values) {
                     values.put(Calls.COUNTRY_ISO, "us");
                     values.put(Calls.GEOCODED_LOCATION, "usa");
+                    DefaultCallLogInsertionHelper.putMinMatch(values);
                 }
             };
         }
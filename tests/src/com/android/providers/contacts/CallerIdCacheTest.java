@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.PhoneLookup;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.providers.contacts.util.LongSet;
+import com.google.android.collect.Sets;
+
+@SmallTest
+public class CallerIdCacheTest extends AndroidTestCase {
+    private static final String[] PROJECTION =
+            new String[] {PhoneLookup.DISPLAY_NAME, PhoneLookup._ID};
+
+    private static final String KEY_A = CallerIdCache.buildKey("6508610000", "US", "0");
+    private static final String KEY_B = CallerIdCache.buildKey("6508610001", "US", "0");
+
+    private CallerIdCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new CallerIdCache();
+    }
+
+    private static CallerIdCache.Entry newEntry(long contactId, String name, String minMatch,
+            long rawContactId) {
+        final MatrixCursor cursor = new MatrixCursor(CallerIdCache.QUERY_COLUMNS);
+        cursor.newRow()
+                .add(contactId)
+                .add("lookup" + contactId)
+                .add(name)
+                .add(null)
+                .add(null)
+                .add(null)
+                .add("650-861-0000")
+                .add(2)
+                .add(null)
+                .add("+16508610000")
+                .add(rawContactId);
+        final CallerIdCache.Entry entry =
+                new CallerIdCache.Entry(cursor, Sets.newHashSet(minMatch));
+        cursor.close();
+        return entry;
+    }
+
+    private void assertCached(String key, long contactId, String name) {
+        final Cursor cursor = mCache.get(key, PROJECTION);
+        assertNotNull(cursor);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(name, cursor.getString(0));
+            assertEquals(contactId, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static LongSet ids(long... ids) {
+        final LongSet set = new LongSet();
+        for (long id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    public void testCanServe() {
+        assertTrue(CallerIdCache.canServe(PROJECTION));
+        assertFalse(CallerIdCache.canServe(null));
+        assertFalse(CallerIdCache.canServe(new String[] {PhoneLookup.STARRED}));
+        assertFalse(CallerIdCache.canServe(
+                new String[] {PhoneLookup.DISPLAY_NAME, PhoneLookup.CUSTOM_RINGTONE}));
+    }
+
+    public void testPutAndGet() {
+        assertNull(mCache.get(KEY_A, PROJECTION));
+        mCache.put(KEY_A, mCache.getGeneration(), newEntry(1, "Hot Tamale", "0000168", 10L));
+        assertCached(KEY_A, 1, "Hot Tamale");
+        assertNull(mCache.get(KEY_B, PROJECTION));
+    }
+
+    public void testPutDuringCommit() {
+        long generation = mCache.getGeneration();
+        mCache.beginCommit();
+        mCache.put(KEY_A, generation, newEntry(1, "Hot Tamale", "0000168", 10L));
+        assertNull(mCache.get(KEY_A, PROJECTION));
+
+        // Read before the commit ended
+        generation = mCache.getGeneration();
+        mCache.endCommit();
+        mCache.put(KEY_A, generation, newEntry(1, "Hot Tamale", "0000168", 10L));
+        assertNull(mCache.get(KEY_A, PROJECTION));
+
+        generation = mCache.getGeneration();
+        mCache.put(KEY_A, generation, newEntry(1, "Hot Tamale", "0000168", 10L));
+        assertCached(KEY_A, 1, "Hot Tamale");
+    }
+
+    public void testInvalidate() {
+        mCache.put(KEY_A, mCache.getGeneration(), newEntry(1, "Hot Tamale", "0000168", 10L));
+        mCache.put(KEY_B, mCache.getGeneration(), newEntry(2, "Cold Tamale", "1000168", 20L));
+        assertEquals(2, mCache.getSize());
+
+        // Unrelated changes
+        mCache.invalidate(ids(30L), ids(3L), Sets.newHashSet("2000168"));
+        assertEquals(2, mCache.getSize());
+
+        // Another raw contact of the first contact changed
+        mCache.invalidate(ids(11L), ids(1L), Sets.<String>newHashSet());
+        assertNull(mCache.get(KEY_A, PROJECTION));
+        assertCached(KEY_B, 2, "Cold Tamale");
+
+        // The matched raw contact of the first contact was split into a new contact
+        mCache.put(KEY_A, mCache.getGeneration(), newEntry(1, "Hot Tamale", "0000168", 10L));
+        mCache.invalidate(ids(10L), ids(3L), Sets.<String>newHashSet());
+        assertNull(mCache.get(KEY_A, PROJECTION));
+        assertCached(KEY_B, 2, "Cold Tamale");
+
+        // A raw contact joined the second contact
+        mCache.put(KEY_A, mCache.getGeneration(), newEntry(1, "Hot Tamale", "0000168", 10L));
+        mCache.invalidate(ids(30L), ids(2L), Sets.<String>newHashSet());
+        assertNull(mCache.get(KEY_B, PROJECTION));
+        assertCached(KEY_A, 1, "Hot Tamale");
+
+        // A phone number with the same min match was added
+        mCache.invalidate(ids(30L), ids(3L), Sets.newHashSet("0000168"));
+        assertNull(mCache.get(KEY_A, PROJECTION));
+        assertEquals(0, mCache.getSize());
+    }
+
+    public void testEviction() {
+        for (int i = 0; i <= CallerIdCache.MAX_ENTRIES; i++) {
+            // Keep the first entry in use
+            mCache.get(KEY_A, PROJECTION);
+            final String key = i == 0 ? KEY_A : CallerIdCache.buildKey("555" + i, "US", "0");
+            mCache.put(key, mCache.getGeneration(), newEntry(i, "Name " + i, "555", (long) i));
+        }
+        assertEquals(CallerIdCache.MAX_ENTRIES, mCache.getSize());
+        assertCached(KEY_A, 0, "Name 0");
+        assertNull(mCache.get(CallerIdCache.buildKey("5551", "US", "0"), PROJECTION));
+    }
+}
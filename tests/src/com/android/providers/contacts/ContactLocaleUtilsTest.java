@@ -356,6 +356,30 @@ public class ContactLocaleUtilsTest extends AndroidTestCase {
         verifyLabels(getLabels(), LABELS_EN_US);
     }
 
+    public void testMemoizedResults() throws Exception {
+        ContactLocaleUtils.setLocale(Locale.ENGLISH);
+        for (int i = 0; i < 2; i++) {
+            // Names sharing their first word share its cached bucket
+            assertEquals("B", getLabel("Bob"));
+            assertEquals("B", getLabel("Bob Smith"));
+            assertEquals("B", getLabel("Bob  Jones"));
+            assertEquals("#", getLabel("+1 650"));
+            assertEquals("#", getLabel(" 1 Bob"));
+            assertEquals("D", getLabel(CHINESE_LATIN_MIX_NAME_1));
+            assertNull(getNameLookupKeys(LATIN_NAME, FullNameStyle.UNDEFINED));
+        }
+
+        if (hasSimplifiedChineseCollator) {
+            ContactLocaleUtils.setLocale(Locale.SIMPLIFIED_CHINESE);
+            for (int i = 0; i < 2; i++) {
+                verifyKeys(getNameLookupKeys(CHINESE_NAME, FullNameStyle.CHINESE),
+                        CHINESE_NAME_KEY);
+                verifyKeys(getNameLookupKeys(CHINESE_LATIN_MIX_NAME_2, FullNameStyle.CHINESE),
+                        CHINESE_LATIN_MIX_NAME_2_KEY);
+            }
+        }
+    }
+
     private void verifyKeys(final Iterator<String> resultKeys, final String[] expectedKeys)
             throws Exception {
         HashSet<String> allKeys = new HashSet<String>();
@@ -16,6 +16,7 @@
 
 package com.android.providers.contacts;
 
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.LargeTest;
@@ -23,6 +24,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.providers.contacts.ContactsDatabaseHelper.MimetypesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.util.LongSet;
 import com.google.android.collect.Sets;
 
 import java.util.HashSet;
@@ -40,6 +42,21 @@ public class ContactsDatabaseHelperTest extends BaseContactsProvider2Test {
         mDb = mDbHelper.getWritableDatabase();
     }
 
+    public void testGetIdSetSql() {
+        final LongSet ids = new LongSet();
+        ids.add(3);
+        ids.add(1);
+        assertEquals("1,3", mDbHelper.getIdSetSql(mDb, ids));
+
+        for (int i = 0; i < ContactsDatabaseHelper.MAX_INLINE_ID_SET_SIZE; i++) {
+            ids.add(100 + i);
+        }
+        final String sql = mDbHelper.getIdSetSql(mDb, ids);
+        assertEquals("SELECT _id FROM " + ContactsDatabaseHelper.TEMP_ID_SET, sql);
+        assertEquals(ids.size(),
+                DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM (" + sql + ")", null));
+    }
+
     public void testGetOrCreateAccountId() {
         final AccountWithDataSet a1 = null;
         final AccountWithDataSet a2 = new AccountWithDataSet("a", null, null);
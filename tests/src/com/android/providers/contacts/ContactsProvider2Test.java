@@ -1630,6 +1630,73 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertEquals(1, getCount(lookupUri2, null, null));
     }
 
+    public void testPhoneLookupSuffixMatches() {
+        long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "Hot", "Tamale");
+        insertPhoneNumber(rawContactId1, "861-0003");
+        long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Hot1", "Tamale");
+        insertPhoneNumber(rawContactId2, "650-861-0003");
+        long rawContactId3 = RawContactUtil.createRawContactWithName(mResolver, "Hot2", "Tamale");
+        insertPhoneNumber(rawContactId3, "1-650-861-0003");
+
+        // Stored numbers that are suffixes of the looked up number, and stored numbers that
+        // end with the looked up number
+        assertEquals(Sets.newHashSet("861-0003", "650-861-0003", "1-650-861-0003"),
+                getPhoneLookupNumbers("650 861 0003"));
+        assertEquals(Sets.newHashSet("861-0003", "650-861-0003", "1-650-861-0003"),
+                getPhoneLookupNumbers("50 861 0003"));
+
+        // Same min match, but only the local number is a suffix
+        assertEquals(Sets.newHashSet("861-0003"), getPhoneLookupNumbers("1 861 0003"));
+    }
+
+    public void testPhoneLookupCachedCallerIds() {
+        final Uri lookupUri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, "+16508610004");
+
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        Uri nameUri = DataUtil.insertStructuredName(mResolver, rawContactId1, "Hot", "Tamale");
+        insertPhoneNumber(rawContactId1, "+1-650-861-0004");
+        assertStoredValue(lookupUri, PhoneLookup.DISPLAY_NAME, "Hot Tamale");
+
+        // Served from the cache
+        assertStoredValue(lookupUri, PhoneLookup.DISPLAY_NAME, "Hot Tamale");
+
+        // Renaming the contact invalidates its caller ID
+        ContentValues values = new ContentValues();
+        values.put(StructuredName.GIVEN_NAME, "Cold");
+        mResolver.update(nameUri, values, null, null);
+        assertStoredValue(lookupUri, PhoneLookup.DISPLAY_NAME, "Cold Tamale");
+
+        // So does adding the number to another contact
+        long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Hot2", "Tamale");
+        insertPhoneNumber(rawContactId2, "+1 650 861 0004");
+        final Cursor c = mResolver.query(lookupUri, new String[] {PhoneLookup.DISPLAY_NAME},
+                null, null, null);
+        try {
+            assertEquals(2, c.getCount());
+        } finally {
+            c.close();
+        }
+
+        // Or deleting the first one
+        RawContactUtil.delete(mResolver, rawContactId1, true);
+        assertStoredValue(lookupUri, PhoneLookup.DISPLAY_NAME, "Hot2 Tamale");
+    }
+
+    private Set<String> getPhoneLookupNumbers(String number) {
+        final Set<String> numbers = Sets.newHashSet();
+        final Cursor c = mResolver.query(
+                Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, number),
+                new String[] { PhoneLookup.NUMBER }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                numbers.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return numbers;
+    }
+
     public void testIntlPhoneLookupUseCases() {
         // Checks the logic that relies on phone_number_compare_loose(Gingerbread) as a fallback
         //for phone number lookups.
@@ -4112,6 +4179,155 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertStoredValue(uri, Contacts.DISPLAY_NAME, "James P. Sullivan");
     }
 
+    public void testDisplayNameFromBatchedData() throws Exception {
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        Uri uri1 = ContentUris.withAppendedId(Contacts.CONTENT_URI, queryContactId(rawContactId1));
+        Uri uri2 = ContentUris.withAppendedId(Contacts.CONTENT_URI, queryContactId(rawContactId2));
+
+        // Consecutive data inserts form a single group, whose display names are fixed at the end
+        ArrayList<ContentProviderOperation> ops = Lists.newArrayList();
+        ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValue(Data.RAW_CONTACT_ID, rawContactId1)
+                .withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE)
+                .withValue(Email.DATA, "mike@monstersinc.com")
+                .build());
+        ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValue(Data.RAW_CONTACT_ID, rawContactId2)
+                .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                .withValue(Phone.NUMBER, "1-800-466-4411")
+                .build());
+        ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValue(Data.RAW_CONTACT_ID, rawContactId1)
+                .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                .withValue(StructuredName.GIVEN_NAME, "James")
+                .withValue(StructuredName.FAMILY_NAME, "Sullivan")
+                .build());
+        mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+
+        assertStoredValue(uri1, Contacts.DISPLAY_NAME, "James Sullivan");
+        assertStoredValue(uri2, Contacts.DISPLAY_NAME, "1-800-466-4411");
+        assertStoredValue(ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId1),
+                RawContacts.DISPLAY_NAME_PRIMARY, "James Sullivan");
+    }
+
+    public void testBulkInsertData() {
+        final int count = 120;
+        long[] rawContactIds = new long[count];
+        ContentValues[] phones = new ContentValues[count];
+        ContentValues[] names = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            rawContactIds[i] = RawContactUtil.createRawContact(mResolver);
+            phones[i] = new ContentValues();
+            phones[i].put(Data.RAW_CONTACT_ID, rawContactIds[i]);
+            phones[i].put(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+            phones[i].put(Phone.NUMBER, "1-800-466-" + (4000 + i));
+            names[i] = new ContentValues();
+            names[i].put(Data.RAW_CONTACT_ID, rawContactIds[i]);
+            names[i].put(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
+            names[i].put(StructuredName.GIVEN_NAME, "James" + i);
+            names[i].put(StructuredName.FAMILY_NAME, "Sullivan");
+        }
+        assertEquals(count, mResolver.bulkInsert(Data.CONTENT_URI, phones));
+        assertEquals(count, mResolver.bulkInsert(Data.CONTENT_URI, names));
+
+        for (int i = 0; i < count; i += 7) {
+            Uri uri = ContentUris.withAppendedId(Contacts.CONTENT_URI,
+                    queryContactId(rawContactIds[i]));
+            assertStoredValue(uri, Contacts.DISPLAY_NAME, "James" + i + " Sullivan");
+            assertStoredValue(uri, Contacts.HAS_PHONE_NUMBER, 1);
+            assertStoredValue(Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
+                    "1800466" + (4000 + i)), PhoneLookup.DISPLAY_NAME, "James" + i + " Sullivan");
+        }
+    }
+
+    /**
+     * Creates a raw contact that is in a contact of its own, as if it hadn't been aggregated by
+     * an older aggregation algorithm.
+     */
+    private long createRawContactNotAggregatedByOlderAlgorithm(String firstName,
+            String lastName) {
+        long rawContactId = RawContactUtil.createRawContact(mResolver, null,
+                RawContacts.AGGREGATION_MODE,
+                String.valueOf(RawContacts.AGGREGATION_MODE_DISABLED));
+        DataUtil.insertStructuredName(mResolver, rawContactId, firstName, lastName);
+        getContactsProvider().getDatabaseHelper().getWritableDatabase().execSQL(
+                "UPDATE " + Tables.RAW_CONTACTS
+                + " SET " + RawContacts.AGGREGATION_MODE + "="
+                        + RawContacts.AGGREGATION_MODE_DEFAULT + ","
+                        + RawContactsColumns.AGGREGATION_NEEDED + "=0"
+                + " WHERE " + RawContacts._ID + "=" + rawContactId);
+        return rawContactId;
+    }
+
+    public void testUpgradeAggregationAlgorithmInChunks() {
+        long rawContactId1 = createRawContactNotAggregatedByOlderAlgorithm("John", "Doe");
+        long rawContactId2 = createRawContactNotAggregatedByOlderAlgorithm("John", "Doe");
+        long rawContactId3 = createRawContactNotAggregatedByOlderAlgorithm("Jane", "Roe");
+        long rawContactId4 = createRawContactNotAggregatedByOlderAlgorithm("Jane", "Roe");
+        assertNotAggregated(rawContactId1, rawContactId2);
+        assertNotAggregated(rawContactId3, rawContactId4);
+
+        ContactsProvider2 cp = getContactsProvider();
+        ContactsDatabaseHelper helper = (ContactsDatabaseHelper) cp.getDatabaseHelper();
+        helper.setProperty(DbProperties.AGGREGATION_ALGORITHM, "1");
+        cp.setAggregationUpgradeChunkSizeForTest(1);
+        cp.upgradeAggregationAlgorithmInBackground();
+
+        assertAggregated(rawContactId1, rawContactId2, "John Doe");
+        assertAggregated(rawContactId3, rawContactId4, "Jane Roe");
+        assertEquals("", helper.getProperty(DbProperties.AGGREGATION_UPGRADE_PROGRESS, null));
+        assertFalse("1".equals(helper.getProperty(DbProperties.AGGREGATION_ALGORITHM, null)));
+    }
+
+    public void testUpgradeAggregationAlgorithmResumesAfterLastCommittedChunk() {
+        long rawContactId1 = createRawContactNotAggregatedByOlderAlgorithm("John", "Doe");
+        long rawContactId2 = createRawContactNotAggregatedByOlderAlgorithm("John", "Doe");
+        long rawContactId3 = createRawContactNotAggregatedByOlderAlgorithm("Jane", "Roe");
+        long rawContactId4 = createRawContactNotAggregatedByOlderAlgorithm("Jane", "Roe");
+
+        // Simulate an upgrade that was killed after committing the first two raw contacts.
+        ContactsProvider2 cp = getContactsProvider();
+        ContactsDatabaseHelper helper = (ContactsDatabaseHelper) cp.getDatabaseHelper();
+        helper.setProperty(DbProperties.AGGREGATION_ALGORITHM, "1");
+        cp.setAggregationUpgradeProgress(rawContactId2);
+        cp.setAggregationUpgradeChunkSizeForTest(1);
+        cp.upgradeAggregationAlgorithmInBackground();
+
+        assertNotAggregated(rawContactId1, rawContactId2);
+        assertAggregated(rawContactId3, rawContactId4, "Jane Roe");
+        assertEquals("", helper.getProperty(DbProperties.AGGREGATION_UPGRADE_PROGRESS, null));
+    }
+
+    public void testUpgradeAggregationAlgorithmRetriesFailedChunkOnRestart() {
+        long rawContactId1 = createRawContactNotAggregatedByOlderAlgorithm("John", "Doe");
+        long rawContactId2 = createRawContactNotAggregatedByOlderAlgorithm("John", "Doe");
+        long rawContactId3 = createRawContactNotAggregatedByOlderAlgorithm("Jane", "Roe");
+        long rawContactId4 = createRawContactNotAggregatedByOlderAlgorithm("Jane", "Roe");
+
+        ContactsProvider2 cp = getContactsProvider();
+        ContactsDatabaseHelper helper = (ContactsDatabaseHelper) cp.getDatabaseHelper();
+        helper.setProperty(DbProperties.AGGREGATION_ALGORITHM, "1");
+        cp.setAggregationUpgradeChunkSizeForTest(1);
+        cp.setAggregationUpgradeFailureForTest(rawContactId3);
+        cp.upgradeAggregationAlgorithmInBackground();
+
+        // The upgrade stopped at the failed chunk, and will resume there.
+        assertAggregated(rawContactId1, rawContactId2, "John Doe");
+        assertNotAggregated(rawContactId3, rawContactId4);
+        assertTrue(helper.getProperty(DbProperties.AGGREGATION_UPGRADE_PROGRESS, "")
+                .endsWith(":" + rawContactId2));
+        assertEquals("1", helper.getProperty(DbProperties.AGGREGATION_ALGORITHM, null));
+
+        // Restart
+        cp.setAggregationUpgradeFailureForTest(0);
+        cp.upgradeAggregationAlgorithmInBackground();
+
+        assertAggregated(rawContactId3, rawContactId4, "Jane Roe");
+        assertEquals("", helper.getProperty(DbProperties.AGGREGATION_UPGRADE_PROGRESS, null));
+        assertFalse("1".equals(helper.getProperty(DbProperties.AGGREGATION_ALGORITHM, null)));
+    }
+
     public void testDisplayNameFromOrganizationWithoutPhoneticName() {
         long rawContactId = RawContactUtil.createRawContact(mResolver);
         long contactId = queryContactId(rawContactId);
@@ -4197,6 +4413,47 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertStoredValues(uri, values);
     }
 
+    public void testRebuildSortKeysOnLocaleChange() {
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        DataUtil.insertStructuredName(mResolver, rawContactId1, "John", "Doe");
+        insertNickname(rawContactId1, "Johnny");
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        ContentValues values = new ContentValues();
+        values.put(Organization.COMPANY, "Acme");
+        insertOrganization(rawContactId2, values);
+        long rawContactId3 = RawContactUtil.createRawContact(mResolver);
+        insertEmail(rawContactId3, "road@runner.com");
+        long rawContactId4 = RawContactUtil.createRawContact(mResolver);
+
+        final ContactsDatabaseHelper helper =
+                ((ContactsDatabaseHelper) ((ContactsProvider2) getProvider()).getDatabaseHelper());
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.execSQL("UPDATE " + Tables.RAW_CONTACTS + " SET "
+                + RawContacts.DISPLAY_NAME_PRIMARY + "='stale',"
+                + RawContacts.SORT_KEY_PRIMARY + "='stale',"
+                + RawContacts.DISPLAY_NAME_SOURCE + "=" + DisplayNameSources.EMAIL);
+        helper.setProperty(DbProperties.LOCALE, "");
+        helper.setLocale(LocaleSet.getDefault());
+
+        assertStoredValuesWithProjection(RawContacts.CONTENT_URI,
+                cv(RawContacts._ID, rawContactId1,
+                        RawContacts.DISPLAY_NAME_PRIMARY, "John Doe",
+                        RawContacts.SORT_KEY_PRIMARY, "John Doe",
+                        RawContacts.DISPLAY_NAME_SOURCE, DisplayNameSources.STRUCTURED_NAME),
+                cv(RawContacts._ID, rawContactId2,
+                        RawContacts.DISPLAY_NAME_PRIMARY, "Acme",
+                        RawContacts.SORT_KEY_PRIMARY, "Acme",
+                        RawContacts.DISPLAY_NAME_SOURCE, DisplayNameSources.ORGANIZATION),
+                cv(RawContacts._ID, rawContactId3,
+                        RawContacts.DISPLAY_NAME_PRIMARY, "road@runner.com",
+                        RawContacts.SORT_KEY_PRIMARY, "road@runner.com",
+                        RawContacts.DISPLAY_NAME_SOURCE, DisplayNameSources.EMAIL),
+                cv(RawContacts._ID, rawContactId4,
+                        RawContacts.DISPLAY_NAME_PRIMARY, null,
+                        RawContacts.SORT_KEY_PRIMARY, null,
+                        RawContacts.DISPLAY_NAME_SOURCE, DisplayNameSources.UNDEFINED));
+    }
+
     public void testLookupByOrganization() {
         long rawContactId = RawContactUtil.createRawContact(mResolver);
         long contactId = queryContactId(rawContactId);
@@ -7141,6 +7398,47 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         cursor.close();
     }
 
+    public void testContactCountsAfterStarring() {
+        Uri uri = Contacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Contacts.EXTRA_ADDRESS_BOOK_INDEX, "true").build();
+
+        long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "Mike", "Wazowski");
+        RawContactUtil.createRawContactWithName(mResolver, "Mary", null);
+        long rawContactId3 = RawContactUtil.createRawContactWithName(mResolver, "Roz", null);
+        long contactId1 = queryContactId(rawContactId1);
+        long contactId3 = queryContactId(rawContactId3);
+
+        Cursor cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                Contacts.STARRED + "=1", null, Contacts.SORT_KEY_PRIMARY);
+        assertFirstLetterValues(cursor);
+        assertFirstLetterCounts(cursor);
+        cursor.close();
+
+        // Only the buckets of the starred contacts are recounted.
+        ContentValues values = new ContentValues();
+        values.put(Contacts.STARRED, 1);
+        mResolver.update(ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId3),
+                values, null, null);
+        mResolver.update(ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId1),
+                values, null, null);
+
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                Contacts.STARRED + "=1", null, Contacts.SORT_KEY_PRIMARY);
+        assertFirstLetterValues(cursor, "M", "R");
+        assertFirstLetterCounts(cursor,   1,   1);
+        cursor.close();
+
+        values.put(Contacts.STARRED, 0);
+        mResolver.update(ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId1),
+                values, null, null);
+
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                Contacts.STARRED + "=1", null, Contacts.SORT_KEY_PRIMARY);
+        assertFirstLetterValues(cursor, "R");
+        assertFirstLetterCounts(cursor,   1);
+        cursor.close();
+    }
+
     private void assertFirstLetterValues(Cursor cursor, String... expected) {
         String[] actual = cursor.getExtras()
                 .getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES);
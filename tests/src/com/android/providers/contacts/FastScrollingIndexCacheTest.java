@@ -26,6 +26,8 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.providers.contacts.util.MockSharedPreferences;
 
+import java.util.BitSet;
+
 @SmallTest
 public class FastScrollingIndexCacheTest extends AndroidTestCase {
     private MockSharedPreferences mPrefs;
@@ -147,6 +149,80 @@ public class FastScrollingIndexCacheTest extends AndroidTestCase {
         assertBundle(TITLES_2, COUNTS_2, cache2.get(URI_B, "s", PROJECTION_2, "so", "ce"));
     }
 
+    public void testInvalidateBuckets() {
+        mCache.put(URI_A, "s", null, Contacts.SORT_KEY_PRIMARY, null,
+                new FastScrollingIndexCache.Index(new String[] {"A", "B", "D"},
+                        new int[] {1, 2, 3}, new int[] {1, 2, 4}));
+        mCache.put(URI_A, "s", null, Contacts.SORT_KEY_ALTERNATIVE, null,
+                new FastScrollingIndexCache.Index(new String[] {"C"},
+                        new int[] {5}, new int[] {3}));
+        mCache.put(URI_B, "s", null, Contacts.SORT_KEY_PRIMARY, null,
+                FastScrollingIndexCache.buildExtraBundle(TITLES_1, COUNTS_1));
+
+        mCache.invalidateBuckets(bitSet(2, 3), bitSet(1));
+
+        // Entries without buckets are dropped, the others only have their buckets marked stale.
+        assertNull(mCache.get(URI_B, "s", null, Contacts.SORT_KEY_PRIMARY, null));
+        assertNull(mCache.getStaleBuckets(URI_B, "s", null, Contacts.SORT_KEY_PRIMARY, null));
+        assertNull(mCache.get(URI_A, "s", null, Contacts.SORT_KEY_PRIMARY, null));
+        MoreAsserts.assertEquals(new int[] {2, 3},
+                mCache.getStaleBuckets(URI_A, "s", null, Contacts.SORT_KEY_PRIMARY, null));
+        MoreAsserts.assertEquals(new int[] {1},
+                mCache.getStaleBuckets(URI_A, "s", null, Contacts.SORT_KEY_ALTERNATIVE, null));
+
+        // Bucket 2 is now empty and bucket 3 has appeared.
+        Bundle b = mCache.putBuckets(URI_A, "s", null, Contacts.SORT_KEY_PRIMARY, null,
+                new int[] {2, 3}, new FastScrollingIndexCache.Index(new String[] {"C"},
+                        new int[] {7}, new int[] {3}));
+        assertBundle(new String[] {"A", "C", "D"}, new int[] {1, 7, 3}, b);
+        assertBundle(new String[] {"A", "C", "D"}, new int[] {1, 7, 3},
+                mCache.get(URI_A, "s", null, Contacts.SORT_KEY_PRIMARY, null));
+
+        // Stale buckets survive a reload.
+        FastScrollingIndexCache cache2 = FastScrollingIndexCache.getInstanceForTest(mPrefs);
+        assertBundle(new String[] {"A", "C", "D"}, new int[] {1, 7, 3},
+                cache2.get(URI_A, "s", null, Contacts.SORT_KEY_PRIMARY, null));
+        MoreAsserts.assertEquals(new int[] {1},
+                cache2.getStaleBuckets(URI_A, "s", null, Contacts.SORT_KEY_ALTERNATIVE, null));
+    }
+
+    public void testPutBucketsDescending() {
+        final String sortOrder = Contacts.SORT_KEY_PRIMARY + " DESC";
+        mCache.put(URI_A, null, null, sortOrder, null,
+                new FastScrollingIndexCache.Index(new String[] {"D", "A"},
+                        new int[] {3, 1}, new int[] {4, 1}));
+        mCache.invalidateBuckets(bitSet(2), new BitSet());
+
+        assertBundle(new String[] {"D", "B", "A"}, new int[] {3, 2, 1},
+                mCache.putBuckets(URI_A, null, null, sortOrder, null, new int[] {2},
+                        new FastScrollingIndexCache.Index(new String[] {"B"},
+                                new int[] {2}, new int[] {2})));
+    }
+
+    public void testLeastRecentlyUsedEviction() {
+        for (int i = 0; i < FastScrollingIndexCache.MAX_ENTRIES; i++) {
+            putAndGetBundle(mCache, URI_A, "s" + i, null, null, null, TITLES_1, COUNTS_1);
+        }
+        // Touch the oldest entry, so that the second one becomes the eldest.
+        assertNotNull(mCache.get(URI_A, "s0", null, null, null));
+
+        putAndGetBundle(mCache, URI_A, "new", null, null, null, TITLES_1, COUNTS_1);
+
+        assertEquals(FastScrollingIndexCache.MAX_ENTRIES, mCache.getSize());
+        assertEquals(1, mCache.getEvictionCount());
+        assertNotNull(mCache.get(URI_A, "s0", null, null, null));
+        assertNull(mCache.get(URI_A, "s1", null, null, null));
+        assertNotNull(mCache.get(URI_A, "new", null, null, null));
+    }
+
+    private static BitSet bitSet(int... bits) {
+        final BitSet bitSet = new BitSet();
+        for (int bit : bits) {
+            bitSet.set(bit);
+        }
+        return bitSet;
+    }
+
     public void testMalformedPreferences() {
         mPrefs.edit().putString(FastScrollingIndexCache.PREFERENCE_KEY, "123");
         // get() shouldn't crash
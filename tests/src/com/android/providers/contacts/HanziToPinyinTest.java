@@ -96,6 +96,34 @@ public class HanziToPinyinTest extends TestCase {
         assertEquals(tokens.get(6).type, Token.PINYIN);
     }
 
+    @SmallTest
+    public void testGetTokensIntoBuffer() throws Exception {
+        if (!hasChineseTransliterator()) {
+            return;
+        }
+        final HanziToPinyin.TokenBuffer buffer = new HanziToPinyin.TokenBuffer();
+        final String[] inputs = { MISC, TWO_HANZI, MISC + MISC + "\u00e9t\u00e9", "", ASSIC };
+        for (String input : inputs) {
+            HanziToPinyin.getInstance().getTokens(input, buffer);
+            ArrayList<Token> tokens = HanziToPinyin.getInstance().getTokens(input);
+            assertEquals(tokens.size(), buffer.size());
+            for (int i = 0; i < tokens.size(); i++) {
+                final Token token = tokens.get(i);
+                final String source = buffer.getText().subSequence(
+                        buffer.getStart(i), buffer.getEnd(i)).toString();
+                assertEquals(token.type, buffer.getType(i));
+                assertEquals(token.source, source);
+                assertEquals(token.target,
+                        token.type == Token.PINYIN ? buffer.getPinyin(i) : source);
+            }
+        }
+
+        // Extended latin characters are transcoded to ASCII
+        HanziToPinyin.getInstance().getTokens("\u00e9t\u00e9", buffer);
+        assertEquals(1, buffer.size());
+        assertEquals("ete", buffer.getText().toString());
+    }
+
     /**
      * Test each supported han against expected pinyin from transliterator.
      */
@@ -109,6 +109,28 @@ public class NameSplitterTest extends TestCase {
         assertJoinedName("John Smith, D D S", null, "John", null, "Smith", "D D S");
     }
 
+    public void testAffixesIgnoreCase() {
+        assertSplitName("mR. john smith m.d.", "mR.", "john", null, "smith", "m.d.");
+        assertSplitName("John VON Smith", null, "John", null, "VON Smith", null);
+        assertSplitName("John Smith jr", null, "John", null, "Smith", "jr");
+        assertJoinedName("John Smith, jr.", null, "John", null, "Smith", "jr");
+    }
+
+    public void testTokenize() {
+        final String[] tokens = new String[NameSplitter.MAX_TOKENS];
+        assertEquals(4, mNameSplitter.tokenize(tokens, "Mr. John  Smith,Jr"));
+        assertEquals("Mr", tokens[0]);
+        assertEquals("John", tokens[1]);
+        assertEquals("Smith", tokens[2]);
+        assertEquals("Jr", tokens[3]);
+
+        // The tokenizer is reused for the next name
+        assertEquals(2, mNameSplitter.tokenize(tokens, " .Smith"));
+        assertEquals(".", tokens[0]);
+        assertEquals("Smith", tokens[1]);
+        assertEquals(0, mNameSplitter.tokenize(tokens, " "));
+    }
+
     public void testGivenSuffixFamilyName() {
         assertSplitName("John von Smith", null, "John", null, "von Smith", null);
         assertJoinedName("John von Smith", null, "John", null, "von Smith", null);
@@ -19,8 +19,11 @@ package com.android.providers.contacts;
 import android.content.ContentValues;
 import android.net.Uri;
 import android.net.Uri.Builder;
+import android.provider.ContactsContract.AggregationExceptions;
+import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Im;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.provider.ContactsContract.Contacts;
@@ -29,6 +32,8 @@ import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.Suppress;
 
+import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.android.providers.contacts.testutil.DataUtil;
 import com.android.providers.contacts.testutil.RawContactUtil;
 
@@ -483,6 +488,95 @@ public class SearchIndexManagerTest extends BaseContactsProvider2Test {
                 SearchSnippets.SNIPPET, "john@doe.com");
     }
 
+    public void testRebuildIndexInRanges() {
+        long contactId1 = createContactWithEmail("one@android.com");
+        long contactId2 = createContactWithEmail("two@android.com");
+        long contactId3 = createContactWithEmail("three@android.com");
+
+        SearchIndexManager searchIndexManager = new SearchIndexManager(getContactsProvider());
+        searchIndexManager.setRebuildRangeSizeForTest(2);
+        searchIndexManager.updateIndex(true);
+
+        assertSearchIndex(contactId1, "one@android.com", null, null);
+        assertSearchIndex(contactId2, "two@android.com", null, null);
+        assertSearchIndex(contactId3, "three@android.com", null, null);
+    }
+
+    public void testRebuildIndexResumesAfterLastCommittedRange() {
+        long contactId1 = createContactWithEmail("one@android.com");
+        long contactId2 = createContactWithEmail("two@android.com");
+        long contactId3 = createContactWithEmail("three@android.com");
+
+        // Simulate a rebuild that was killed after committing the first contact.
+        ContactsDatabaseHelper dbHelper = (ContactsDatabaseHelper) getContactsProvider()
+                .getDatabaseHelper();
+        SearchIndexManager searchIndexManager = new SearchIndexManager(getContactsProvider());
+        searchIndexManager.setRebuildRangeSizeForTest(1);
+        dbHelper.setProperty(SearchIndexManager.PROPERTY_SEARCH_INDEX_VERSION, "0");
+        searchIndexManager.setRebuildProgress(contactId1);
+        dbHelper.getWritableDatabase().execSQL("DELETE FROM " + Tables.SEARCH_INDEX
+                + " WHERE " + SearchIndexColumns.CONTACT_ID + " IN ("
+                + contactId2 + "," + contactId3 + ")");
+
+        searchIndexManager.updateIndex(false);
+
+        assertSearchIndex(contactId1, "one@android.com", null, null);
+        assertSearchIndex(contactId2, "two@android.com", null, null);
+        assertSearchIndex(contactId3, "three@android.com", null, null);
+        assertEquals("", dbHelper.getProperty(
+                SearchIndexManager.PROPERTY_SEARCH_INDEX_REBUILD_PROGRESS, null));
+    }
+
+    public void testUpdateIndexForUpdatedDataRow() {
+        long rawContactId = RawContactUtil.createRawContact(mResolver);
+        long contactId = queryContactId(rawContactId);
+        insertEmail(rawContactId, "one@android.com");
+        Uri emailUri = insertEmail(rawContactId, "two@android.com");
+        insertPhoneNumber(rawContactId, "8005551234");
+
+        ContentValues values = new ContentValues();
+        values.put(Email.DATA, "three@android.com");
+        mResolver.update(emailUri, values, null, null);
+
+        assertSearchIndex(contactId, "one@android.com\nthree@android.com", null,
+                "8005551234 +18005551234");
+    }
+
+    public void testUpdateIndexForDeletedDataRow() {
+        long rawContactId = RawContactUtil.createRawContact(mResolver);
+        long contactId = queryContactId(rawContactId);
+        Uri emailUri = insertEmail(rawContactId, "one@android.com");
+        insertEmail(rawContactId, "two@android.com");
+
+        mResolver.delete(emailUri, null, null);
+
+        assertSearchIndex(contactId, "two@android.com", null, null);
+    }
+
+    public void testUpdateIndexForDataRowMatchesFullRebuild() {
+        long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "John", "Doe");
+        long contactId = queryContactId(rawContactId1);
+        insertEmail(rawContactId1, "john@android.com");
+        insertNickname(rawContactId1, "Johnny");
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        setAggregationException(AggregationExceptions.TYPE_KEEP_TOGETHER,
+                rawContactId1, rawContactId2);
+        Uri phoneUri = insertPhoneNumber(rawContactId2, "8005554664");
+
+        ContentValues values = new ContentValues();
+        values.put(Phone.NUMBER, "8005551234");
+        mResolver.update(phoneUri, values, null, null);
+
+        ContactsDatabaseHelper dbHelper = (ContactsDatabaseHelper) getContactsProvider()
+                .getDatabaseHelper();
+        final String content = dbHelper.querySearchIndexContentForTest(contactId);
+        final String tokens = dbHelper.querySearchIndexTokensForTest(contactId);
+
+        new SearchIndexManager(getContactsProvider()).updateIndex(true);
+
+        assertSearchIndex(contactId, content, null, tokens);
+    }
+
     public void testSplitIntoFtsTokens() {
         checkSplitIntoFtsTokens("a", "a");
         checkSplitIntoFtsTokens("a_b c%d-e'f", "a_b", "c", "d", "e", "f");
@@ -519,6 +613,12 @@ public class SearchIndexManagerTest extends BaseContactsProvider2Test {
         return builder.build();
     }
 
+    private long createContactWithEmail(String email) {
+        long rawContactId = RawContactUtil.createRawContact(mResolver);
+        insertEmail(rawContactId, email);
+        return queryContactId(rawContactId);
+    }
+
     private void createRawContactWithDisplayName(String name) {
         long rawContactId = RawContactUtil.createRawContact(mResolver);
         ContentValues values = new ContentValues();
@@ -18,6 +18,8 @@ package com.android.providers.contacts;
 
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.android.providers.contacts.util.LongSet;
+
 import junit.framework.TestCase;
 
 import java.util.Map;
@@ -38,10 +40,10 @@ public class TransactionContextTest extends TestCase {
 
         context.clearExceptSearchIndexUpdates();
 
-        Set<Long> newDirty = context.getDirtyRawContactIds();
-        Set<Long> newChanged = context.getChangedRawContactIds();
-        Set<Long> newInserted = context.getInsertedRawContactIds();
-        Set<Long> newUpdated = context.getUpdatedRawContactIds();
+        LongSet newDirty = context.getDirtyRawContactIds();
+        LongSet newChanged = context.getChangedRawContactIds();
+        LongSet newInserted = context.getInsertedRawContactIds();
+        LongSet newUpdated = context.getUpdatedRawContactIds();
         Set<Map.Entry<Long, Object>> newSync = context.getUpdatedSyncStates();
 
         assertTrue(newDirty.isEmpty());
@@ -94,4 +96,21 @@ public class TransactionContextTest extends TestCase {
         assertEquals(2, context.getChangedRawContactIds().size());
         assertTrue(context.getChangedRawContactIds().contains(5L));
     }
+
+    public void testInvalidateSearchIndexForData_tracksDataAndRawContacts() {
+        TransactionContext context = new TransactionContext(false);
+
+        context.invalidateSearchIndexForData(1L, 10L);
+        context.invalidateSearchIndexForDeletedData(2L);
+
+        assertEquals(1, context.getStaleSearchIndexDataIds().size());
+        assertTrue(context.getStaleSearchIndexDataIds().contains(10L));
+        assertEquals(2, context.getStaleSearchIndexFragmentRawContactIds().size());
+        assertTrue(context.getStaleSearchIndexRawContactIds().isEmpty());
+
+        context.clearSearchIndexUpdates();
+
+        assertTrue(context.getStaleSearchIndexDataIds().isEmpty());
+        assertTrue(context.getStaleSearchIndexFragmentRawContactIds().isEmpty());
+    }
 }
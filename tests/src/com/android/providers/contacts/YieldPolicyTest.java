@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.providers.contacts.util.MockClock;
+
+@SmallTest
+public class YieldPolicyTest extends AndroidTestCase {
+    private static final long MAX_SLEEP = 4000;
+
+    private final MockClock mClock = new MockClock();
+    private YieldPolicy mPolicy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock.install();
+        mPolicy = new YieldPolicy(MAX_SLEEP);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mClock.uninstall();
+        super.tearDown();
+    }
+
+    private void advance(long millis) {
+        mClock.setElapsedRealtime(mClock.elapsedRealtime() + millis);
+    }
+
+    public void testYieldCheckDue() {
+        final ContactsTransaction transaction = new ContactsTransaction(true);
+        assertFalse(mPolicy.isYieldCheckDue(transaction));
+
+        advance(YieldPolicy.YIELD_CHECK_INTERVAL_MILLIS - 1);
+        assertFalse(mPolicy.isYieldCheckDue(transaction));
+        advance(1);
+        assertTrue(mPolicy.isYieldCheckDue(transaction));
+
+        // Not contended
+        mPolicy.onYieldChecked(transaction, false, 0);
+        assertFalse(mPolicy.isYieldCheckDue(transaction));
+        assertEquals(0, mPolicy.getYieldCount());
+    }
+
+    public void testYieldCheckIgnoresWallClock() {
+        final ContactsTransaction transaction = new ContactsTransaction(true);
+        mClock.setCurrentTimeMillis(mClock.currentTimeMillis() + 3600 * 1000);
+        assertFalse(mPolicy.isYieldCheckDue(transaction));
+        assertEquals(YieldPolicy.MIN_SLEEP_AFTER_YIELD_MILLIS,
+                mPolicy.getSleepAfterYieldMillis(transaction));
+
+        mClock.setCurrentTimeMillis(mClock.currentTimeMillis() - 2 * 3600 * 1000);
+        advance(YieldPolicy.YIELD_CHECK_INTERVAL_MILLIS);
+        assertTrue(mPolicy.isYieldCheckDue(transaction));
+    }
+
+    public void testSleepAfterShortBurstIsMinimum() {
+        // A batch that yields right after acquiring the lock sleeps for the minimum, not for
+        // the maximum as it used to
+        final ContactsTransaction transaction = new ContactsTransaction(true);
+        assertEquals(YieldPolicy.MIN_SLEEP_AFTER_YIELD_MILLIS,
+                mPolicy.getSleepAfterYieldMillis(transaction));
+        mPolicy.onYieldChecked(transaction, true, YieldPolicy.MIN_SLEEP_AFTER_YIELD_MILLIS);
+
+        advance(YieldPolicy.MIN_SLEEP_AFTER_YIELD_MILLIS - 1);
+        assertEquals(YieldPolicy.MIN_SLEEP_AFTER_YIELD_MILLIS,
+                mPolicy.getSleepAfterYieldMillis(transaction));
+        advance(2);
+        assertEquals(YieldPolicy.MIN_SLEEP_AFTER_YIELD_MILLIS + 1,
+                mPolicy.getSleepAfterYieldMillis(transaction));
+    }
+
+    public void testSleepAfterYield() {
+        final ContactsTransaction transaction = new ContactsTransaction(true);
+        advance(10);
+        assertEquals(YieldPolicy.MIN_SLEEP_AFTER_YIELD_MILLIS,
+                mPolicy.getSleepAfterYieldMillis(transaction));
+
+        advance(990);
+        assertEquals(1000, mPolicy.getSleepAfterYieldMillis(transaction));
+
+        // A check without contention does not release the lock
+        mPolicy.onYieldChecked(transaction, false, 0);
+        advance(9000);
+        assertEquals(MAX_SLEEP, mPolicy.getSleepAfterYieldMillis(transaction));
+
+        // The lock is held again from the end of the sleep
+        advance(MAX_SLEEP);
+        mPolicy.onYieldChecked(transaction, true, MAX_SLEEP);
+        assertEquals(1, mPolicy.getYieldCount());
+        advance(200);
+        assertEquals(200, mPolicy.getSleepAfterYieldMillis(transaction));
+    }
+}
@@ -46,6 +46,7 @@ import com.google.android.collect.Lists;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -1728,6 +1729,35 @@ public class ContactAggregatorTest extends BaseContactsProvider2Test {
         cursor.close();
     }
 
+    public void testAggregationOfLargeBatch() throws Exception {
+        // Enough raw contacts in one transaction for the data matches to be loaded in batch
+        final int pairCount = 15;
+        ArrayList<ContentProviderOperation> ops = Lists.newArrayList();
+        for (int i = 0; i < pairCount * 2; i++) {
+            final int backReference = ops.size();
+            ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                    .withValues(new ContentValues())
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                    .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                    .withValue(StructuredName.GIVEN_NAME, "Batch" + (char) ('a' + i / 2))
+                    .withValue(StructuredName.FAMILY_NAME, "Smith")
+                    .build());
+        }
+
+        ContentProviderResult[] results = mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+
+        for (int i = 0; i < pairCount; i++) {
+            long rawContactId1 = ContentUris.parseId(results[i * 4].uri);
+            long rawContactId2 = ContentUris.parseId(results[i * 4 + 2].uri);
+            assertAggregated(rawContactId1, rawContactId2);
+            if (i > 0) {
+                assertNotAggregated(ContentUris.parseId(results[(i - 1) * 4].uri), rawContactId1);
+            }
+        }
+    }
+
     private void assertDisplayNameEquals(long contactId, long rawContactId) {
 
         String contactDisplayName = queryDisplayName(contactId);
@@ -16,10 +16,13 @@
 package com.android.providers.contacts.aggregation.util;
 
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+import com.android.providers.contacts.aggregation.util.ContactMatcher.MatchScore;
 
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import java.util.List;
+
 @SmallTest
 public class ContactMatcherTest extends AndroidTestCase {
 
@@ -31,4 +34,28 @@ public class ContactMatcherTest extends AndroidTestCase {
                 NameLookupType.NAME_COLLATION_KEY, "InvalidHex2",
                 ContactMatcher.MATCHING_ALGORITHM_CONSERVATIVE);
     }
+
+    public void testPickBestMatch_manyContacts() {
+        final ContactMatcher matcher = new ContactMatcher();
+
+        // Enough contacts for the score table to grow several times
+        for (long contactId = 1; contactId <= 1000; contactId++) {
+            matcher.updateScoreWithEmailMatch(contactId * 1000003);
+        }
+        matcher.matchIdentity(500 * 1000003);
+
+        assertEquals(500 * 1000003,
+                matcher.pickBestMatch(ContactMatcher.SCORE_THRESHOLD_PRIMARY, false));
+        List<MatchScore> matches =
+                matcher.pickBestMatches(ContactMatcher.SCORE_THRESHOLD_PRIMARY);
+        assertEquals(1000, matches.size());
+        assertEquals(500 * 1000003, matches.get(0).getContactId());
+        assertEquals(1000003, matches.get(1).getContactId());
+
+        matcher.clear();
+        assertEquals(-1, matcher.pickBestMatch(ContactMatcher.SCORE_THRESHOLD_SECONDARY, true));
+        matcher.updateScoreWithPhoneNumberMatch(7);
+        assertEquals(7, matcher.pickBestMatches(ContactMatcher.SCORE_THRESHOLD_SECONDARY)
+                .get(0).getContactId());
+    }
 }
@@ -66,6 +66,47 @@ public class NameDistanceTest extends TestCase {
         assertFloat(0, "Abcd", "Efgh");
     }
 
+    public void testThreshold() {
+        byte[] s1 = Hex.decodeHex(NameNormalizer.normalize("Dwayne"));
+        byte[] s2 = Hex.decodeHex(NameNormalizer.normalize("Duane"));
+        assertEquals(mNameDistance.getDistance(s1, s2),
+                mNameDistance.getDistance(s1, s2, 0.82f), 0.0001f);
+        assertEquals(0f, mNameDistance.getDistance(s1, s2, 0.9f));
+
+        byte[] s3 = Hex.decodeHex(NameNormalizer.normalize("Johny"));
+        assertEquals(0f, mNameDistance.getDistance(s3, s2, 0.82f));
+    }
+
+    public void testBitMasksAndFlagsAgree() {
+        // Names of up to 64 bytes are matched with bit masks, longer ones with flag arrays
+        NameDistance bitMasks = new NameDistance(64);
+        NameDistance flags = new NameDistance(65);
+        byte[] s1 = new byte[64];
+        byte[] s2 = new byte[64];
+        for (int i = 0; i < 64; i++) {
+            s1[i] = (byte) ('A' + i % 26);
+            s2[i] = (byte) ('A' + (i * 7) % 26);
+        }
+        s2[0] = 'Z';
+        float expected = flags.getDistance(s1, s2);
+        assertTrue(expected > 0);
+        assertEquals(expected, bitMasks.getDistance(s1, s2));
+    }
+
+    public void testGetDistances() {
+        byte[] name = Hex.decodeHex(NameNormalizer.normalize("Martha"));
+        byte[][] candidates = new byte[][] {
+                Hex.decodeHex(NameNormalizer.normalize("Marhta")),
+                Hex.decodeHex(NameNormalizer.normalize("Abcd")),
+                Hex.decodeHex(NameNormalizer.normalize("Martha")),
+        };
+        float[] distances = new float[candidates.length];
+        mNameDistance.getDistances(name, candidates, candidates.length, 0.82f, distances);
+        assertEquals(0.961f, distances[0], 0.001f);
+        assertEquals(0f, distances[1]);
+        assertEquals(1f, distances[2]);
+    }
+
     private void assertFloat(float expected, String name1, String name2) {
         byte[] s1 = Hex.decodeHex(NameNormalizer.normalize(name1));
         byte[] s2 = Hex.decodeHex(NameNormalizer.normalize(name2));
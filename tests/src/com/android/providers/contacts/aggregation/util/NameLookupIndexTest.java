@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.aggregation.util;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link NameLookupIndex}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class \
+ *         com.android.providers.contacts.aggregation.util.NameLookupIndexTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class NameLookupIndexTest extends TestCase {
+
+    private SQLiteDatabase mDb;
+    private NameLookupIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE name_lookup (data_id INTEGER, raw_contact_id INTEGER,"
+                + " normalized_name TEXT, name_type INTEGER,"
+                + " PRIMARY KEY (data_id, normalized_name, name_type))");
+        mDb.execSQL("INSERT INTO name_lookup VALUES (10, 1, 'JOHNSMITH', "
+                + NameLookupType.NAME_COLLATION_KEY + ")");
+        mDb.execSQL("INSERT INTO name_lookup VALUES (20, 2, 'JOHNSMITH', "
+                + NameLookupType.NAME_EXACT + ")");
+        mIndex = new NameLookupIndex();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testLoad() {
+        assertTrue(mIndex.ensureLoaded(mDb));
+        assertEquals(2, mIndex.getEntriesForName("JOHNSMITH").size());
+        assertEquals(1, mIndex.getEntriesForRawContact(1).size());
+        assertEquals(0, mIndex.getEntriesForRawContact(3).size());
+    }
+
+    public void testAddBeforeLoadIsIgnored() {
+        mIndex.add(3, 30, NameLookupType.NAME_EXACT, "JANE");
+        assertTrue(mIndex.ensureLoaded(mDb));
+        assertEquals(0, mIndex.getEntriesForName("JANE").size());
+    }
+
+    public void testAddAndRemove() {
+        mIndex.ensureLoaded(mDb);
+        mIndex.add(3, 30, NameLookupType.NAME_EXACT, "JANE");
+        mIndex.add(3, 30, NameLookupType.NAME_EXACT, "JANE");
+        mIndex.add(3, 31, NameLookupType.NICKNAME, "JANEY");
+        assertEquals(1, mIndex.getEntriesForName("JANE").size());
+        assertEquals(2, mIndex.getEntriesForRawContact(3).size());
+
+        mIndex.removeData(30);
+        assertEquals(0, mIndex.getEntriesForName("JANE").size());
+        assertEquals(1, mIndex.getEntriesForRawContact(3).size());
+
+        mIndex.removeRawContact(3);
+        assertEquals(0, mIndex.getEntriesForName("JANEY").size());
+        assertEquals(0, mIndex.getEntriesForRawContact(3).size());
+    }
+
+    public void testGetEntriesForPrefix() {
+        mIndex.ensureLoaded(mDb);
+        mIndex.add(3, 30, NameLookupType.NICKNAME, "JOE");
+        mIndex.add(4, 40, NameLookupType.NAME_COLLATION_KEY, "JANE");
+
+        final boolean[] types = new boolean[NameLookupType.TYPE_COUNT];
+        types[NameLookupType.NAME_COLLATION_KEY] = true;
+        types[NameLookupType.NICKNAME] = true;
+
+        List<NameLookupIndex.Entry> out = new ArrayList<NameLookupIndex.Entry>();
+        mIndex.getEntriesForPrefix("JO", types, 10, out);
+        assertEquals(2, out.size());
+
+        out.clear();
+        mIndex.getEntriesForPrefix("JO", types, 1, out);
+        assertEquals(1, out.size());
+
+        out.clear();
+        mIndex.getEntriesForPrefix("XY", types, 10, out);
+        assertEquals(0, out.size());
+    }
+
+    public void testInvalidate() {
+        mIndex.ensureLoaded(mDb);
+        mIndex.add(3, 30, NameLookupType.NAME_EXACT, "JANE");
+        mIndex.invalidate();
+        assertEquals(0, mIndex.getEntriesForName("JOHNSMITH").size());
+
+        // Reloaded from the database, which never had the added row
+        assertTrue(mIndex.ensureLoaded(mDb));
+        assertEquals(2, mIndex.getEntriesForName("JOHNSMITH").size());
+        assertEquals(0, mIndex.getEntriesForName("JANE").size());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.benchmark;
+
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Base class for micro-benchmarks of the provider's in-memory hot paths.  Each call to
+ * {@link #measure} warms the operation up, runs it for a fixed amount of time and reports the
+ * average time per operation, both to the log and as an instrumentation status.
+ *
+ * Benchmarks are large tests, so that they don't slow down regular test runs.  Run them like
+ * this:
+ * <code>
+ * adb shell am instrument -r -e package com.android.providers.contacts.benchmark -e size large \
+ *         -w com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public abstract class BenchmarkTestCase extends InstrumentationTestCase {
+    private static final String TAG = "ContactsBenchmark";
+
+    private static final long WARMUP_NANOS = 500 * 1000 * 1000L;
+    private static final long MEASUREMENT_NANOS = 2000 * 1000 * 1000L;
+
+    /** Number of operations run between two reads of the clock. */
+    private static final int OPERATIONS_PER_ROUND = 100;
+
+    /**
+     * An operation being measured.
+     */
+    protected interface Operation {
+        /**
+         * Runs the operation once.  Implementations typically use {@code iteration} to pick an
+         * input from a corpus.
+         *
+         * @return any result of the operation, so that it can't be optimized away
+         */
+        Object run(int iteration);
+    }
+
+    private int mSink;
+
+    /**
+     * Measures the average time taken by an operation and reports it under the given name.
+     *
+     * @return the average time per operation, in nanoseconds
+     */
+    protected double measure(String name, Operation operation) {
+        long end = System.nanoTime() + WARMUP_NANOS;
+        int iteration = 0;
+        while (System.nanoTime() < end) {
+            iteration = runRound(operation, iteration);
+        }
+
+        final long start = System.nanoTime();
+        long now;
+        iteration = 0;
+        do {
+            iteration = runRound(operation, iteration);
+            now = System.nanoTime();
+        } while (now - start < MEASUREMENT_NANOS);
+
+        final double nanosPerOperation = (double) (now - start) / iteration;
+        Log.i(TAG, String.format(Locale.US, "%s: %.1f ns/op (%d ops)", name, nanosPerOperation,
+                iteration));
+
+        final Bundle results = new Bundle();
+        results.putDouble(name + "_ns_per_op", nanosPerOperation);
+        getInstrumentation().sendStatus(0, results);
+        return nanosPerOperation;
+    }
+
+    private int runRound(Operation operation, int iteration) {
+        for (int i = 0; i < OPERATIONS_PER_ROUND; i++) {
+            final Object result = operation.run(iteration++);
+            if (result != null) {
+                mSink += result.hashCode();
+            }
+        }
+        return iteration;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Keeps the results of the measured operations alive
+        Log.v(TAG, "sink: " + mSink);
+        super.tearDown();
+    }
+}
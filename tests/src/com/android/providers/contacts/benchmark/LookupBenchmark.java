@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.benchmark;
+
+import com.android.providers.contacts.ContactLookupKey;
+import com.android.providers.contacts.HanziToPinyin;
+import com.android.providers.contacts.SearchIndexManager;
+import com.android.providers.contacts.SearchIndexManager.FtsQueryBuilder;
+
+import java.util.Random;
+
+/**
+ * Benchmarks of lookup key parsing, pinyin tokenization and full text search query building:
+ * {@link ContactLookupKey#parse}, {@link HanziToPinyin#getTokens} and
+ * {@link SearchIndexManager#getFtsMatchQuery}.
+ *
+ * Run the benchmark like this:
+ * <code>
+ * adb shell am instrument -r -e class \
+ *         com.android.providers.contacts.benchmark.LookupBenchmark -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+public class LookupBenchmark extends BenchmarkTestCase {
+
+    private static final int CORPUS_SIZE = 1000;
+
+    /** Maximum number of raw contacts, i.e. lookup key segments, in an aggregate. */
+    private static final int MAX_SEGMENTS = 5;
+
+    public void testContactLookupKeyParse() {
+        final Random random = new Random(0);
+        final String[] names = SyntheticNames.getNames(SyntheticNames.MIXED, CORPUS_SIZE, 0);
+        final String[] lookupKeys = new String[CORPUS_SIZE];
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            sb.setLength(0);
+            final int segments = 1 + random.nextInt(MAX_SEGMENTS);
+            for (int j = 0; j < segments; j++) {
+                final int kind = random.nextInt(3);
+
+                // Source IDs of a synced account, some of them with dots that need escaping,
+                // or raw contact IDs and display names of local contacts.
+                final String sourceId = kind == 0 ? null
+                        : kind == 1 ? Long.toHexString(random.nextLong())
+                        : "c" + random.nextInt(100000) + ".g" + random.nextInt(100);
+                ContactLookupKey.appendToLookupKey(sb, "com.google", "account" + j + "@gmail.com",
+                        random.nextInt(100000), sourceId, names[(i + j) % names.length]);
+            }
+            lookupKeys[i] = sb.toString();
+        }
+
+        final ContactLookupKey contactLookupKey = new ContactLookupKey();
+        measure("ContactLookupKey.parse", new Operation() {
+            @Override
+            public Object run(int iteration) {
+                return contactLookupKey.parse(lookupKeys[iteration % lookupKeys.length]);
+            }
+        });
+    }
+
+    public void testHanziToPinyinGetTokens() {
+        final HanziToPinyin hanziToPinyin = HanziToPinyin.getInstance();
+        for (int corpus = 0; corpus < SyntheticNames.CORPUS_NAMES.length; corpus++) {
+            final String[] names = SyntheticNames.getNames(corpus, CORPUS_SIZE, corpus);
+            measure("HanziToPinyin.getTokens_" + SyntheticNames.CORPUS_NAMES[corpus],
+                    new Operation() {
+                        @Override
+                        public Object run(int iteration) {
+                            return hanziToPinyin.getTokens(names[iteration % names.length]);
+                        }
+                    });
+        }
+    }
+
+    public void testHanziToPinyinGetTokensIntoBuffer() {
+        final HanziToPinyin hanziToPinyin = HanziToPinyin.getInstance();
+        final HanziToPinyin.TokenBuffer buffer = new HanziToPinyin.TokenBuffer();
+        for (int corpus = 0; corpus < SyntheticNames.CORPUS_NAMES.length; corpus++) {
+            final String[] names = SyntheticNames.getNames(corpus, CORPUS_SIZE, corpus);
+            measure("HanziToPinyin.getTokensIntoBuffer_" + SyntheticNames.CORPUS_NAMES[corpus],
+                    new Operation() {
+                        @Override
+                        public Object run(int iteration) {
+                            hanziToPinyin.getTokens(names[iteration % names.length], buffer);
+                            return buffer;
+                        }
+                    });
+        }
+    }
+
+    public void testGetFtsMatchQuery() {
+        final FtsQueryBuilder[] builders = {
+            FtsQueryBuilder.UNSCOPED_NORMALIZING,
+            FtsQueryBuilder.SCOPED_NAME_NORMALIZING,
+        };
+        final String[] builderNames = { "unscoped", "scoped" };
+
+        for (int corpus = 0; corpus < SyntheticNames.CORPUS_NAMES.length; corpus++) {
+            // Filter strings as typed: a few first characters, or a first name and the start
+            // of a last name.
+            final Random random = new Random(corpus);
+            final String[] queries = SyntheticNames.getNames(corpus, CORPUS_SIZE, corpus);
+            for (int i = 0; i < queries.length; i++) {
+                final String name = queries[i];
+                queries[i] = name.substring(0, 1 + random.nextInt(name.length()));
+            }
+
+            for (int b = 0; b < builders.length; b++) {
+                final FtsQueryBuilder builder = builders[b];
+                measure("SearchIndexManager.getFtsMatchQuery_" + builderNames[b] + "_"
+                        + SyntheticNames.CORPUS_NAMES[corpus], new Operation() {
+                            @Override
+                            public Object run(int iteration) {
+                                return SearchIndexManager.getFtsMatchQuery(
+                                        queries[iteration % queries.length], builder);
+                            }
+                        });
+            }
+        }
+    }
+}
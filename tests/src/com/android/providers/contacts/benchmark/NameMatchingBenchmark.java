@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.benchmark;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+import com.android.providers.contacts.NameNormalizer;
+import com.android.providers.contacts.NameSplitter;
+import com.android.providers.contacts.aggregation.util.ContactMatcher;
+import com.android.providers.contacts.aggregation.util.NameDistance;
+import com.android.providers.contacts.util.Hex;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmarks of name parsing and matching: {@link NameSplitter}, {@link NameNormalizer},
+ * {@link NameDistance} and {@link ContactMatcher}.
+ *
+ * Run the benchmark like this:
+ * <code>
+ * adb shell am instrument -r -e class \
+ *         com.android.providers.contacts.benchmark.NameMatchingBenchmark -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+public class NameMatchingBenchmark extends BenchmarkTestCase {
+
+    private static final int CORPUS_SIZE = 1000;
+
+    /** Number of candidates scored per aggregation, see ContactAggregator's hit limits. */
+    private static final int CANDIDATE_COUNT = 20;
+
+    public void testNameSplitterSplit() {
+        final NameSplitter splitter = new NameSplitter("Mr, Ms, Mrs, Dr", "d', st, st., von",
+                "Jr., M.D., MD, D.D.S.", "&, AND", Locale.US);
+        final NameSplitter.Name name = new NameSplitter.Name();
+        for (int corpus = 0; corpus < SyntheticNames.CORPUS_NAMES.length; corpus++) {
+            final String[] names = SyntheticNames.getNames(corpus, CORPUS_SIZE, corpus);
+            measure("NameSplitter.split_" + SyntheticNames.CORPUS_NAMES[corpus],
+                    new Operation() {
+                        @Override
+                        public Object run(int iteration) {
+                            name.clear();
+                            splitter.split(name, names[iteration % names.length]);
+                            return name.familyName;
+                        }
+                    });
+        }
+    }
+
+    public void testNameNormalizerNormalize() {
+        for (int corpus = 0; corpus < SyntheticNames.CORPUS_NAMES.length; corpus++) {
+            final String[] names = SyntheticNames.getNames(corpus, CORPUS_SIZE, corpus);
+            measure("NameNormalizer.normalize_" + SyntheticNames.CORPUS_NAMES[corpus],
+                    new Operation() {
+                        @Override
+                        public Object run(int iteration) {
+                            return NameNormalizer.normalize(names[iteration % names.length]);
+                        }
+                    });
+        }
+    }
+
+    public void testNameDistanceGetDistance() {
+        final NameDistance nameDistance = new NameDistance(30);
+        for (int corpus = 0; corpus < SyntheticNames.CORPUS_NAMES.length; corpus++) {
+            final byte[][] names = getNormalizedNames(corpus, false);
+            final byte[][] misspelled = getNormalizedNames(corpus, true);
+            measure("NameDistance.getDistance_" + SyntheticNames.CORPUS_NAMES[corpus],
+                    new Operation() {
+                        @Override
+                        public Object run(int iteration) {
+                            // Alternate between near matches and unrelated names
+                            final int i = iteration % names.length;
+                            final byte[] other = (iteration & 1) == 0
+                                    ? misspelled[i] : names[(i * 31 + 7) % names.length];
+                            return nameDistance.getDistance(names[i], other,
+                                    ContactMatcher.APPROXIMATE_MATCH_THRESHOLD);
+                        }
+                    });
+        }
+    }
+
+    public void testContactMatcherScoring() {
+        final ContactMatcher matcher = new ContactMatcher();
+        for (int corpus = 0; corpus < SyntheticNames.CORPUS_NAMES.length; corpus++) {
+            final String[] names = getNormalizedNameStrings(corpus, false);
+            final String[] misspelled = getNormalizedNameStrings(corpus, true);
+            measure("ContactMatcher.score_" + SyntheticNames.CORPUS_NAMES[corpus],
+                    new Operation() {
+                        @Override
+                        public Object run(int iteration) {
+                            // Scores one raw contact against a full set of candidate contacts,
+                            // the way the aggregator does for approximate matches.
+                            matcher.clear();
+                            final int base = iteration % names.length;
+                            final String name = names[base];
+                            for (int i = 0; i < CANDIDATE_COUNT; i++) {
+                                final int candidate = (base + i) % names.length;
+                                final String candidateName =
+                                        i == 0 ? misspelled[base] : names[candidate];
+                                matcher.matchName(candidate, NameLookupType.NAME_COLLATION_KEY,
+                                        name, NameLookupType.NAME_COLLATION_KEY, candidateName,
+                                        ContactMatcher.MATCHING_ALGORITHM_APPROXIMATE);
+                                if ((i & 3) == 0) {
+                                    matcher.updateScoreWithPhoneNumberMatch(candidate);
+                                }
+                            }
+                            matcher.prepareSecondaryMatchCandidates(
+                                    ContactMatcher.SCORE_THRESHOLD_PRIMARY);
+                            return matcher.pickBestMatch(
+                                    ContactMatcher.SCORE_THRESHOLD_SECONDARY, false);
+                        }
+                    });
+        }
+    }
+
+    private static byte[][] getNormalizedNames(int corpus, boolean misspell) {
+        final String[] normalized = getNormalizedNameStrings(corpus, misspell);
+        final byte[][] names = new byte[normalized.length][];
+        for (int i = 0; i < normalized.length; i++) {
+            names[i] = Hex.decodeHex(normalized[i]);
+        }
+        return names;
+    }
+
+    private static String[] getNormalizedNameStrings(int corpus, boolean misspell) {
+        final String[] names = SyntheticNames.getNames(corpus, CORPUS_SIZE, corpus);
+        final Random random = new Random(corpus);
+        for (int i = 0; i < names.length; i++) {
+            names[i] = NameNormalizer.normalize(
+                    misspell ? SyntheticNames.misspell(names[i], random) : names[i]);
+        }
+        return names;
+    }
+}
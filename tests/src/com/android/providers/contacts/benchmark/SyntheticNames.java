@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.benchmark;
+
+import java.util.Random;
+
+/**
+ * Deterministic corpora of synthetic contact names used by the benchmarks.  The names are
+ * built from common name parts, so that their distribution of lengths, scripts and shared
+ * prefixes resembles a real address book.
+ */
+public final class SyntheticNames {
+
+    public static final int WESTERN = 0;
+    public static final int CHINESE = 1;
+    public static final int JAPANESE = 2;
+    public static final int KOREAN = 3;
+    public static final int MIXED = 4;
+
+    public static final String[] CORPUS_NAMES = {
+        "western", "chinese", "japanese", "korean", "mixed"
+    };
+
+    private static final String[] WESTERN_GIVEN_NAMES = {
+        "James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael", "Linda", "William",
+        "Elizabeth", "David", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas",
+        "Sarah", "Charles", "Karen", "Christopher", "Nancy", "Daniel", "Lisa", "Matthew",
+        "Margaret", "Anthony", "Betty", "Mark", "Sandra", "Jon", "Jonathan", "Marc", "Martha",
+        "Zoë", "José", "François", "Søren",
+    };
+
+    private static final String[] WESTERN_FAMILY_NAMES = {
+        "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis",
+        "Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson",
+        "Thomas", "Taylor", "Moore", "Jackson", "Martin", "Lee", "Perez", "Thompson", "White",
+        "Harris", "Sanchez", "Clark", "Ramirez", "Lewis", "Robinson", "von Neumann",
+        "d'Artagnan", "O'Brien", "Müller",
+    };
+
+    private static final String[] WESTERN_PREFIXES = { "Mr", "Ms", "Mrs", "Dr" };
+    private static final String[] WESTERN_SUFFIXES = { "Jr.", "M.D.", "D.D.S." };
+
+    private static final String[] CHINESE_FAMILY_NAMES = {
+        "王", "李", "张", "刘", "陈", "杨", "黄", "赵", "吴", "周", "徐", "孙", "马", "朱",
+        "胡", "郭", "何", "高", "林", "罗", "欧阳", "司马",
+    };
+
+    private static final String[] CHINESE_GIVEN_NAME_CHARACTERS = {
+        "伟", "芳", "娜", "敏", "静", "丽", "强", "磊", "军", "洋", "勇", "艳", "杰", "娟",
+        "涛", "明", "超", "秀", "霞", "平", "刚", "桂", "英", "华", "建", "国", "文", "红",
+    };
+
+    private static final String[] JAPANESE_FAMILY_NAMES = {
+        "佐藤", "鈴木", "高橋", "田中", "伊藤", "渡辺", "山本", "中村", "小林", "加藤",
+        "さとう", "すずき", "タナカ",
+    };
+
+    private static final String[] JAPANESE_GIVEN_NAMES = {
+        "翔太", "蓮", "大翔", "陽菜", "結衣", "さくら", "はると", "ゆい", "アキラ", "ケンジ",
+        "美咲", "優子",
+    };
+
+    private static final String[] KOREAN_FAMILY_NAMES = {
+        "김", "이", "박", "최", "정", "강", "조", "윤", "장", "임", "남궁", "황보",
+    };
+
+    private static final String[] KOREAN_GIVEN_NAME_SYLLABLES = {
+        "민", "서", "준", "지", "현", "우", "윤", "예", "하", "도", "수", "영", "진", "은",
+        "성", "호",
+    };
+
+    private SyntheticNames() {
+    }
+
+    /**
+     * Returns {@code count} full names of the given corpus.  The same arguments always
+     * produce the same names.
+     */
+    public static String[] getNames(int corpus, int count, long seed) {
+        final Random random = new Random(seed);
+        final String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            int kind = corpus == MIXED ? random.nextInt(MIXED) : corpus;
+            names[i] = getName(kind, random, corpus == MIXED);
+        }
+        return names;
+    }
+
+    private static String getName(int kind, Random random, boolean mixed) {
+        switch (kind) {
+            case CHINESE: {
+                StringBuilder sb = new StringBuilder(pick(random, CHINESE_FAMILY_NAMES));
+                sb.append(pick(random, CHINESE_GIVEN_NAME_CHARACTERS));
+                if (random.nextBoolean()) {
+                    sb.append(pick(random, CHINESE_GIVEN_NAME_CHARACTERS));
+                }
+                if (mixed && random.nextInt(4) == 0) {
+                    // Chinese name followed by a Western given name, e.g. "王伟 David"
+                    sb.append(' ').append(pick(random, WESTERN_GIVEN_NAMES));
+                }
+                return sb.toString();
+            }
+            case JAPANESE: {
+                String family = pick(random, JAPANESE_FAMILY_NAMES);
+                String given = pick(random, JAPANESE_GIVEN_NAMES);
+                return random.nextInt(3) == 0 ? family + " " + given : family + given;
+            }
+            case KOREAN: {
+                StringBuilder sb = new StringBuilder(pick(random, KOREAN_FAMILY_NAMES));
+                sb.append(pick(random, KOREAN_GIVEN_NAME_SYLLABLES));
+                sb.append(pick(random, KOREAN_GIVEN_NAME_SYLLABLES));
+                return sb.toString();
+            }
+            default: {
+                StringBuilder sb = new StringBuilder();
+                if (random.nextInt(10) == 0) {
+                    sb.append(pick(random, WESTERN_PREFIXES)).append(' ');
+                }
+                sb.append(pick(random, WESTERN_GIVEN_NAMES)).append(' ');
+                if (random.nextInt(4) == 0) {
+                    sb.append((char) ('A' + random.nextInt(26))).append(". ");
+                }
+                sb.append(pick(random, WESTERN_FAMILY_NAMES));
+                if (random.nextInt(20) == 0) {
+                    sb.append(", ").append(pick(random, WESTERN_SUFFIXES));
+                }
+                return sb.toString();
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the name with a typo: two adjacent characters swapped, or one
+     * character dropped.
+     */
+    public static String misspell(String name, Random random) {
+        if (name.length() < 3) {
+            return name;
+        }
+        final int i = 1 + random.nextInt(name.length() - 2);
+        if (random.nextBoolean()) {
+            return name.substring(0, i) + name.charAt(i + 1) + name.charAt(i)
+                    + name.substring(i + 2);
+        }
+        return name.substring(0, i) + name.substring(i + 1);
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
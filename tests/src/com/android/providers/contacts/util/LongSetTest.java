@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Unit tests for {@link LongSet}.
+ */
+@SmallTest
+public class LongSetTest extends AndroidTestCase {
+    public void testAddInOrder() {
+        final LongSet set = new LongSet();
+        assertTrue(set.isEmpty());
+        set.add(1);
+        set.add(2);
+        set.add(2);
+        set.add(5);
+        assertEquals(3, set.size());
+        assertEquals("1,2,5", set.join(","));
+        assertTrue(set.contains(2));
+        assertFalse(set.contains(3));
+    }
+
+    public void testAddOutOfOrder() {
+        final LongSet set = new LongSet();
+        for (int i = 0; i < 100; i++) {
+            set.add(i % 10);
+            set.add(-i % 7);
+        }
+        assertEquals(16, set.size());
+        for (int i = 0; i < set.size(); i++) {
+            assertEquals(i - 6, set.get(i));
+        }
+    }
+
+    public void testAddAllAndRemoveAll() {
+        final LongSet set = new LongSet();
+        final LongSet other = new LongSet();
+        set.add(3);
+        set.add(1);
+        other.add(2);
+        other.add(3);
+        set.addAll(other);
+        assertEquals("[1, 2, 3]", set.toString());
+
+        other.clear();
+        other.add(2);
+        other.add(4);
+        set.removeAll(other);
+        assertEquals("[1, 3]", set.toString());
+    }
+
+    public void testClear() {
+        final LongSet set = new LongSet();
+        for (int i = 2000; i > 0; i--) {
+            set.add(i);
+        }
+        assertEquals(2000, set.size());
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertEquals("", set.join(","));
+        set.add(7);
+        assertEquals(1, set.size());
+        assertTrue(set.contains(7));
+    }
+}
@@ -20,10 +20,14 @@ public class MockClock extends Clock {
     /** Current time.  Only updated with advance(). */
     private long mCurrentTimeMillis;
 
+    /** Time since boot.  Only updated with advance() and setElapsedRealtime(). */
+    private long mElapsedRealtime;
+
     public void install() {
         Clock.injectInstance(this);
 
         mCurrentTimeMillis = 100000;
+        mElapsedRealtime = 100000;
     }
 
     public void uninstall() {
@@ -39,7 +43,17 @@ public class MockClock extends Clock {
         mCurrentTimeMillis = time;
     }
 
+    @Override
+    public long elapsedRealtime() {
+        return mElapsedRealtime;
+    }
+
+    public void setElapsedRealtime(long time) {
+        mElapsedRealtime = time;
+    }
+
     public void advance() {
         mCurrentTimeMillis++;
+        mElapsedRealtime++;
     }
 }